@@ -12,13 +12,16 @@ import ceid.netcins.exo.social.URLBookMark;
 import ceid.netcins.exo.user.Friend;
 import ceid.netcins.exo.user.FriendRequest;
 import ceid.netcins.exo.user.SharedContentInfo;
+import ceid.netcins.exo.user.StatusDigest;
 import ceid.netcins.exo.user.User;
+import ceid.netcins.exo.utils.AgingBloomFilter;
 import ceid.netcins.exo.utils.JavaSerializer;
 import rice.Continuation;
 import rice.Continuation.MultiContinuation;
 import rice.Continuation.NamedContinuation;
 import rice.Continuation.StandardContinuation;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.*;
 import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.MessageDeserializer;
@@ -28,6 +31,7 @@ import rice.p2p.past.PastException;
 import rice.p2p.past.PastImpl;
 import rice.p2p.past.messaging.*;
 import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.persistence.PersistentStorage;
 import rice.persistence.StorageManager;
 import rice.selector.TimerTask;
 
@@ -37,6 +41,12 @@ import java.io.Serializable;
 import java.io.StringReader;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -69,6 +79,60 @@ public class CatalogService extends PastImpl implements SocService {
     private Scorer scorer;
     private Thread scorerThread;
 
+    // TID -> version of our public profile last stored at that Catalog. Content
+    // entries carry the profile only when the Catalog has an older version.
+    private final Map<Id, Long> sentProfileVersions = new ConcurrentHashMap<Id, Long>();
+
+    // Where the content profile cache is saved (null if not persistent)
+    private final File profileCacheFile;
+
+    // Bounded worker pool profiling the files of bulk (directory) imports
+    private final ThreadPoolExecutor indexPool;
+
+    // Number of files whose index inserts are sent together
+    private final int indexBatchSize;
+
+    // Friend UID -> latest status digest received from that friend
+    private final Map<Id, StatusDigest> friendStatuses = new ConcurrentHashMap<Id, StatusDigest>();
+
+    // Maximum number of tags kept per tag cloud
+    private final int tagCloudSize;
+
+    // Content Id -> top tags of its tag cloud, as fetched from its owner for
+    // query expansion, and when; least recently used clouds are dropped
+    // first, and clouds older than tagCloudCacheTTL (ms) are fetched again
+    private final Map<Id, CachedTagCloud> tagCloudCache;
+    private final long tagCloudCacheTTL;
+
+    // Query expansion (see searchQueryExpanded): number of terms added, of
+    // top results whose tag clouds are used, and of tags fetched per cloud
+    private final int expansionTerms;
+    private final int expansionResults;
+    private final int expansionCloudTags;
+
+    // Scale of the scores of the results found through expansion terms
+    private final float expansionWeight;
+
+    // Time (ms) to wait for the tag clouds of the results
+    private final long expansionDeadline;
+
+    // Number of latest statuses pushed to (and fetched from) friends
+    private final int statusLimit;
+
+    // Status changes within this time (ms) are pushed together
+    private final long statusPushDelay;
+
+    // The status digest last pushed to our friends, null before the first
+    // push. Only accessed on the selector thread, like statusPushPending.
+    private StatusDigest pushedStatus = null;
+    private boolean statusPushPending = false;
+
+    // Friend UID -> smoothed latency (ms) of its answers to friend queries
+    private final Map<Id, Long> friendLatencies = new ConcurrentHashMap<Id, Long>();
+
+    // IDs of the multi-hop friend queries seen lately
+    private final AgingBloomFilter seenFriendQueries = new AgingBloomFilter(1 << 16);
+
     // Load counting variable
     //private int hits;
 
@@ -130,6 +194,18 @@ public class CatalogService extends PastImpl implements SocService {
                     case MessageType.GetUserProfile:
                         return GetUserProfileMessage.build(buf, endpoint,
                                 contentDeserializer);
+                    case MessageType.GetStatusDigest:
+                        return GetStatusDigestMessage.build(buf, endpoint,
+                                contentDeserializer);
+                    case MessageType.StatusUpdate:
+                        return StatusUpdateMessage.build(buf, endpoint,
+                                contentDeserializer);
+                    case MessageType.RetrieveTagClouds:
+                        return RetrieveTagCloudsMessage.build(buf, endpoint,
+                                contentDeserializer);
+                    case MessageType.TagContentBatch:
+                        return TagContentBatchMessage.build(buf, endpoint,
+                                contentDeserializer);
                 }
             } catch (IOException e) {
                 if (logger.level <= Logger.SEVERE)
@@ -154,6 +230,14 @@ public class CatalogService extends PastImpl implements SocService {
 
         cpf = new ContentProfileFactory();
         this.user = user;
+        Parameters params = environment.getParameters();
+        profileCacheFile = getProfileCacheFile(manager);
+        int profileCacheSize = params.contains("exo_profile_cache_size") ?
+                params.getInt("exo_profile_cache_size") : 10000;
+        if (profileCacheSize > 0)
+            cpf.setCache((profileCacheFile != null) ?
+                    ContentProfileCache.load(profileCacheFile, profileCacheSize) :
+                    new ContentProfileCache(profileCacheSize));
         scorer = new Scorer();
 
         // Start the "Scorer" thread to be waiting!
@@ -166,6 +250,103 @@ public class CatalogService extends PastImpl implements SocService {
             }
 
         }, "Scorer");
+
+        // Profiling is CPU and disk bound; when the queue is full, the
+        // submitting thread profiles the file itself, throttling the walk
+        int indexThreads = params.contains("exo_index_threads") ?
+                params.getInt("exo_index_threads") : 0;
+        if (indexThreads <= 0)
+            indexThreads = Runtime.getRuntime().availableProcessors();
+        int indexQueueSize = params.contains("exo_index_queue_size") ?
+                params.getInt("exo_index_queue_size") : 4 * indexThreads;
+        indexBatchSize = Math.max(params.contains("exo_index_batch_size") ?
+                params.getInt("exo_index_batch_size") : 64, 1);
+        indexPool = new ThreadPoolExecutor(indexThreads, indexThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(indexQueueSize, 1)),
+                new ThreadFactory() {
+                    private final AtomicInteger num = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Indexer-" + num.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        indexPool.allowCoreThreadTimeOut(true);
+
+        tagCloudSize = params.contains("exo_tag_cloud_size") ?
+                params.getInt("exo_tag_cloud_size") : TagCloud.DEFAULT_CAPACITY;
+
+        final int tagCloudCacheSize = params.contains("exo_tag_cloud_cache_size") ?
+                params.getInt("exo_tag_cloud_cache_size") : 1024;
+        tagCloudCache = Collections.synchronizedMap(new LinkedHashMap<Id, CachedTagCloud>(16, 0.75f, true) {
+            private static final long serialVersionUID = 2867342216435405561L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id, CachedTagCloud> eldest) {
+                return size() > tagCloudCacheSize;
+            }
+        });
+        tagCloudCacheTTL = params.contains("exo_tag_cloud_cache_ttl") ?
+                params.getLong("exo_tag_cloud_cache_ttl") : 600000;
+        expansionTerms = params.contains("exo_query_expansion_terms") ?
+                params.getInt("exo_query_expansion_terms") : 3;
+        expansionResults = params.contains("exo_query_expansion_results") ?
+                params.getInt("exo_query_expansion_results") : 5;
+        expansionCloudTags = params.contains("exo_query_expansion_cloud_tags") ?
+                params.getInt("exo_query_expansion_cloud_tags") : 16;
+        expansionWeight = params.contains("exo_query_expansion_weight") ?
+                params.getFloat("exo_query_expansion_weight") : 0.5f;
+        expansionDeadline = params.contains("exo_query_expansion_deadline") ?
+                params.getLong("exo_query_expansion_deadline") : 5000;
+
+        // Status changes are pushed to the friends from the selector thread
+        statusLimit = params.contains("exo_status_limit") ?
+                params.getInt("exo_status_limit") : 4;
+        statusPushDelay = params.contains("exo_status_push_delay") ?
+                params.getLong("exo_status_push_delay") : 1000;
+        if (user != null)
+            user.setStatusListener(new User.StatusListener() {
+                public void statusChanged(User user) {
+                    environment.getSelectorManager().invoke(new Runnable() {
+                        public void run() {
+                            scheduleStatusPush();
+                        }
+                    });
+                }
+            });
+    }
+
+    /**
+     * @return the file the content profile cache is saved to, next to the
+     *         persistent storage of this node, or null if the storage is
+     *         not persistent
+     */
+    private File getProfileCacheFile(StorageManager manager) {
+        if (!(manager.getStorage() instanceof PersistentStorage))
+            return null;
+        PersistentStorage ps = (PersistentStorage) manager.getStorage();
+        Parameters params = environment.getParameters();
+        return new File(ps.getRoot() + File.separator + ps.getName() + File.separator +
+                (params.contains("exo_profile_cache_file") ?
+                        params.getString("exo_profile_cache_file") : ".eXO.profiles"));
+    }
+
+    /**
+     * Saves the content profile cache, if it is persistent and has changed.
+     */
+    public void saveProfileCache() {
+        ContentProfileCache cache = cpf.getCache();
+        if (cache == null || profileCacheFile == null)
+            return;
+        try {
+            cache.save(profileCacheFile);
+        } catch (IOException e) {
+            if (logger.level <= Logger.WARNING)
+                logger.logException("Unable to save the content profile cache", e);
+        }
     }
 
     public void start() {
@@ -176,6 +357,17 @@ public class CatalogService extends PastImpl implements SocService {
         IdRange range = endpoint.range(myHandle, 0, myHandle.getId()).getComplementRange();
         doMigrateStoredItems(range);
 
+        // Catch up with the statuses our friends posted while we were away;
+        // only the digests that changed since we last saw them are sent
+        if (user != null)
+            getFriendStatuses(statusLimit, new Continuation<Object, Exception>() {
+                public void receiveResult(Object result) {
+                }
+
+                public void receiveException(Exception exception) {
+                }
+            });
+
         // Schedule a reindex with the same frequency as the RouteSet
         int longReindexFreq = environment.getParameters().getInt("pastry_routeSetMaintFreq");
         environment.getSelectorManager().getTimer().scheduleAtFixedRate(
@@ -188,21 +380,103 @@ public class CatalogService extends PastImpl implements SocService {
                         doMigrateStoredItems(range);
                     }
                 }, longReindexFreq * 1000, longReindexFreq * 1000);
+
+        // Expire the catalog entries their owners stopped refreshing. The TTL
+        // must span several reindex rounds.
+        Parameters params = environment.getParameters();
+        long gcInterval = params.contains("exo_catalog_gc_interval") ?
+                params.getLong("exo_catalog_gc_interval") : longReindexFreq;
+        final long entryTTL = params.contains("exo_catalog_entry_ttl") ?
+                params.getLong("exo_catalog_entry_ttl") : 4L * longReindexFreq;
+        environment.getSelectorManager().getTimer().scheduleAtFixedRate(
+                new TimerTask() {
+                    @Override
+                    public void run() {
+                        doCollectGarbage(entryTTL * 1000);
+                    }
+                }, gcInterval * 1000, gcInterval * 1000);
+    }
+
+    /**
+     * Removes the locally stored catalog entries which have not been refreshed
+     * within ttl, drops the Catalogs left empty and rewrites the rest, so that
+     * their storage files shrink too. Reports the reclaimed bytes when done.
+     *
+     * @param ttl in milliseconds
+     */
+    private void doCollectGarbage(long ttl) {
+        final long cutoff = System.currentTimeMillis() - ttl;
+        final IdSet items = storage.getStorage().scan();
+        if (items == null || items.numElements() == 0)
+            return;
+
+        // Totals of this pass: pending items, expired entries, dropped catalogs
+        // and reclaimed bytes
+        final long[] gcStats = new long[]{items.numElements(), 0, 0, 0};
+        for (Id next : items.asArray()) {
+            final Id curId = next;
+            // Releases curId and reports once all the items are processed
+            final Continuation<Object, Exception> done = new Continuation<Object, Exception>() {
+                public void receiveResult(Object result) {
+                    lockManager.unlock(curId);
+                    if (--gcStats[0] == 0 && gcStats[1] > 0 && logger.level <= Logger.INFO)
+                        logger.log("Catalog GC: expired " + gcStats[1] + " entries, dropped "
+                                + gcStats[2] + " empty catalogs, reclaimed ~" + gcStats[3] + " bytes");
+                }
+
+                public void receiveException(Exception exception) {
+                    if (logger.level <= Logger.WARNING)
+                        logger.logException("Error collecting " + curId, exception);
+                    receiveResult(null);
+                }
+            };
+            lockManager.lock(curId, new StandardContinuation<Object, Exception>(done) {
+                public void receiveResult(Object result) {
+                    storage.getObject(curId, new StandardContinuation<Object, Exception>(done) {
+                        public void receiveResult(Object result) {
+                            if (!(result instanceof Catalog)) {
+                                done.receiveResult(null);
+                                return;
+                            }
+                            Catalog cat = (Catalog) result;
+                            int removed;
+                            double before, after;
+                            synchronized (cat) {
+                                before = cat.computeBytes();
+                                removed = cat.expireEntries(cutoff);
+                                after = cat.isEmpty() ? 0 : cat.computeBytes();
+                            }
+                            if (removed == 0) {
+                                done.receiveResult(null);
+                                return;
+                            }
+                            gcStats[1] += removed;
+                            gcStats[3] += (long) (before - after);
+                            if (cat.isEmpty()) {
+                                gcStats[2]++;
+                                storage.unstore(curId, done);
+                            } else {
+                                // Rewriting the object compacts its storage file
+                                storage.store(curId, null, cat, done);
+                            }
+                        }
+                    });
+                }
+            });
+        }
     }
 
     private void doReindexAll() {
+        // Resend our profile once per Catalog and round, in case a Catalog
+        // lost it (e.g. its node failed without replicas)
+        sentProfileVersions.clear();
         doStartIndexUser(user.getPublicUserProfile());
 
         Map<Id, SharedContentInfo> items = user.getSharedContent();
         if (items == null || items.size() == 0)
             return;
-        Iterator<Id> itemKeys = items.keySet().iterator();
-        Iterator<SharedContentInfo> itemValues = items.values().iterator();
-        while (itemKeys.hasNext()) {
-            Id key = itemKeys.next();
-            SharedContentInfo value = itemValues.next();
-            doStartIndexItem(key, value);
-        }
+        for (Map.Entry<Id, SharedContentInfo> item : items.entrySet())
+            doStartIndexItem(item.getKey(), item.getValue());
     }
 
     private void doMigrateStoredItems(IdRange range) {
@@ -233,16 +507,21 @@ public class CatalogService extends PastImpl implements SocService {
                                     public void receiveResult(Object result) {
                                         if (result instanceof Catalog) {
                                             Catalog cat = (Catalog) result;
-                                            Hashtable<Id, ContentCatalogEntry> contentEntries = cat.getContentCatalogEntries();
-                                            Hashtable<Id, UserCatalogEntry> userEntries = cat.getUserCatalogEntries();
-                                            Hashtable<Id, URLCatalogEntry> urlEntries = cat.getURLCatalogEntries();
-                                            Hashtable<Id, CatalogEntry> allEntries = new Hashtable<Id, CatalogEntry>();
+                                            Map<Id, ContentCatalogEntry> contentEntries = cat.getContentCatalogEntries();
+                                            Map<Id, UserCatalogEntry> userEntries = cat.getUserCatalogEntries();
+                                            Map<Id, URLCatalogEntry> urlEntries = cat.getURLCatalogEntries();
+                                            // Entries stored by reference get their owner's
+                                            // profile back, so the new node can rebuild its
+                                            // owner profile table
+                                            List<CatalogEntry> allEntries = new ArrayList<CatalogEntry>();
                                             if (contentEntries != null)
-                                                allEntries.putAll(contentEntries);
+                                                for (CatalogEntry ce : contentEntries.values())
+                                                    allEntries.add(cat.resolveEntry(ce));
                                             if (userEntries != null)
-                                                allEntries.putAll(userEntries);
+                                                allEntries.addAll(userEntries.values());
                                             if (urlEntries != null)
-                                                allEntries.putAll(urlEntries);
+                                                for (CatalogEntry ce : urlEntries.values())
+                                                    allEntries.add(cat.resolveEntry(ce));
                                             if (allEntries.isEmpty())
                                                 return;
 
@@ -313,12 +592,8 @@ public class CatalogService extends PastImpl implements SocService {
                                                 }
                                             };
 
-                                            Iterator<Id> keys = allEntries.keySet().iterator();
-                                            Iterator<CatalogEntry> entries = allEntries.values().iterator();
                                             for (int iter = 0; iter < allEntries.size(); iter++) {
-                                                Id nextKey = keys.next();
-                                                CatalogEntry nextEntry = entries.next();
-                                                PastContent pdu = new InsertPDU(nextKey, nextEntry, null);
+                                                PastContent pdu = new InsertPDU(curId, allEntries.get(iter), null);
 
                                                 insert(pdu, multi.getSubContinuation(iter));
                                             }
@@ -616,6 +891,177 @@ public class CatalogService extends PastImpl implements SocService {
                 });
     }
 
+    /**
+     * @return the number of latest statuses exchanged with friends
+     */
+    public int getStatusLimit() {
+        return statusLimit;
+    }
+
+    /**
+     * Pushes the status changes to our friends after statusPushDelay, so
+     * that a burst of changes costs a single push. Runs on the selector
+     * thread.
+     */
+    private void scheduleStatusPush() {
+        if (statusPushPending)
+            return;
+        statusPushPending = true;
+        environment.getSelectorManager().getTimer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                statusPushPending = false;
+                pushStatus();
+            }
+        }, statusPushDelay);
+    }
+
+    /**
+     * Sends our latest statuses to the friends that are online. Friends that
+     * hold the digest we pushed last only get the statuses added since;
+     * the rest pick the changes up through the versions of GetStatusDigest.
+     */
+    private void pushStatus() {
+        StatusDigest current = user.getStatusDigest(statusLimit, true, 0);
+        if (pushedStatus != null && pushedStatus.getVersion() == current.getVersion())
+            return;
+
+        // Send a delta only if it rebuilds the current digest exactly, i.e.
+        // no status in it has been removed
+        long baseVersion = 0;
+        StatusDigest digest = current;
+        if (pushedStatus != null) {
+            List<Status> added = new ArrayList<Status>(current.getStatuses());
+            added.removeAll(pushedStatus.getStatuses());
+            StatusDigest delta = new StatusDigest(current.getUID(), current.getUsername(),
+                    current.getVersion(), current.getLimit(), added);
+            if (pushedStatus.applyDelta(delta).getStatuses().equals(current.getStatuses())) {
+                baseVersion = pushedStatus.getVersion();
+                digest = delta;
+            }
+        }
+        pushedStatus = current;
+
+        for (Friend friend : user.getFriends().values()) {
+            NodeHandle nh = friend.getNodeHandle();
+            if (nh != null && endpoint.isAlive(nh))
+                sendStatusUpdate(friend, baseVersion, digest);
+        }
+    }
+
+    private void sendStatusUpdate(final Friend friend, final long baseVersion,
+                                  StatusDigest digest) {
+        HashMap<String, Object> extra_args = new HashMap<String, Object>();
+        extra_args.put("nodeHandle", friend.getNodeHandle());
+        extra_args.put("BaseVersion", baseVersion);
+        extra_args.put("Digest", digest);
+        lookup(friend.getUID(), StatusUpdateMessage.TYPE, extra_args,
+                new Continuation<Object, Exception>() {
+                    public void receiveResult(Object result) {
+                        // The friend missed an earlier push; send it all
+                        if (Boolean.FALSE.equals(result) && baseVersion != 0)
+                            sendStatusUpdate(friend, 0, pushedStatus);
+                    }
+
+                    public void receiveException(Exception exception) {
+                        if (logger.level <= Logger.FINE)
+                            logger.log("Status update to " + friend.getUID() + " failed: " + exception);
+                    }
+                });
+    }
+
+    /**
+     * Gets the latest statuses of all our friends. Friends are asked for a
+     * StatusDigest instead of their whole profile, and only send it if it
+     * has changed since the one we hold. Friends that do not answer by the
+     * friend search deadline are reported as last known.
+     *
+     * @param limit   The maximum number of statuses per friend
+     * @param command Receives a List of StatusDigests, one per friend whose
+     *                statuses are known
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void getFriendStatuses(final int limit, final Continuation<Object, Exception> command) {
+        if (this.user == null) {
+            command.receiveException(new RuntimeException("User has not be registered yet!"));
+            return;
+        }
+
+        final List<Friend> friends = new ArrayList<Friend>(user.getFriends().values());
+        final Continuation done = new Continuation() {
+            private boolean finished = false;
+
+            public synchronized void receiveResult(Object result) {
+                if (finished)
+                    return;
+                finished = true;
+                List<StatusDigest> ret = new ArrayList<StatusDigest>();
+                for (Friend f : friends) {
+                    StatusDigest digest = friendStatuses.get(f.getUID());
+                    if (digest != null)
+                        ret.add(digest);
+                }
+                command.receiveResult(ret);
+            }
+
+            public void receiveException(Exception exception) {
+                receiveResult(null);
+            }
+        };
+        if (friends.isEmpty()) {
+            done.receiveResult(null);
+            return;
+        }
+
+        Parameters params = environment.getParameters();
+        long deadline = params.contains("exo_friend_search_deadline") ?
+                params.getLong("exo_friend_search_deadline") : 5000;
+        final TimerTask deadlineTask = new TimerTask() {
+            @Override
+            public void run() {
+                done.receiveResult(null);
+            }
+        };
+        environment.getSelectorManager().getTimer().schedule(deadlineTask, deadline);
+
+        MultiContinuation multi = new MultiContinuation(new Continuation() {
+            public void receiveResult(Object result) {
+                deadlineTask.cancel();
+                done.receiveResult(null);
+            }
+
+            public void receiveException(Exception exception) {
+                receiveResult(null);
+            }
+        }, friends.size());
+
+        for (int i = 0; i < friends.size(); i++) {
+            final Id uid = friends.get(i).getUID();
+            StatusDigest known = friendStatuses.get(uid);
+            HashMap<String, Object> extra_args = new HashMap<String, Object>();
+            extra_args.put("nodeHandle", friends.get(i).getNodeHandle());
+            extra_args.put("Limit", limit);
+            extra_args.put("KnownVersion", (known != null && known.getLimit() == limit) ? known.getVersion() : 0L);
+            lookup(uid, GetStatusDigestMessage.TYPE, extra_args,
+                    new StandardContinuation<Object, Exception>(multi.getSubContinuation(i)) {
+                        public void receiveResult(Object result) {
+                            if (result instanceof StatusDigest && !((StatusDigest) result).getUID().equals(uid)) {
+                                // Whoever answered for this friend is not them
+                                if (logger.level <= Logger.WARNING)
+                                    logger.log("Dropping status digest of " + ((StatusDigest) result).getUID() +
+                                            " received for friend " + uid);
+                                parent.receiveResult(null);
+                                return;
+                            }
+                            // Digests that are not modified confirm the cached one
+                            if (result instanceof StatusDigest && ((StatusDigest) result).isModified())
+                                friendStatuses.put(uid, (StatusDigest) result);
+                            parent.receiveResult(result);
+                        }
+                    });
+        }
+    }
+
     /**
      * This is a local user profile getter.
      *
@@ -924,8 +1370,81 @@ public class CatalogService extends PastImpl implements SocService {
 
     }
 
+    /**
+     * Retrieves the top tags of the tag clouds of some contents shared by a
+     * user, in a single message.
+     *
+     * @param uid        User unique id (destination node).
+     * @param contentIds The Ids of the contents.
+     * @param maxTags    The maximum number of tags returned per cloud.
+     * @param command    Receives a map from content Id to its (truncated)
+     *                   TagCloud; contents without a cloud are left out.
+     */
     @SuppressWarnings("unchecked")
+    public void retrieveTagClouds(Id uid, List<Id> contentIds, int maxTags,
+                                  final Continuation<Object, Exception> command) {
+
+        if (this.user == null) {
+            command.receiveException(new RuntimeException("User has not be registered yet!"));
+            return;
+        }
+
+        if (uid.equals(user.getUID())) {
+            command.receiveResult(topContentTagClouds(contentIds, maxTags));
+            return;
+        }
+
+        HashMap<String, Object> extra_args = new HashMap<String, Object>();
+        Friend friend = user.getFriends().get(uid);
+        if (friend != null)
+            extra_args.put("nodeHandle", friend.getNodeHandle());
+        extra_args.put("ContentIds", new ArrayList<Id>(contentIds));
+        extra_args.put("MaxTags", maxTags);
+
+        lookup(uid, RetrieveTagCloudsMessage.TYPE, extra_args,
+                new NamedContinuation("RetrieveTagClouds(" + uid + ")", command) {
+                    public void receiveResult(Object result) {
+                        if (result instanceof Map) {
+                            parent.receiveResult(result);
+                        } else {
+                            parent.receiveException(new PastException("Result was of wrong type"));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return content Id -> the top maxTags tags of its tag cloud, for those
+     *         of contentIds that we have tag clouds for
+     */
+    private HashMap<Id, TagCloud> topContentTagClouds(List<Id> contentIds, int maxTags) {
+        HashMap<Id, TagCloud> ret = new HashMap<Id, TagCloud>();
+        Map<Id, TagCloud> mapCloud = user.getContentTagClouds();
+        for (Id contentId : contentIds) {
+            TagCloud cloud = mapCloud.get(contentId);
+            if (cloud != null && cloud.size() > 0)
+                ret.put(contentId, cloud.getTopCloud(maxTags));
+        }
+        return ret;
+    }
+
     public void retrieveContentIDs(Id uid, final Continuation<Object, Exception> command) {
+        retrieveContentIDs(uid, null, 0, 0, command);
+    }
+
+    /**
+     * Retrieves a page of the Ids (and filenames) of the content shared by
+     * the given user, sorted by Id.
+     *
+     * @param uid     The user whose content is listed.
+     * @param cursor  The last Id of the previous page, or null for the first.
+     * @param offset  The number of Ids to skip after the cursor.
+     * @param limit   The page size; if not positive, all Ids are returned.
+     * @param command Receives a SortedMap of content Ids to filenames.
+     */
+    @SuppressWarnings("unchecked")
+    public void retrieveContentIDs(Id uid, Id cursor, int offset, int limit,
+                                   final Continuation<Object, Exception> command) {
 
         if (this.user == null) {
             command.receiveException(new RuntimeException("User has not be registered yet!"));
@@ -934,6 +1453,10 @@ public class CatalogService extends PastImpl implements SocService {
 
         final Id destuid = uid;
         HashMap<String, Object> extra_args = new HashMap<String, Object>();
+        if (cursor != null)
+            extra_args.put("Cursor", cursor);
+        extra_args.put("Offset", offset);
+        extra_args.put("Limit", limit);
 
         // Issue a lookup request to the underline DHT service
         lookup(uid, RetrieveContIDsMessage.TYPE, extra_args,
@@ -1031,6 +1554,176 @@ public class CatalogService extends PastImpl implements SocService {
                 });
     }
 
+    /**
+     * Adds +1 to the TFs of the tags in the tag cloud of one of our contents,
+     * creating the cloud if needed.
+     */
+    private void addContentTags(Id contentId, ContentProfile tags) {
+        Map<Id, TagCloud> mapCloud = user.getContentTagClouds();
+        TagCloud cloud;
+        if (mapCloud.containsKey(contentId)) {
+            cloud = mapCloud.get(contentId);
+        } else { // If the TagCloud does not exist, we create it
+            cloud = new TagCloud(tagCloudSize);
+            mapCloud.put(contentId, cloud);
+        }
+
+        // TODO : Implement association with User-tagers in the TagCloud
+        if (tags != null)
+            for (ContentField tag : tags.getAllFields()) {
+                cloud.addTagTFMap(tag);
+            }
+    }
+
+    /**
+     * Sends the tags of a batch of contents, all shared by the same user, to
+     * the owner's node in a single message. The catalog entries we already
+     * hold for these contents are announced by reference (the version of
+     * their content profile and of the owner profile), so the owner
+     * only returns the profiles that we miss or that have changed, and its
+     * own profile at most once. All SocialCatalogs are then updated in one
+     * step: stale entries are replaced and the entries of each tag are added
+     * together.
+     *
+     * @param uid     User unique id (destination node).
+     * @param tags    Content Id -> the tags which will be applied to it.
+     * @param command Receives the usual response map, whose data maps the Ids
+     *                of the contents tagged to their ContentCatalogEntry.
+     *                The status is SUCCESS only if all contents were tagged.
+     */
+    public void tagContents(final Id uid, Map<Id, ContentProfile> tags,
+                            final Continuation<Object, Exception> command) {
+
+        if (this.user == null) {
+            command.receiveException(new RuntimeException("User has not be registered yet!"));
+            return;
+        }
+
+        final Map<Id, ContentProfile> batch = new HashMap<Id, ContentProfile>();
+        for (Map.Entry<Id, ContentProfile> e : tags.entrySet()) {
+            ContentProfile cp = new ContentProfile();
+            for (ContentField cf : e.getValue().getAllFields()) {
+                if (!(cf instanceof StoredField))
+                    cp.add(cf);
+            }
+            batch.put(e.getKey(), cp);
+        }
+        if (batch.isEmpty()) {
+            command.receiveResult(wrapToResponse("Nothing to tag of " + uid, SUCCESS,
+                    new HashMap<Id, ContentCatalogEntry>()));
+            return;
+        }
+
+        // The entries we already hold for these contents, and the latest
+        // version of the owner profile among them
+        final Map<Id, ContentCatalogEntry> known = new HashMap<Id, ContentCatalogEntry>();
+        ContentCatalogEntry ownerEntry = null;
+        for (SocialCatalog scat : user.getTagContentList().values()) {
+            for (ContentCatalogEntry cce : scat.getContentCatalogEntries()) {
+                if (!cce.getUID().equals(uid))
+                    continue;
+                if (ownerEntry == null || cce.getUserProfileVersion() > ownerEntry.getUserProfileVersion())
+                    ownerEntry = cce;
+                String checksum = cce.getCheckSum();
+                if (checksum == null)
+                    continue;
+                Id contentId = factory.buildIdFromToString(checksum);
+                if (batch.containsKey(contentId) && !known.containsKey(contentId))
+                    known.put(contentId, cce);
+            }
+        }
+        Map<Id, Long> knownProfiles = new HashMap<Id, Long>();
+        for (Map.Entry<Id, ContentCatalogEntry> e : known.entrySet())
+            if (e.getValue().getContentProfileVersion() != 0)
+                knownProfiles.put(e.getKey(), e.getValue().getContentProfileVersion());
+        final ContentProfile knownOwnerProfile = (ownerEntry != null) ? ownerEntry.getUserProfile() : null;
+        long knownOwnerVersion = (knownOwnerProfile != null) ? ownerEntry.getUserProfileVersion() : 0;
+
+        HashMap<String, Object> extra_args = new HashMap<String, Object>();
+        Friend friend = user.getFriends().get(uid);
+        if (friend != null)
+            extra_args.put("nodeHandle", friend.getNodeHandle());
+        extra_args.put("PDU", new TagBatchPDU(batch, knownProfiles, knownOwnerVersion));
+
+        // Issue a lookup request to the underline DHT service
+        lookup(uid, TagContentBatchMessage.TYPE, extra_args,
+                new StandardContinuation<Object, Exception>(command) {
+
+                    public void receiveResult(Object result) {
+                        if (!(result instanceof TagBatchReplyPDU)) {
+                            parent.receiveResult(wrapToResponse(
+                                    "Failed to tag " + batch.size() + " contents of " + uid,
+                                    FAILURE, result));
+                            return;
+                        }
+                        TagBatchReplyPDU reply = (TagBatchReplyPDU) result;
+                        ContentProfile ownerProfile = (reply.getOwnerProfile() != null) ?
+                                reply.getOwnerProfile() : knownOwnerProfile;
+
+                        // Build the entries, reusing the ones still current
+                        HashMap<Id, ContentCatalogEntry> entries = new HashMap<Id, ContentCatalogEntry>();
+                        Map<ContentCatalogEntry, ContentCatalogEntry> replaced =
+                                new HashMap<ContentCatalogEntry, ContentCatalogEntry>();
+                        Map<String, List<ContentCatalogEntry>> tagEntries =
+                                new HashMap<String, List<ContentCatalogEntry>>();
+                        for (Map.Entry<Id, ContentProfile> e : batch.entrySet()) {
+                            Id contentId = e.getKey();
+                            if (reply.getMissing().contains(contentId))
+                                continue;
+                            ContentCatalogEntry old = known.get(contentId);
+                            ContentProfile cp = reply.getContentProfiles().get(contentId);
+                            if (cp == null) {
+                                if (old == null)
+                                    continue;
+                                cp = old.getContentProfile();
+                            }
+                            ContentCatalogEntry cce;
+                            if (old != null && old.getContentProfile() == cp &&
+                                    old.getUserProfileVersion() == reply.getOwnerVersion()) {
+                                cce = old;
+                            } else {
+                                cce = new ContentCatalogEntry(uid, cp, reply.getContentVersion(contentId),
+                                        ownerProfile, reply.getOwnerVersion());
+                                if (old != null)
+                                    replaced.put(old, cce);
+                            }
+                            entries.put(contentId, cce);
+                            for (ContentField cftag : e.getValue().getAllFields()) {
+                                List<ContentCatalogEntry> list = tagEntries.get(cftag.getFieldName());
+                                if (list == null)
+                                    tagEntries.put(cftag.getFieldName(), list = new ArrayList<ContentCatalogEntry>());
+                                list.add(cce);
+                            }
+                        }
+
+                        // Now update the SocialCatalogs (Tagers inverted list)
+                        Map<String, SocialCatalog> invMap = user.getTagContentList();
+                        if (!replaced.isEmpty())
+                            for (SocialCatalog scat : invMap.values())
+                                for (Map.Entry<ContentCatalogEntry, ContentCatalogEntry> e : replaced.entrySet())
+                                    if (scat.getContentCatalogEntries().contains(e.getKey()))
+                                        scat.replaceContentCatalogEntry(e.getKey(), e.getValue());
+                        for (Map.Entry<String, List<ContentCatalogEntry>> e : tagEntries.entrySet()) {
+                            SocialCatalog scat = invMap.get(e.getKey());
+                            if (scat == null)
+                                scat = new SocialCatalog(e.getKey());
+                            scat.addContentCatalogEntries(e.getValue());
+                            user.addTagContentList(e.getKey(), scat);
+                        }
+
+                        parent.receiveResult(wrapToResponse(
+                                "Tagged " + entries.size() + " of " + batch.size() + " contents of " + uid,
+                                (entries.size() == batch.size()) ? SUCCESS : FAILURE, entries));
+                    }
+
+                    public void receiveException(Exception result) {
+                        parent.receiveResult(wrapToResponse(
+                                "Failed to tag " + batch.size() + " contents of " + uid,
+                                EXCEPTION, result));
+                    }
+                });
+    }
+
     /**
      * Index fuction for the specified URL profile (set of tags). It is
      * translated into an insert request to the underline network. An
@@ -1139,8 +1832,19 @@ public class CatalogService extends PastImpl implements SocService {
      *
      * @param file
      */
-    @SuppressWarnings("rawtypes")
     public void indexContent(final File file, final Continuation<Object, Exception> command) {
+        indexContent(file, null, command);
+    }
+
+    /**
+     * As indexContent(File, Continuation), for a file whose SHA-1 checksum is
+     * already known, so that it is not read again to compute it.
+     *
+     * @param file
+     * @param sha1 The hex SHA-1 checksum of the file, or null
+     */
+    @SuppressWarnings("rawtypes")
+    public void indexContent(final File file, final String sha1, final Continuation<Object, Exception> command) {
 
         if (this.user == null) {
             command.receiveException(new RuntimeException("User has not be registered yet!"));
@@ -1150,7 +1854,7 @@ public class CatalogService extends PastImpl implements SocService {
         try {
             // Metadata extraction, Field creation, Analysis, Tokenization, TF
             // computation
-            final ContentProfile cp = cpf.buildContentProfile(file);
+            final ContentProfile cp = cpf.buildContentProfile(file, sha1);
             if (cp == null) {
                 command.receiveException(new RuntimeException("Empty profile!"));
                 return;
@@ -1179,32 +1883,16 @@ public class CatalogService extends PastImpl implements SocService {
             // Convenience for use in MultiContinuation inner Class
             final Id chsum = checksum;
 
-            // Our data which will travel through the network!!!
+            // Our data which will travel through the network!!! The profile
+            // is referenced by version wherever the Catalog already has it.
+            final long profileVersion = user.getProfileVersion();
             ContentCatalogEntry cce = new ContentCatalogEntry(user.getUID(),
-                    cp, user.getPublicUserProfile());
+                    cp, user.getPublicUserProfile(), profileVersion);
+            ContentCatalogEntry cceRef = new ContentCatalogEntry(user.getUID(),
+                    cp, null, profileVersion);
 
             // Create MultiContinuation
-            Set<String> indexingTerms = new HashSet<String>(); // holds the
-            // indexing
-            // terms
-            // (Strings)
-            it = fields.listIterator();
-            while (it.hasNext()) {
-                cf = it.next();
-                if (cf instanceof TermField) { // These fields are indexed as
-                    // whole
-                    TermField termf = (TermField) cf;
-                    indexingTerms.add(termf.getFieldData());
-
-                } else if (cf instanceof TokenizedField) { // These fields are
-                    // indexed
-                    TokenizedField tokf = (TokenizedField) cf;
-                    String[] terms = tokf.getTerms();
-                    for (int i = 0; i < terms.length; i++) {
-                        indexingTerms.add(terms[i]);
-                    }
-                }
-            }
+            Set<String> indexingTerms = indexingTerms(cp);
 
             int termscount = indexingTerms.size();
             if (termscount == 0) {
@@ -1268,10 +1956,11 @@ public class CatalogService extends PastImpl implements SocService {
                 while (iter.hasNext()) {
                     term = iter.next();
                     tid = factory.buildId(term);
-                    PastContent pdu = new InsertPDU(tid, cce, null);
+                    PastContent pdu = new InsertPDU(tid, entryForTID(tid, cce, cceRef), null);
                     Continuation c = new NamedContinuation(
-                            "InsertMessage (InsertPDU) for " + tid, multi
-                            .getSubContinuation(index));
+                            "InsertMessage (InsertPDU) for " + tid,
+                            profileSentContinuation(tid, profileVersion,
+                                    subContinuation(multi, index)));
                     index++;
                     insert(pdu, c); // Here is the message post
                     iter.remove();
@@ -1283,17 +1972,304 @@ public class CatalogService extends PastImpl implements SocService {
         }
     }
 
-    private void catalogToTermVector(Vector<String> v, CatalogEntry ce) {
-        if (v == null || ce == null)
+    /**
+     * Shares all the files under a directory. Files are profiled in parallel
+     * on a bounded worker pool, content already shared (or met twice in the
+     * directory) is skipped by its SHA-1 checksum before it is extracted, and
+     * the index inserts of every indexBatchSize files are merged per TID, so
+     * that each Catalog node receives one InsertPDU per batch instead of one
+     * per file.
+     *
+     * @param root     the directory to share
+     * @param progress receives a status Map (see DirectoryIndexing) after
+     *                 every batch; may be null
+     * @param command  receives the final status Map
+     */
+    public void indexDirectory(File root, Continuation<Object, Exception> progress,
+                               Continuation<Object, Exception> command) {
+        if (this.user == null) {
+            command.receiveException(new RuntimeException("User has not be registered yet!"));
             return;
-        if (ce instanceof UserCatalogEntry) {
-            ContentProfile cp = ((UserCatalogEntry) ce).getUserProfile();
-            if (cp != null && cp.getPublicFields().size() > 0) {
-                for (ContentField cf : cp.getPublicFields()) {
-                    if (cf instanceof TermField) {
-                        v.add(((TermField) cf).getFieldData());
-                    } else if (cf instanceof TokenizedField) {
-                        for (String s : ((TokenizedField) cf).getTerms())
+        }
+        if (!root.isDirectory() || !root.canRead()) {
+            command.receiveException(new IOException("Cannot read directory " + root));
+            return;
+        }
+        new DirectoryIndexing(root, progress, command).start();
+    }
+
+    /**
+     * The state of one indexDirectory() run. The status Maps reported hold
+     * the number of files found, skipped as duplicates, skipped for having
+     * no public terms to index, indexed and failed so far.
+     */
+    private class DirectoryIndexing {
+
+        private class ProfiledFile {
+            private final File file;
+            private final Id checksum;
+            private final ContentProfile cp;
+
+            private ProfiledFile(File file, Id checksum, ContentProfile cp) {
+                this.file = file;
+                this.checksum = checksum;
+                this.cp = cp;
+            }
+        }
+
+        private final File root;
+        private final Continuation<Object, Exception> progress;
+        private final Continuation<Object, Exception> command;
+
+        // Checksums of the files met so far
+        private final Set<Id> seen = Collections.synchronizedSet(new HashSet<Id>());
+
+        // Profiled files waiting to be inserted
+        private List<ProfiledFile> batch = new ArrayList<ProfiledFile>();
+
+        // Walk, profiling tasks and batch inserts still running
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final AtomicInteger numFiles = new AtomicInteger();
+        private final AtomicInteger numDuplicates = new AtomicInteger();
+        private final AtomicInteger numSkipped = new AtomicInteger();
+        private final AtomicInteger numIndexed = new AtomicInteger();
+        private final AtomicInteger numFailed = new AtomicInteger();
+
+        private DirectoryIndexing(File root, Continuation<Object, Exception> progress,
+                                  Continuation<Object, Exception> command) {
+            this.root = root;
+            this.progress = progress;
+            this.command = command;
+        }
+
+        private void start() {
+            pending.incrementAndGet();
+            // The walk gets its own thread: on indexPool it could end up on
+            // the caller's (e.g. a Jetty) thread while the pool is saturated
+            Thread walker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        walk();
+                    } finally {
+                        done();
+                    }
+                }
+            }, "DirectoryIndexing " + root);
+            walker.setDaemon(true);
+            walker.start();
+        }
+
+        // Breadth-first, as ContentProfileFactory.buildFromDir()
+        private void walk() {
+            LinkedList<File> dirs = new LinkedList<File>();
+            dirs.add(root);
+            while (!dirs.isEmpty()) {
+                File[] subs = dirs.removeFirst().listFiles();
+                if (subs == null)
+                    continue;
+                for (final File f : subs) {
+                    if (f.isDirectory()) {
+                        dirs.add(f);
+                        continue;
+                    }
+                    numFiles.incrementAndGet();
+                    pending.incrementAndGet();
+                    indexPool.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                profile(f);
+                            } finally {
+                                done();
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        private void profile(File f) {
+            try {
+                // Hash first, so that duplicates are never extracted
+                String sha1 = cpf.digestFile(f);
+                Id checksum = (sha1 != null) ? factory.buildIdFromToString(sha1) :
+                        factory.buildId(f.getAbsolutePath());
+                if (!seen.add(checksum) || user.getSharedContent().containsKey(checksum)) {
+                    numDuplicates.incrementAndGet();
+                    return;
+                }
+                ContentProfile cp = cpf.buildContentProfile(f, sha1);
+                List<ProfiledFile> full = null;
+                synchronized (this) {
+                    batch.add(new ProfiledFile(f, checksum, cp));
+                    if (batch.size() >= indexBatchSize)
+                        full = takeBatch();
+                }
+                if (full != null)
+                    flush(full);
+            } catch (IOException e) {
+                if (logger.level <= Logger.WARNING)
+                    logger.log("Could not profile " + f + ": " + e.getMessage());
+                numFailed.incrementAndGet();
+            }
+        }
+
+        private synchronized List<ProfiledFile> takeBatch() {
+            List<ProfiledFile> ret = batch;
+            batch = new ArrayList<ProfiledFile>();
+            return ret;
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() > 0)
+                return;
+            // Nothing else is running; send what is left
+            List<ProfiledFile> rest = takeBatch();
+            if (!rest.isEmpty()) {
+                flush(rest);
+                return;
+            }
+            saveProfileCache();
+            command.receiveResult(getStatus());
+        }
+
+        private Map<String, Object> getStatus() {
+            Map<String, Object> status = new HashMap<String, Object>();
+            status.put("files", numFiles.get());
+            status.put("duplicates", numDuplicates.get());
+            status.put("skipped", numSkipped.get());
+            status.put("indexed", numIndexed.get());
+            status.put("failed", numFailed.get());
+            return status;
+        }
+
+        /**
+         * Inserts a batch of files, merging their entries per TID. The
+         * Catalog keeps one content entry per user anyway, merging the
+         * profiles of all the files of the user indexed under the TID.
+         * Files with no public terms are skipped, as they cannot be indexed.
+         */
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        private void flush(List<ProfiledFile> profiled) {
+            pending.incrementAndGet();
+            final List<ProfiledFile> files = new ArrayList<ProfiledFile>(profiled.size());
+            final Map<Id, ContentProfile> merged = new HashMap<Id, ContentProfile>();
+            for (ProfiledFile pf : profiled) {
+                Set<String> terms = indexingTerms(pf.cp);
+                if (terms.isEmpty()) {
+                    numSkipped.incrementAndGet();
+                    continue;
+                }
+                files.add(pf);
+                for (String term : terms) {
+                    Id tid = factory.buildId(term);
+                    ContentProfile tidProfile = merged.get(tid);
+                    if (tidProfile == null)
+                        merged.put(tid, new ContentProfile(pf.cp));
+                    else
+                        for (ContentField cf : pf.cp.getAllFields())
+                            tidProfile.add(cf);
+                }
+            }
+            if (merged.isEmpty()) {
+                batchDone(files, true);
+                return;
+            }
+
+            final MultiContinuation multi = new MultiContinuation(new Continuation() {
+                public void receiveResult(Object result) {
+                    batchDone(files, true);
+                }
+
+                public void receiveException(Exception exception) {
+                    if (logger.level <= Logger.WARNING)
+                        logger.logException("Batch of " + files.size() + " files:", exception);
+                    batchDone(files, false);
+                }
+            }, merged.size()) {
+                public boolean isDone() throws Exception {
+                    int numSuccess = 0;
+                    for (int i = 0; i < haveResult.length; i++)
+                        if ((haveResult[i]) && (result[i] instanceof Boolean[]))
+                            numSuccess++;
+
+                    if (numSuccess >= (SUCCESSFUL_INSERT_THRESHOLD * haveResult.length))
+                        return true;
+
+                    if (super.isDone())
+                        parent.receiveException(new Exception("Had only " + numSuccess
+                                + " successful inserted indices out of "
+                                + result.length + " - aborting."));
+                    return false;
+                }
+            };
+
+            // Hand the inserts over to the selector thread, as the overlay
+            // is not to be used from the worker threads
+            environment.getSelectorManager().invoke(new Runnable() {
+                public void run() {
+                    long profileVersion = user.getProfileVersion();
+                    int index = 0;
+                    for (Map.Entry<Id, ContentProfile> e : merged.entrySet()) {
+                        Id tid = e.getKey();
+                        ContentCatalogEntry cce = new ContentCatalogEntry(user.getUID(),
+                                e.getValue(), user.getPublicUserProfile(), profileVersion);
+                        ContentCatalogEntry cceRef = new ContentCatalogEntry(user.getUID(),
+                                e.getValue(), null, profileVersion);
+                        Continuation c = new NamedContinuation(
+                                "InsertMessage (InsertPDU) for " + tid,
+                                profileSentContinuation(tid, profileVersion,
+                                        subContinuation(multi, index++)));
+                        insert(new InsertPDU(tid, entryForTID(tid, cce, cceRef), null), c);
+                    }
+                }
+            });
+        }
+
+        private void batchDone(List<ProfiledFile> files, boolean success) {
+            if (success) {
+                for (ProfiledFile pf : files) {
+                    user.addSharedContent(pf.checksum, pf.file);
+                    user.addSharedContentProfile(pf.checksum, null, pf.cp);
+                }
+                numIndexed.addAndGet(files.size());
+            } else {
+                numFailed.addAndGet(files.size());
+            }
+            if (progress != null)
+                progress.receiveResult(getStatus());
+            done();
+        }
+    }
+
+    /**
+     * @return the terms under which a content profile is indexed
+     */
+    private Set<String> indexingTerms(ContentProfile cp) {
+        Set<String> indexingTerms = new HashSet<String>();
+        for (ContentField cf : cp.getPublicFields()) {
+            if (cf instanceof TermField) { // These fields are indexed as whole
+                indexingTerms.add(((TermField) cf).getFieldData());
+            } else if (cf instanceof TokenizedField) { // These fields are indexed
+                String[] terms = ((TokenizedField) cf).getTerms();
+                for (int i = 0; i < terms.length; i++)
+                    indexingTerms.add(terms[i]);
+            }
+        }
+        return indexingTerms;
+    }
+
+    private void catalogToTermVector(Vector<String> v, CatalogEntry ce) {
+        if (v == null || ce == null)
+            return;
+        if (ce instanceof UserCatalogEntry) {
+            ContentProfile cp = ((UserCatalogEntry) ce).getUserProfile();
+            if (cp != null && cp.getPublicFields().size() > 0) {
+                for (ContentField cf : cp.getPublicFields()) {
+                    if (cf instanceof TermField) {
+                        v.add(((TermField) cf).getFieldData());
+                    } else if (cf instanceof TokenizedField) {
+                        for (String s : ((TokenizedField) cf).getTerms())
                             v.add(s);
                     }
                 }
@@ -1464,8 +2440,9 @@ public class CatalogService extends PastImpl implements SocService {
 
         ContentCatalogEntry uceAdd = null, uceDel = null;
         ContentProfile cpDel = null;
+        final long profileVersion = user.getProfileVersion();
         if (additions != null)
-            uceAdd = new ContentCatalogEntry(user.getUID(), additions, user.getPublicUserProfile());
+            uceAdd = new ContentCatalogEntry(user.getUID(), additions, user.getPublicUserProfile(), profileVersion);
         if (deletions != null) {
             cpDel = deletions.getPublicPart();
             uceDel = new ContentCatalogEntry(user.getUID(), deletions, null);
@@ -1481,7 +2458,8 @@ public class CatalogService extends PastImpl implements SocService {
         cce.add(uceAdd);
         cce.subtract(uceDel);
         user.addSharedContentProfile(chsum, identifier, cce.getContentProfile());
-        uceAdd = new ContentCatalogEntry(user.getUID(), cp.getPublicPart(), user.getPublicUserProfile());
+        uceAdd = new ContentCatalogEntry(user.getUID(), cp.getPublicPart(), user.getPublicUserProfile(), profileVersion);
+        final ContentCatalogEntry uceAddRef = new ContentCatalogEntry(user.getUID(), cp.getPublicPart(), null, profileVersion);
         uceDel = (cpDel != null) ? new ContentCatalogEntry(user.getUID(), cpDel.getPublicPart(), null) : null;
 
         // Vector of indexing terms (Strings)
@@ -1555,10 +2533,10 @@ public class CatalogService extends PastImpl implements SocService {
         int index = 0;
         for (String term : indexingTerms) {
             Id tid = factory.buildId(term);
-            PastContent pdu = new InsertPDU(tid, uceAdd, uceDel);
+            PastContent pdu = new InsertPDU(tid, entryForTID(tid, uceAdd, uceAddRef), uceDel);
             Continuation c = new NamedContinuation(
                     "InsertMessage (InsertPDU) for " + tid + "(" + term + ")",
-                    multi.getSubContinuation(index));
+                    profileSentContinuation(tid, profileVersion, subContinuation(multi, index)));
             index++;
             insert(pdu, c); // Here is the message post
         }
@@ -1582,37 +2560,39 @@ public class CatalogService extends PastImpl implements SocService {
     /**
      * Wrapper for searchQuery to help searching only for users.
      */
-    public void searchContent(final String rawQuery, final int k,
-                              final Continuation<Object, Exception> command) {
-        searchQuery(QueryPDU.CONTENTQUERY, rawQuery, k, command);
+    public int searchContent(final String rawQuery, final int k,
+                             final Continuation<Object, Exception> command) {
+        return searchQuery(QueryPDU.CONTENTQUERY, rawQuery, k, command);
     }
 
     /**
      * Wrapper for searchQuery to help searching only for users.
      */
-    public void searchUser(final String rawQuery, final int k,
-                           final Continuation<Object, Exception> command) {
-        searchQuery(QueryPDU.USERQUERY, rawQuery, k, command);
+    public int searchUser(final String rawQuery, final int k,
+                          final Continuation<Object, Exception> command) {
+        return searchQuery(QueryPDU.USERQUERY, rawQuery, k, command);
     }
 
     /**
      * Wrapper for searchQuery
      */
-    public void searchQuery(final int queryType, final String rawQuery,
-                            final int k, final Continuation<Object, Exception> command) {
-        searchQuery(queryType, rawQuery, k,
+    public int searchQuery(final int queryType, final String rawQuery,
+                           final int k, final Continuation<Object, Exception> command) {
+        return searchQuery(queryType, rawQuery, k,
                 ContentProfileFactory.DEFAULT_DELIMITER, command);
     }
 
     /**
      * Wrapper for searchQuery
      */
-    public void searchQuery(final int queryType, final String rawQuery,
-                            final int k, final String delimiter, final Continuation<Object, Exception> command) {
-        if (rawQuery == null || rawQuery.trim().equals(""))
+    public int searchQuery(final int queryType, final String rawQuery,
+                           final int k, final String delimiter, final Continuation<Object, Exception> command) {
+        if (rawQuery == null || rawQuery.trim().equals("")) {
             command.receiveException(new Exception("Empty query"));
+            return 1;
+        }
 
-        searchQuery(queryType, rawQueryTokenizer(rawQuery, delimiter), k, command);
+        return searchQuery(queryType, rawQueryTokenizer(rawQuery, delimiter), k, command);
     }
 
     private String[] rawQueryTokenizer(String rawQuery, String delimiter) {
@@ -1707,191 +2687,887 @@ public class CatalogService extends PastImpl implements SocService {
      * @param k          The number of results which are going to be returned as a
      *                   list.
      * @param delimiter  The delimiter for query terms
-     * @param command    A callback
+     * @param command    A callback, invoked once for every term looked up
+     * @return the number of times command is going to be invoked
      */
-    public void searchQuery(int queryType, final String[] queryTerms,
-                            final int k, final Continuation<Object, Exception> command) {
+    public int searchQuery(int queryType, final String[] queryTerms,
+                           final int k, final Continuation<Object, Exception> command) {
 
         if (this.user == null) {
             command.receiveException(new RuntimeException("User has not been registered yet!"));
-            return;
+            return 1;
         }
 
         String[] termsArray = termsToArray(queryType, queryTerms, k);
 
         // Iterate to lookup for every term in query!
         if (termsArray != null && termsArray.length > 0) {
-            final QueryPDU qPDU = new QueryPDU(termsArray, queryType, k,
-                    (queryType == QueryPDU.CONTENT_ENHANCEDQUERY ||
-                            queryType == QueryPDU.USER_ENHANCEDQUERY ||
-                            queryType == QueryPDU.HYBRID_ENHANCEDQUERY) ?
-                            this.user.getPublicUserProfile() : null);
-            for (int i = 0; i < termsArray.length; i++) {
-                // Compute each terms TID
-                final Id querytid = factory.buildId(termsArray[i]);
-
-                storage.getObject(querytid, new StandardContinuation<Object, Exception>(command) {
-                    @SuppressWarnings("rawtypes")
-                    public void receiveResult(Object o) {
-                        if (o != null) {
-                            // Do the similarity computation and scoring of terms and
-                            // return a mini ScoredCatalog (PastContent)
-                            if (o instanceof Catalog) {
-                                int type = qPDU.getType();
-                                Hashtable entries = ((Catalog) o).getCatalogEntriesForQueryType(type);
-                                // Leave the job to be done asynchronously by the
-                                // Scorer thread
-                                scorer.addRequest(new SimilarityRequest(
-                                        entries.values(), qPDU.getData(), type,
-                                        qPDU.getK(),
-                                        qPDU.getSourceUserProfile(), parent, 0));
-                                scorer.doNotify();
-                            } else {
-                                // debugging only
-                                if (logger.level <= Logger.INFO)
-                                    logger.log("Error: o is not Catalog (in deliver)");
-                                // send result back
-                                parent.receiveResult(new ResponsePDU(0));
+            return lookupQueryTerms(newQueryPDU(queryType, termsArray, k), termsArray, command);
+        }
+        command.receiveException(new Exception("Empty query"));
+        return 1;
+    }
+
+    /**
+     * Wrapper for searchQueryExpanded to help searching only for content.
+     */
+    public int searchContentExpanded(final String rawQuery, final int k,
+                                     final Continuation<Object, Exception> command) {
+        if (rawQuery == null || rawQuery.trim().equals("")) {
+            command.receiveException(new Exception("Empty query"));
+            return 1;
+        }
+
+        return searchQueryExpanded(QueryPDU.CONTENTQUERY,
+                rawQueryTokenizer(rawQuery, ContentProfileFactory.DEFAULT_DELIMITER), k, command);
+    }
+
+    /**
+     * As searchQuery, but if fewer than k results are found, the query is
+     * augmented with tags from the tag clouds of the top content results and
+     * the nodes of the new terms are looked up as well (see QueryExpander),
+     * without another round trip to the caller. The results of both rounds
+     * are merged here, instead of by the caller.
+     *
+     * @param queryType  Specify the type of entities we search for.
+     * @param queryTerms The terms given which will be searched.
+     * @param k          The number of results which are going to be returned as a
+     *                   list.
+     * @param command    Receives a ResponsePDU with the merged results once,
+     *                   or null if no term node answered.
+     * @return the number of times command is going to be invoked (once)
+     */
+    public int searchQueryExpanded(int queryType, final String[] queryTerms,
+                                   final int k, final Continuation<Object, Exception> command) {
+
+        if (this.user == null) {
+            command.receiveException(new RuntimeException("User has not been registered yet!"));
+            return 1;
+        }
+
+        String[] termsArray = termsToArray(queryType, queryTerms, k);
+        if (termsArray == null || termsArray.length == 0) {
+            command.receiveException(new Exception("Empty query"));
+            return 1;
+        }
+        new QueryExpander(queryType, termsArray, k, command).start();
+        return 1;
+    }
+
+    private QueryPDU newQueryPDU(int queryType, String[] termsArray, int k) {
+        return new QueryPDU(termsArray, queryType, k,
+                (queryType == QueryPDU.CONTENT_ENHANCEDQUERY ||
+                        queryType == QueryPDU.USER_ENHANCEDQUERY ||
+                        queryType == QueryPDU.HYBRID_ENHANCEDQUERY) ?
+                        this.user.getPublicUserProfile() : null);
+    }
+
+    /**
+     * A tag cloud fetched for query expansion, and when
+     */
+    private static class CachedTagCloud {
+        private final TagCloud cloud;
+        private final long fetched;
+
+        private CachedTagCloud(TagCloud cloud, long fetched) {
+            this.cloud = cloud;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * Runs a DHT search in up to two rounds. When the first round, the lookup
+     * of the query terms, returns fewer than k results, the tag clouds of its
+     * top content results are fetched (one message per owner, unless they are
+     * cached) and the tags most frequent in them, weighted by the score of
+     * their results, become expansion terms. The second round looks up only
+     * the expansion terms, scoring against the whole expanded query; its
+     * scores are scaled by expansionWeight, so that results of the original
+     * query rank first, and both rounds are merged into a single top-k.
+     */
+    private class QueryExpander implements Continuation<Object, Exception> {
+        // Lookup of the query terms, fetching of tag clouds, lookup of the
+        // expansion terms, done
+        private static final int QUERY = 0;
+        private static final int CLOUDS = 1;
+        private static final int EXPANSION = 2;
+        private static final int FINISHED = 3;
+
+        private final int queryType;
+        private final String[] terms;
+        private final int k;
+        private final Continuation<Object, Exception> command;
+
+        private int phase = QUERY;
+
+        // Responses expected in the current round, -1 until known
+        private int expected = -1;
+        private int received = 0;
+        private int failed = 0;
+        private int numMessages = 0;
+
+        // The merged results of the first and the second round
+        private ScoreBoard results = null;
+        private ScoreBoard expandedResults = null;
+
+        // Content Id -> score of the first round results whose clouds are used
+        private final Map<Id, Float> contentScores = new LinkedHashMap<Id, Float>();
+        private final Map<Id, TagCloud> clouds = new HashMap<Id, TagCloud>();
+        private int cloudsPending = 0;
+        private TimerTask deadlineTask = null;
+
+        private QueryExpander(int queryType, String[] terms, int k,
+                              Continuation<Object, Exception> command) {
+            this.queryType = queryType;
+            this.terms = terms;
+            this.k = k;
+            this.command = command;
+        }
+
+        private synchronized void start() {
+            expect(lookupQueryTerms(newQueryPDU(queryType, terms, k), terms, this));
+        }
+
+        private void expect(int expected) {
+            this.expected = expected;
+            if (received >= expected)
+                roundDone();
+        }
+
+        public synchronized void receiveResult(Object o) {
+            received++;
+            ScoreBoard sb;
+            if (o instanceof ResponsePDU) {
+                numMessages += ((ResponsePDU) o).getMessagesCounter();
+                if ((sb = ((ResponsePDU) o).getScoreBoard()) != null &&
+                        sb.getAllEntries() != null && !sb.getAllEntries().isEmpty()) {
+                    if (phase == QUERY)
+                        results = ScoreBoard.merge(results, sb, k);
+                    else
+                        expandedResults = ScoreBoard.merge(expandedResults, sb, k);
+                }
+            } else if (phase == QUERY) {
+                failed++;
+            }
+            if (expected >= 0 && received >= expected)
+                roundDone();
+        }
+
+        public synchronized void receiveException(Exception e) {
+            received++;
+            if (phase == QUERY)
+                failed++;
+            if (expected >= 0 && received >= expected)
+                roundDone();
+        }
+
+        private void roundDone() {
+            if (phase == QUERY)
+                fetchClouds();
+            else if (phase == EXPANSION)
+                finish();
+        }
+
+        private void fetchClouds() {
+            int found = (results != null && results.getAllEntries() != null) ?
+                    results.getAllEntries().size() : 0;
+            if (k < 0 || found >= k || found == 0 || expansionTerms <= 0) {
+                finish();
+                return;
+            }
+            phase = CLOUDS;
+
+            // Group the clouds we miss by the owner of their content
+            Map<Id, List<Id>> missing = new HashMap<Id, List<Id>>();
+            for (ScoreBoard.Score sc : results.getAllEntries()) {
+                if (contentScores.size() >= expansionResults)
+                    break;
+                if (!(sc.getEntry() instanceof ContentCatalogEntry))
+                    continue;
+                String checksum = ((ContentCatalogEntry) sc.getEntry()).getCheckSum();
+                if (checksum == null)
+                    continue;
+                Id contentId = factory.buildIdFromToString(checksum);
+                contentScores.put(contentId, (sc.getScore() != null) ? sc.getScore() : 0);
+                CachedTagCloud cached = tagCloudCache.get(contentId);
+                if (cached != null && environment.getTimeSource().currentTimeMillis() -
+                        cached.fetched < tagCloudCacheTTL) {
+                    clouds.put(contentId, cached.cloud);
+                    continue;
+                }
+                Id owner = sc.getEntry().getUID();
+                List<Id> ids = missing.get(owner);
+                if (ids == null)
+                    missing.put(owner, ids = new ArrayList<Id>());
+                ids.add(contentId);
+            }
+            if (missing.isEmpty()) {
+                expand();
+                return;
+            }
+
+            if (expansionDeadline > 0) {
+                deadlineTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        cloudsExpired();
+                    }
+                };
+                environment.getSelectorManager().getTimer().schedule(deadlineTask, expansionDeadline);
+            }
+            cloudsPending = missing.size();
+            for (Map.Entry<Id, List<Id>> e : missing.entrySet()) {
+                final List<Id> requested = e.getValue();
+                retrieveTagClouds(e.getKey(), requested, expansionCloudTags,
+                        new Continuation<Object, Exception>() {
+                            public void receiveResult(Object result) {
+                                cloudsArrived(requested, result);
+                            }
+
+                            public void receiveException(Exception exception) {
+                                cloudsArrived(requested, null);
                             }
+                        });
+            }
+        }
+
+        /**
+         * @param requested The content Ids whose clouds were asked for
+         * @param result    The reply of their owner; only the clouds asked for
+         *                  are kept
+         */
+        @SuppressWarnings("rawtypes")
+        private synchronized void cloudsArrived(List<Id> requested, Object result) {
+            if (phase != CLOUDS)
+                return;
+            if (result instanceof Map) {
+                long now = environment.getTimeSource().currentTimeMillis();
+                for (Id contentId : requested) {
+                    Object cloud = ((Map) result).get(contentId);
+                    if (!(cloud instanceof TagCloud))
+                        continue;
+                    tagCloudCache.put(contentId, new CachedTagCloud((TagCloud) cloud, now));
+                    clouds.put(contentId, (TagCloud) cloud);
+                }
+            }
+            if (--cloudsPending == 0)
+                expand();
+        }
+
+        private synchronized void cloudsExpired() {
+            if (phase != CLOUDS)
+                return;
+            if (logger.level <= Logger.INFO)
+                logger.log("Query expansion deadline expired; " + cloudsPending +
+                        " owners did not return their tag clouds");
+            expand();
+        }
+
+        private void expand() {
+            phase = EXPANSION;
+            if (deadlineTask != null)
+                deadlineTask.cancel();
+            String[] expansion = pickExpansionTerms();
+            if (expansion.length == 0) {
+                finish();
+                return;
+            }
+            if (logger.level <= Logger.FINE)
+                logger.log("Expanding query " + Arrays.toString(terms) + " with " +
+                        Arrays.toString(expansion));
+
+            String[] expanded = new String[terms.length + expansion.length];
+            System.arraycopy(terms, 0, expanded, 0, terms.length);
+            System.arraycopy(expansion, 0, expanded, terms.length, expansion.length);
+            expected = -1;
+            received = 0;
+            expect(lookupQueryTerms(newQueryPDU(queryType, expanded, k), expansion, this));
+        }
+
+        /**
+         * @return the (up to) expansionTerms terms of the fetched clouds that
+         *         are not part of the query, with the highest sum of relative
+         *         TF times the score of the result whose cloud they belong to
+         */
+        private String[] pickExpansionTerms() {
+            Set<String> query = new HashSet<String>(Arrays.asList(terms));
+            final Map<String, Float> weights = new HashMap<String, Float>();
+            for (Map.Entry<Id, TagCloud> e : clouds.entrySet()) {
+                TagCloud cloud = e.getValue();
+                List<ContentField> top = cloud.getTopTags(1);
+                if (top.isEmpty())
+                    continue;
+                float maxTF = cloud.getTagTF(top.get(0));
+                Float score = contentScores.get(e.getKey());
+                if (score == null || maxTF <= 0)
+                    continue;
+                for (ContentField tag : cloud.getTags()) {
+                    float weight = score * cloud.getTagTF(tag) / maxTF;
+                    for (String term : tagTerms(tag)) {
+                        if (term == null || term.equals("") || query.contains(term))
+                            continue;
+                        Float old = weights.get(term);
+                        weights.put(term, (old == null) ? weight : old + weight);
+                    }
+                }
+            }
+            List<String> ret = new ArrayList<String>(weights.keySet());
+            Collections.sort(ret, new Comparator<String>() {
+                public int compare(String t1, String t2) {
+                    return Float.compare(weights.get(t2), weights.get(t1));
+                }
+            });
+            if (ret.size() > expansionTerms)
+                ret = ret.subList(0, expansionTerms);
+            return ret.toArray(new String[ret.size()]);
+        }
+
+        private void finish() {
+            if (phase == FINISHED)
+                return;
+            phase = FINISHED;
+            if (results == null && received > 0 && failed == received) {
+                command.receiveResult(null);
+                return;
+            }
+            ScoreBoard ret = results;
+            if (expandedResults != null) {
+                Map<CatalogEntry, Float> scaled = new HashMap<CatalogEntry, Float>();
+                for (ScoreBoard.Score sc : expandedResults.getAllEntries())
+                    scaled.put(sc.getEntry(), (sc.getScore() != null) ? sc.getScore() * expansionWeight : null);
+                ret = ScoreBoard.merge(results, ScoreBoard.topK(scaled, k), k);
+            }
+            command.receiveResult(new ResponsePDU(numMessages,
+                    (ret != null) ? ret : new ScoreBoard(null, null)));
+        }
+    }
+
+    /**
+     * @return the query terms a tag stands for, as indexingTerms would index
+     *         them
+     */
+    private static String[] tagTerms(ContentField tag) {
+        if (tag instanceof TermField)
+            return new String[]{((TermField) tag).getFieldData()};
+        if (tag instanceof TokenizedField)
+            return ((TokenizedField) tag).getTerms();
+        return new String[0];
+    }
+
+    /**
+     * Looks up a query at the nodes responsible for some of its terms.
+     *
+     * @param qPDU        The query, scored by the term nodes
+     * @param lookupTerms The terms whose nodes are queried
+     * @param command     A callback, invoked once for every term looked up
+     * @return the number of times command is going to be invoked
+     */
+    private int lookupQueryTerms(final QueryPDU qPDU, String[] lookupTerms,
+                                 final Continuation<Object, Exception> command) {
+        for (int i = 0; i < lookupTerms.length; i++) {
+            // Compute each terms TID
+            final Id querytid = factory.buildId(lookupTerms[i]);
+
+            storage.getObject(querytid, new StandardContinuation<Object, Exception>(command) {
+                public void receiveResult(Object o) {
+                    if (o != null) {
+                        // Do the similarity computation and scoring of terms and
+                        // return a mini ScoredCatalog (PastContent)
+                        if (o instanceof Catalog) {
+                            int type = qPDU.getType();
+                            // Capture the current immutable snapshot, so that the
+                            // Scorer thread never races with inserts
+                            CatalogSnapshot snapshot = ((Catalog) o).getSnapshot(type);
+                            // Leave the job to be done asynchronously by the
+                            // Scorer thread
+                            scorer.addRequest(new SimilarityRequest(
+                                    snapshot, qPDU.getData(), type,
+                                    qPDU.getK(),
+                                    qPDU.getSourceUserProfile(), parent, 0));
+                            scorer.doNotify();
                         } else {
-                            // send the request across the wire, and see if the result
-                            // is null or not
-                            sendRequest(querytid, new QueryMessage(getUID(), querytid,
-                                    getLocalNodeHandle(), querytid, qPDU),
-                                    new NamedContinuation("QueryMessage for " + querytid, this) {
-                                        public void receiveResult(final Object o) {
-                                            // if we have an object, we return it otherwise, we must check all replicas in
-                                            // order to make sure that the object doesn't exist anywhere
-                                            if (o != null) {
-                                                command.receiveResult(o);
-                                            } else {
-                                                lookupHandles(querytid, replicationFactor + 1,
-                                                        new Continuation<Object, Exception>() {
-                                                            @SuppressWarnings("unchecked")
-                                                            public void receiveResult(Object o) {
-                                                                PastContentHandle[] handles = (PastContentHandle[]) o;
-
-                                                                for (int i = 0; i < handles.length; i++) {
-                                                                    if (handles[i] != null) {
-                                                                        fetch(handles[i],
-                                                                                new StandardContinuation<Object, Exception>(parent) {
-                                                                                    public void receiveResult(final Object o) {
-                                                                                        command.receiveResult(o);
-                                                                                    }
-                                                                                });
-                                                                        return;
-                                                                    }
+                            // debugging only
+                            if (logger.level <= Logger.INFO)
+                                logger.log("Error: o is not Catalog (in deliver)");
+                            // send result back
+                            parent.receiveResult(new ResponsePDU(0));
+                        }
+                    } else {
+                        // send the request across the wire, and see if the result
+                        // is null or not
+                        sendRequest(querytid, new QueryMessage(getUID(), querytid,
+                                getLocalNodeHandle(), querytid, qPDU),
+                                new NamedContinuation("QueryMessage for " + querytid, this) {
+                                    public void receiveResult(final Object o) {
+                                        // if we have an object, we return it otherwise, we must check all replicas in
+                                        // order to make sure that the object doesn't exist anywhere
+                                        if (o != null) {
+                                            command.receiveResult(o);
+                                        } else {
+                                            lookupHandles(querytid, replicationFactor + 1,
+                                                    new Continuation<Object, Exception>() {
+                                                        @SuppressWarnings("unchecked")
+                                                        public void receiveResult(Object o) {
+                                                            PastContentHandle[] handles = (PastContentHandle[]) o;
+
+                                                            for (int i = 0; i < handles.length; i++) {
+                                                                if (handles[i] != null) {
+                                                                    fetch(handles[i],
+                                                                            new StandardContinuation<Object, Exception>(parent) {
+                                                                                public void receiveResult(final Object o) {
+                                                                                    command.receiveResult(o);
+                                                                                }
+                                                                            });
+                                                                    return;
                                                                 }
-
-                                                                // there were no replicas of the object
-                                                                command.receiveResult(null);
                                                             }
 
-                                                            public void receiveException(Exception e) {
-                                                                command.receiveException(e);
-                                                            }
-                                                        });
-                                            }
-                                        }
+                                                            // there were no replicas of the object
+                                                            command.receiveResult(null);
+                                                        }
 
-                                        public void receiveException(Exception e) {
-                                            // If the lookup message failed , we then
-                                            // try to fetch all of the handles, just
-                                            // in case. This may fail too, but at least
-                                            // we tried.
-                                            receiveResult(null);
+                                                        public void receiveException(Exception e) {
+                                                            command.receiveException(e);
+                                                        }
+                                                    });
                                         }
-                                    });
-                        }
+                                    }
+
+                                    public void receiveException(Exception e) {
+                                        // If the lookup message failed , we then
+                                        // try to fetch all of the handles, just
+                                        // in case. This may fail too, but at least
+                                        // we tried.
+                                        receiveResult(null);
+                                    }
+                                });
                     }
-                });
-            }
-        } else {
-            command.receiveException(new Exception("Empty query"));
+                }
+            });
         }
+        return lookupTerms.length;
+    }
+
+    public int searchFriendsNetwork(final int queryType, final String rawQuery,
+                                    final int k, final Continuation<Object, Exception> command) {
+        return searchFriendsNetwork(queryType, rawQuery, k, 0, command);
     }
 
-    public void searchFriendsNetwork(final int queryType, final String rawQuery,
-                                     final int k, final Continuation<Object, Exception> command) {
-        if (rawQuery == null || rawQuery.trim().equals(""))
+    public int searchFriendsNetwork(final int queryType, final String rawQuery,
+                                    final int k, final int ttl, final Continuation<Object, Exception> command) {
+        if (rawQuery == null || rawQuery.trim().equals("")) {
             command.receiveException(new Exception("Empty query"));
+            return 1;
+        }
 
-        searchFriendsNetwork(queryType, rawQueryTokenizer(rawQuery, ContentProfileFactory.DEFAULT_DELIMITER), k, command);
+        return searchFriendsNetwork(queryType, rawQueryTokenizer(rawQuery, ContentProfileFactory.DEFAULT_DELIMITER), k, ttl, command);
+    }
+
+    public int searchFriendsNetwork(final int queryType,
+                                    final String[] queryTerms, int topk, final Continuation<Object, Exception> command) {
+        return searchFriendsNetwork(queryType, queryTerms, topk, 0, command);
     }
 
     /**
      * This method uses a query to search in every friend node.
      * <p/>
      * Three query types are supported: CONTENTQUERY, USERQUERY,
-     * HYBRIDQUERY.
+     * HYBRIDQUERY. The friends are queried a few at a time (see
+     * FriendQueryAggregator), the fastest ones first, and their answers are
+     * merged into a single top-k.
+     *
+     * <p/>
+     * With a positive ttl, friends forward the query to their own friends, up
+     * to ttl more times, merging the answers they gather with their own on
+     * the way back. Only the public part of our profile travels past our
+     * friends, and only public content is returned from past them.
      *
      * @param queryType  The type of the query.
      * @param queryTerms The set of terms to search for
-     * @param command    The callback which will be called on response.
+     * @param ttl        How many times the query may be forwarded to friends
+     *                   of friends
+     * @param command    The callback which will be called on response, with a
+     *                   ResponsePDU holding the merged results and the number
+     *                   of friends that answered, or null if none did.
+     * @return the number of times command is going to be invoked (once)
      */
-    public void searchFriendsNetwork(final int queryType,
-                                     final String[] queryTerms, int topk, final Continuation<Object, Exception> command) {
+    public int searchFriendsNetwork(final int queryType,
+                                    final String[] queryTerms, int topk, int ttl,
+                                    final Continuation<Object, Exception> command) {
 
         if (this.user == null) {
             command.receiveException(new RuntimeException("User has not be registered yet!"));
-            return;
+            return 1;
         }
 
         final String[] termsArray = termsToArray(queryType, queryTerms, topk);
+        QueryPDU qPDU = new QueryPDU(termsArray, queryType, topk,
+                (queryType == QueryPDU.CONTENT_ENHANCEDQUERY ||
+                        queryType == QueryPDU.USER_ENHANCEDQUERY ||
+                        queryType == QueryPDU.HYBRID_ENHANCEDQUERY) ? user.getCompleteUserProfile() : null);
+
+        List<Friend> friends = new ArrayList<Friend>(user.getFriends().values());
+        Parameters params = environment.getParameters();
+        long deadline = params.contains("exo_friend_search_deadline") ?
+                params.getLong("exo_friend_search_deadline") : 5000;
+        int fanout = params.contains("exo_friend_search_fanout") ?
+                params.getInt("exo_friend_search_fanout") : 16;
+        ttl = Math.min(ttl, params.contains("exo_friend_search_max_ttl") ?
+                params.getInt("exo_friend_search_max_ttl") : 2);
+        long queryID = 0;
+        if (ttl > 0) {
+            queryID = environment.getRandomSource().nextLong();
+            // Do not answer our own query, should it come back to us
+            seenFriendQueries.add(queryID);
+        }
+        new FriendQueryAggregator(qPDU, topk, friends, deadline, fanout, command)
+                .forward(queryID, (ttl > 0) ? user.getUID() : null, ttl).start();
+        return 1;
+    }
+
+    /**
+     * Answers a friend query; see searchFriendsNetwork(). A query that is to
+     * be forwarded is also sent to our friends (but the one we got it from and
+     * the querier), and our answer is merged with theirs. The TTL, deadline
+     * and fan-out of the query are first capped to our own limits; every hop
+     * then halves the deadline of the next one, and the fan-out too (see
+     * FriendQueryAggregator).
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void answerFriendQuery(final FriendQueryMessage qmsg) {
+        final Continuation reply = getResponseContinuation(qmsg);
+        if (qmsg.getQueryID() != 0 && !seenFriendQueries.add(qmsg.getQueryID())) {
+            // Already answered through another friend
+            reply.receiveResult(null);
+            return;
+        }
+
+        final QueryPDU qPDU = qmsg.getQueryPDU();
+        Id requester = (qmsg.getOrigin() != null) ? qmsg.getOrigin() : qmsg.getSource().getId();
+        List<CatalogEntry> entries = this.user.getCatalogEntriesForQueryType(qPDU.getType(), requester);
+
+        // Never wait or forward longer, wider or further than we would for
+        // our own queries
+        Parameters params = environment.getParameters();
+        int ttl = Math.min(qmsg.getTTL(), params.contains("exo_friend_search_max_ttl") ?
+                params.getInt("exo_friend_search_max_ttl") : 2);
+        long deadline = Math.min(qmsg.getDeadline(), params.contains("exo_friend_search_deadline") ?
+                params.getLong("exo_friend_search_deadline") : 5000);
+        int fanout = Math.min(qmsg.getFanout(), params.contains("exo_friend_search_fanout") ?
+                params.getInt("exo_friend_search_fanout") : 16);
+
+        List<Friend> friends = new ArrayList<Friend>();
+        if (ttl > 0 && deadline > 0 && fanout > 0)
+            for (Friend f : user.getFriends().values())
+                if (!f.getUID().equals(qmsg.getSource().getId()) && !f.getUID().equals(requester))
+                    friends.add(f);
+
+        Continuation local = reply;
+        if (!friends.isEmpty()) {
+            // Merge our answer with those of our friends
+            MultiContinuation multi = new MultiContinuation(reply, 2) {
+                public Object getResult() {
+                    ResponsePDU mine = (result[0] instanceof ResponsePDU) ? (ResponsePDU) result[0] : null;
+                    ResponsePDU theirs = (result[1] instanceof ResponsePDU) ? (ResponsePDU) result[1] : null;
+                    if (mine == null && theirs == null)
+                        return null;
+                    return new ResponsePDU((mine != null) ? mine.getMessagesCounter() : qmsg.getHops(),
+                            ScoreBoard.merge((mine != null) ? mine.getScoreBoard() : null,
+                                    (theirs != null) ? theirs.getScoreBoard() : null, qPDU.getK()));
+                }
+            };
+            local = multi.getSubContinuation(0);
+            ContentProfile sourceProfile = qPDU.getSourceUserProfile();
+            QueryPDU forwarded = new QueryPDU(qPDU.getData(), qPDU.getType(), qPDU.getK(),
+                    (sourceProfile != null) ? sourceProfile.getPublicPart() : null);
+            new FriendQueryAggregator(forwarded, qPDU.getK(), friends, deadline,
+                    fanout, multi.getSubContinuation(1))
+                    .forward(qmsg.getQueryID(), requester, ttl - 1).start();
+        }
+
+        // Leave the job to be done asynchronously by the
+        // Scorer thread
+        scorer.addRequest(new SimilarityRequest(
+                entries, qPDU.getData(),
+                qPDU.getType(), qPDU.getK(),
+                qPDU.getSourceUserProfile(),
+                local, qmsg.getHops()));
+        scorer.doNotify();
+    }
+
+    /**
+     * @return the smoothed time (ms) the friend takes to answer friend
+     *         queries, or null if it has not been queried yet
+     */
+    public Long getFriendLatency(Id uid) {
+        return friendLatencies.get(uid);
+    }
+
+    private void recordFriendLatency(Id uid, long latency) {
+        Long old = friendLatencies.get(uid);
+        friendLatencies.put(uid, (old == null) ? latency : (3 * old + latency) / 4);
+    }
+
+    /**
+     * Scatter-gather of one query over a list of targets (friends, taggers).
+     * At most maxInFlight targets are queried at any time; every answer is
+     * merged into the result gathered so far and makes room for the next
+     * target. The query completes once all reachable targets have answered,
+     * or when the deadline expires, with whatever has been gathered by then.
+     * The command receives a ResponsePDU counting the targets that answered,
+     * or null if none did.
+     * <p/>
+     * Subclasses say how to reach a target (send()) and how to merge its
+     * answer (merge(), result()).
+     */
+    private abstract class QueryAggregator<T> {
+        private final String name;
+        private final LinkedList<T> pending;
+        protected final long deadline;
+        protected final int maxInFlight;
+        private final Continuation<Object, Exception> command;
+
+        // Target UID -> time its query was sent, for the queries in flight
+        private final Map<Id, Long> inFlight = new HashMap<Id, Long>();
+
+        private int numQueried = 0;
+        private int numAnswered = 0;
+        private boolean finished = false;
+        private TimerTask deadlineTask = null;
+
+        protected QueryAggregator(String name, List<T> targets, long deadline,
+                                  int maxInFlight, Continuation<Object, Exception> command) {
+            this.name = name;
+            this.pending = new LinkedList<T>(targets);
+            this.deadline = deadline;
+            this.maxInFlight = Math.max(maxInFlight, 1);
+            this.command = command;
+        }
+
+        /**
+         * @return the UID of target
+         */
+        protected abstract Id uidOf(T target);
+
+        /**
+         * Sends the query to target.
+         *
+         * @param answer Receives the answer of target
+         * @return false if target cannot be reached
+         */
+        protected abstract boolean send(T target, Continuation<Object, Exception> answer);
+
+        /**
+         * Merges the answer of a target into the result gathered so far.
+         */
+        protected abstract void merge(ResponsePDU answer);
+
+        /**
+         * @return the result gathered so far
+         */
+        protected abstract ScoreBoard result();
+
+        /**
+         * Called once per target queried, with the time it took to answer, or
+         * the whole deadline if it had not answered by then.
+         */
+        protected void recordLatency(Id uid, long latency) {
+        }
+
+        protected synchronized void start() {
+            if (deadline > 0) {
+                deadlineTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        expire();
+                    }
+                };
+                environment.getSelectorManager().getTimer().schedule(deadlineTask, deadline);
+            }
+            sendMore();
+            if (inFlight.isEmpty() && pending.isEmpty())
+                finish();
+        }
+
+        private void sendMore() {
+            while (!finished && inFlight.size() < maxInFlight && !pending.isEmpty()) {
+                final T target = pending.removeFirst();
+                final Id uid = uidOf(target);
+                inFlight.put(uid, environment.getTimeSource().currentTimeMillis());
+                numQueried++;
+                boolean sent = send(target, new Continuation<Object, Exception>() {
+                    public void receiveResult(Object o) {
+                        answered(uid, o);
+                    }
+
+                    public void receiveException(Exception e) {
+                        answered(uid, null);
+                    }
+                });
+                if (!sent) {
+                    inFlight.remove(uid);
+                    numQueried--;
+                }
+            }
+        }
+
+        private synchronized void answered(Id uid, Object o) {
+            Long sent = inFlight.remove(uid);
+            if (sent == null)
+                return;
+            recordLatency(uid, environment.getTimeSource().currentTimeMillis() - sent);
+            if (finished)
+                return;
+            if (o instanceof ResponsePDU) {
+                numAnswered++;
+                merge((ResponsePDU) o);
+            }
+            sendMore();
+            if (inFlight.isEmpty() && pending.isEmpty())
+                finish();
+        }
+
+        private synchronized void expire() {
+            if (finished)
+                return;
+            if (logger.level <= Logger.INFO)
+                logger.log(name + " deadline expired; " + numAnswered + " of " +
+                        (numQueried + pending.size()) + " answered");
+            // Late answers find no query in flight and are ignored
+            for (Id uid : inFlight.keySet())
+                recordLatency(uid, deadline);
+            inFlight.clear();
+            finish();
+        }
+
+        private void finish() {
+            if (finished)
+                return;
+            finished = true;
+            if (deadlineTask != null)
+                deadlineTask.cancel();
+            command.receiveResult((numAnswered == 0) ? null : new ResponsePDU(numAnswered, result()));
+        }
+    }
+
+    /**
+     * @return friends, the fastest ones (see getFriendLatency()) first.
+     *         Friends never heard from go first, to get to know them.
+     */
+    private List<Friend> byLatency(List<Friend> friends) {
+        List<Friend> sorted = new ArrayList<Friend>(friends);
+        Collections.sort(sorted, new Comparator<Friend>() {
+            public int compare(Friend f1, Friend f2) {
+                Long l1 = friendLatencies.get(f1.getUID());
+                Long l2 = friendLatencies.get(f2.getUID());
+                return Long.valueOf((l1 != null) ? l1 : 0).compareTo((l2 != null) ? l2 : 0);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Scatter-gather of one friend query (see QueryAggregator). The fastest
+     * friends are queried first, so that most answers make the deadline, and
+     * their answers are merged into a single top-k. Friends still pending at
+     * the deadline are charged the whole deadline as their latency.
+     * <p/>
+     * A friend that forwards the query gets half our deadline and at most
+     * half our fan-out; the fan-out shrinks as the friend's answers approach
+     * our deadline, down to none (answer locally) for friends that miss it.
+     */
+    private class FriendQueryAggregator extends QueryAggregator<Friend> {
+        private final QueryPDU qPDU;
+        private final int k;
+
+        // Multi-hop queries: see FriendQueryMessage
+        private long queryID = 0;
+        private Id origin = null;
+        private int ttl = 0;
+
+        private ScoreBoard merged = null;
+
+        private FriendQueryAggregator(QueryPDU qPDU, int k, List<Friend> friends,
+                                      long deadline, int maxInFlight,
+                                      Continuation<Object, Exception> command) {
+            super("Friend query", byLatency(friends), deadline, maxInFlight, command);
+            this.qPDU = qPDU;
+            this.k = k;
+        }
 
-        Hashtable<Id, Friend> friends = user.getFriends();
-        Id destId = null;
-        NodeHandle nodeHandle = null;
-        int nQueriesSent = 0;
+        /**
+         * Makes the friends forward the query, ttl more times.
+         */
+        private FriendQueryAggregator forward(long queryID, Id origin, int ttl) {
+            this.queryID = queryID;
+            this.origin = origin;
+            this.ttl = ttl;
+            return this;
+        }
 
-        // Iterate to lookup for every node we want to visit!
-        for (Friend friend : friends.values()) {
+        @Override
+        protected Id uidOf(Friend friend) {
+            return friend.getUID();
+        }
 
-            // Get the UID of the specific friend
-            destId = friend.getUID();
-            NodeHandleSet nhset = this.getEndpoint().localLookup(friend.getUID(), 1, true);
+        @Override
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        protected boolean send(Friend friend, Continuation<Object, Exception> answer) {
+            Id uid = friend.getUID();
+            NodeHandleSet nhset = getEndpoint().localLookup(uid, 1, true);
             if (nhset == null || nhset.size() < 1)
-                continue;
+                return false;
             NodeHandle nh = nhset.getHandle(0);
             if (nh == null || nh.checkLiveness() == false)
-                continue;
-            nodeHandle = nh;
-            final Id uid = destId;
-            final QueryPDU qPDU;
-
-            qPDU = new QueryPDU(termsArray, queryType, topk,
-                    (queryType == QueryPDU.CONTENT_ENHANCEDQUERY ||
-                            queryType == QueryPDU.USER_ENHANCEDQUERY ||
-                            queryType == QueryPDU.HYBRID_ENHANCEDQUERY) ? user.getCompleteUserProfile() : null);
-
-            // send the request across the wire, and see if the result is null or not
-            // Use nodeHandle as first hop hint!
-            sendRequest(uid,
-                    new FriendQueryMessage(getUID(), getLocalNodeHandle(), uid, qPDU),
-                    nodeHandle,
-                    new NamedContinuation("FriendQueryMessage for " + uid, command) {
-                        public void receiveResult(final Object o) {
-                            // if we have an object, we return it otherwise, we must check all replicas in order to make sure
-                            // that the object doesn't exist anywhere
-                            if (o != null) {
-                                command.receiveResult(o);
-                            } else {
-                                // TODO : examine if the tager's arrays need to be replicated to the leafset
-                                // If so then here we should put the lookupHandles code as above!!!
-                                command.receiveResult(null); // o is NULL
-                            }
-                        }
+                return false;
 
-                        public void receiveException(Exception e) {
-                            // If the lookup message failed , we then try to fetch all of
-                            // the handles, just in case. This may fail too, but at least we tried.
-                            receiveResult(null);
-                        }
-                    });
-            nQueriesSent++;
+            // Single-hop queries of the querier go out as plain queries;
+            // the last hop of a forwarded one still needs its ID and origin
+            FriendQueryMessage msg;
+            if (queryID == 0 && origin == null)
+                msg = new FriendQueryMessage(getUID(), getLocalNodeHandle(), uid, qPDU);
+            else if (ttl > 0)
+                msg = new FriendQueryMessage(getUID(), getLocalNodeHandle(), uid, qPDU,
+                        queryID, origin, ttl, deadline / 2, fanoutOf(uid));
+            else
+                msg = new FriendQueryMessage(getUID(), getLocalNodeHandle(), uid, qPDU,
+                        queryID, origin, 0, 0, 0);
+
+            // send the request across the wire. Use nodeHandle as first hop hint!
+            sendRequest(uid, msg, nh,
+                    new NamedContinuation("FriendQueryMessage for " + uid, answer));
+            return true;
+        }
+
+        /**
+         * @return the fan-out of friend uid when forwarding: half ours while
+         *         it answers within half our deadline (or is yet unknown),
+         *         less as its latency grows past that, none once it reaches
+         *         our deadline
+         */
+        private int fanoutOf(Id uid) {
+            int fanout = maxInFlight / 2;
+            Long latency = friendLatencies.get(uid);
+            long slack = deadline - deadline / 2;
+            if (latency == null || latency <= deadline / 2 || slack <= 0)
+                return fanout;
+            return (int) (fanout * Math.max(0, deadline - latency) / slack);
+        }
+
+        @Override
+        protected void merge(ResponsePDU answer) {
+            merged = ScoreBoard.merge(merged, answer.getScoreBoard(), k);
+        }
+
+        @Override
+        protected ScoreBoard result() {
+            return (merged != null) ? merged : new ScoreBoard(null, null);
+        }
+
+        @Override
+        protected void recordLatency(Id uid, long latency) {
+            recordFriendLatency(uid, latency);
         }
-        if (nQueriesSent == 0)
-            command.receiveResult(null);
     }
 
     /**
@@ -1911,82 +3587,139 @@ public class CatalogService extends PastImpl implements SocService {
      */
     public void searchSocialTagsQuery(final int queryType, final String[] tags,
                                       final String[] userIds, final Continuation<Object, Exception> command) {
+        searchSocialTagsQuery(queryType, tags, false, QueryPDU.RETURN_ALL, userIds, command);
+    }
+
+    /**
+     * Social tag search, as above, where each visited node only returns its
+     * top-k entries carrying all (conjunctive) or any of the tags.
+     *
+     * @param queryType
+     * @param tags
+     * @param conjunctive Match the entries carrying all tags instead of any
+     * @param k           The number of results each node returns
+     * @param userIds
+     * @param command
+     */
+    public void searchSocialTagsQuery(final int queryType, final String[] tags,
+                                      final boolean conjunctive, final int k,
+                                      final String[] userIds, final Continuation<Object, Exception> command) {
 
         if (this.user == null) {
             command.receiveException(new RuntimeException("User has not be registered yet!"));
             return;
         }
 
-        Id destId = null;
-        // Iterate to lookup for every node we want to visit!
-        for (int i = 0; i < userIds.length; i++) {
-            // Compute each terms TID
-            destId = factory.buildIdFromToString(userIds[i]);
-
-            final Id uid = destId;
-            final SocialQueryPDU sqPDU;
-            if (queryType == QueryPDU.CONTENT_ENHANCEDQUERY
-                    || queryType == QueryPDU.USER_ENHANCEDQUERY
-                    || queryType == QueryPDU.HYBRID_ENHANCEDQUERY) {
-                sqPDU = new SocialQueryPDU(tags, queryType, this.user
-                        .getCompleteUserProfile());
-            } else {
-                sqPDU = new SocialQueryPDU(tags, queryType);
-            }
+        final SocialQueryPDU sqPDU;
+        if (queryType == QueryPDU.CONTENT_ENHANCEDQUERY
+                || queryType == QueryPDU.USER_ENHANCEDQUERY
+                || queryType == QueryPDU.HYBRID_ENHANCEDQUERY) {
+            sqPDU = new SocialQueryPDU(tags, queryType, conjunctive, k,
+                    this.user.getCompleteUserProfile());
+        } else {
+            sqPDU = new SocialQueryPDU(tags, queryType, conjunctive, k, null);
+        }
 
-            storage.getObject(uid, new StandardContinuation<Object, Exception>(command) {
-                public void receiveResult(Object o) {
-                    if (o != null) {
-                        // TODO : Maybe we want to SCORE this local Catalog
-                        command.receiveResult(o); // If we find here then we execute command
-                    } else {
-                        // send the request across the wire, and see if the result is null or not
-                        sendRequest(uid, new SocialQueryMessage(getUID(), uid,
-                                getLocalNodeHandle(), uid, sqPDU),
-                                new NamedContinuation("SocialQueryMessage for " + uid, this) {
-                                    public void receiveResult(final Object o) {
-                                        // if we have an object, we return it otherwise, we must check all replicas in
-                                        // order to make sure that the object doesn't exist anywhere
-                                        if (o != null) {
-                                            // lastly, try and cache object locally for future use
-                                            command.receiveResult(o);
-                                        } else {
-                                            lookupHandles(uid, replicationFactor + 1, new Continuation<Object, Exception>() {
-                                                @SuppressWarnings("unchecked")
-                                                public void receiveResult(Object o) {
-                                                    PastContentHandle[] handles = (PastContentHandle[]) o;
-
-                                                    for (int i = 0; i < handles.length; i++) {
-                                                        if (handles[i] != null) {
-                                                            fetch(handles[i], new StandardContinuation<Object, Exception>(parent) {
-                                                                public void receiveResult(final Object o) {
-                                                                    command.receiveResult(o);
-                                                                }
-                                                            });
-                                                            return;
-                                                        }
-                                                    }
+        List<Id> taggers = new ArrayList<Id>();
+        for (String userId : userIds) {
+            Id uid = factory.buildIdFromToString(userId);
+            if (!taggers.contains(uid))
+                taggers.add(uid);
+        }
 
-                                                    // there were no replicas of the object
-                                                    command.receiveResult(null);
-                                                }
+        Parameters params = environment.getParameters();
+        long deadline = params.contains("exo_social_search_deadline") ?
+                params.getLong("exo_social_search_deadline") : 5000;
+        int fanout = params.contains("exo_social_search_fanout") ?
+                params.getInt("exo_social_search_fanout") : 16;
+        new TaggerQueryAggregator(sqPDU, taggers, deadline, fanout, command).start();
+    }
 
-                                                public void receiveException(Exception e) {
-                                                    command.receiveException(e);
-                                                }
-                                            });
-                                        }
-                                    }
+    /**
+     * Ranks the entries our own social catalogs hold for a social tag query.
+     *
+     * @param sqpdu The query
+     * @param reply Receives a ResponsePDU with the top-k entries
+     */
+    @SuppressWarnings("rawtypes")
+    private void answerSocialQuery(SocialQueryPDU sqpdu, Continuation reply) {
+        Set<String> qtags = new LinkedHashSet<String>();
+        if (sqpdu.getData() != null)
+            qtags.addAll(Arrays.asList(sqpdu.getData()));
+
+        // Search Social Catalogs corresponding to our query terms.
+        Map<String, SocialCatalog> invertedMap = user
+                .getTagContentList();
+        List<SocialCatalog> catalogs = new ArrayList<SocialCatalog>();
+        for (String term : qtags) {
+            SocialCatalog scat = invertedMap.get(term);
+            if (scat != null)
+                catalogs.add(scat);
+        }
+        Map<CatalogEntry, Float> matches = SocialCatalog.matchEntries(catalogs,
+                qtags.size(), sqpdu.getType(), sqpdu.isConjunctive());
+
+        // Only the top-k matches are returned; leave the ranking to the
+        // Scorer thread
+        scorer.addRequest(new SimilarityRequest(matches,
+                qtags.toArray(new String[qtags.size()]), sqpdu.getType(),
+                sqpdu.getK(), sqpdu.getSourceUserProfile(), reply, 1));
+        scorer.doNotify();
+    }
 
-                                    public void receiveException(Exception e) {
-                                        // If the lookup message failed , we then try to fetch all of the handles, just
-                                        // in case. This may fail too, but at least we tried.
-                                        receiveResult(null);
-                                    }
-                                });
-                    }
+    /**
+     * Scatter-gather of one social tag query over a set of taggers (see
+     * QueryAggregator). Entries returned by more than one tagger add up their
+     * scores, so that entries with more support rank higher.
+     */
+    private class TaggerQueryAggregator extends QueryAggregator<Id> {
+        private final SocialQueryPDU sqPDU;
+
+        // Entry -> sum of its scores over the taggers that returned it
+        private final Map<CatalogEntry, Float> scores = new HashMap<CatalogEntry, Float>();
+
+        private TaggerQueryAggregator(SocialQueryPDU sqPDU, List<Id> taggers, long deadline,
+                                      int maxInFlight, Continuation<Object, Exception> command) {
+            super("Social query", taggers, deadline, maxInFlight, command);
+            this.sqPDU = sqPDU;
+        }
+
+        @Override
+        protected Id uidOf(Id tagger) {
+            return tagger;
+        }
+
+        @Override
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        protected boolean send(Id uid, Continuation<Object, Exception> answer) {
+            if (uid.equals(user.getUID())) {
+                // Answered by the Scorer thread
+                answerSocialQuery(sqPDU, answer);
+                return true;
+            }
+            // Use the node handle of friends as first hop hint
+            Friend friend = user.getFriends().get(uid);
+            sendRequest(uid, new SocialQueryMessage(getUID(), uid,
+                            getLocalNodeHandle(), uid, sqPDU),
+                    (friend != null) ? friend.getNodeHandle() : null,
+                    new NamedContinuation("SocialQueryMessage for " + uid, answer));
+            return true;
+        }
+
+        @Override
+        protected void merge(ResponsePDU answer) {
+            ScoreBoard sb = answer.getScoreBoard();
+            if (sb != null && sb.getAllEntries() != null)
+                for (ScoreBoard.Score sc : sb.getAllEntries()) {
+                    Float old = scores.get(sc.getEntry());
+                    float score = (sc.getScore() != null) ? sc.getScore() : 0;
+                    scores.put(sc.getEntry(), (old == null) ? score : old + score);
                 }
-            });
+        }
+
+        @Override
+        protected ScoreBoard result() {
+            return ScoreBoard.topK(scores, sqPDU.getK());
         }
     }
 
@@ -2330,6 +4063,49 @@ public class CatalogService extends PastImpl implements SocService {
         return this.factory;
     }
 
+    /**
+     * Chooses between the entry carrying our public profile and the one that
+     * merely references it by version, depending on what the Catalog of tid
+     * has already stored.
+     *
+     * @param tid  The Catalog the entry is sent to
+     * @param full The entry including the user profile
+     * @param ref  The same entry without the user profile
+     * @return The entry to be sent
+     */
+    private ContentCatalogEntry entryForTID(Id tid, ContentCatalogEntry full, ContentCatalogEntry ref) {
+        Long sent = sentProfileVersions.get(tid);
+        return (sent != null && sent.longValue() == full.getUserProfileVersion()) ? ref : full;
+    }
+
+    /**
+     * MultiContinuation is not generic; this is the one place where its
+     * sub-continuations get their type.
+     */
+    @SuppressWarnings("unchecked")
+    private static Continuation<Object, Exception> subContinuation(MultiContinuation multi, int index) {
+        return multi.getSubContinuation(index);
+    }
+
+    /**
+     * Wraps the continuation of an insert to tid, to remember which profile
+     * version that Catalog holds once the insert succeeds.
+     */
+    private Continuation<Object, Exception> profileSentContinuation(final Id tid,
+                                                                   final long version, final Continuation<Object, Exception> c) {
+        return new StandardContinuation<Object, Exception>(c) {
+            public void receiveResult(Object result) {
+                if (result instanceof Boolean[])
+                    for (Boolean b : (Boolean[]) result)
+                        if (b != null && b) {
+                            sentProfileVersions.put(tid, version);
+                            break;
+                        }
+                parent.receiveResult(result);
+            }
+        };
+    }
+
     /**
      * Utility method to form a common response HashMap for the next processing
      * level.
@@ -2394,11 +4170,13 @@ public class CatalogService extends PastImpl implements SocService {
                     // and return a mini ScoredCatalog (PastContent)
                     if (o instanceof Catalog) {
                         int type = qmsg.getQueryPDU().getType();
-                        Hashtable entries = ((Catalog) o).getCatalogEntriesForQueryType(type);
+                        // Capture the current immutable snapshot, so that the
+                        // Scorer thread never races with inserts
+                        CatalogSnapshot snapshot = ((Catalog) o).getSnapshot(type);
                         // Leave the job to be done asynchronously by the
                         // Scorer thread
                         scorer.addRequest(new SimilarityRequest(
-                                entries.values(), qmsg.getQueryPDU().getData(),
+                                snapshot, qmsg.getQueryPDU().getData(),
                                 type, qmsg.getQueryPDU().getK(),
                                 qmsg.getQueryPDU().getSourceUserProfile(),
                                 parent, qmsg.getHops()));
@@ -2431,20 +4209,8 @@ public class CatalogService extends PastImpl implements SocService {
             });
 
         } else if (msg instanceof FriendQueryMessage) {
-            final FriendQueryMessage qmsg = (FriendQueryMessage) msg;
             lookups++;
-
-            int type = qmsg.getQueryPDU().getType();
-            Vector<?> entries = this.user.
-                    getCatalogEntriesForQueryType(type, qmsg.getSource().getId());
-            // Leave the job to be done asynchronously by the
-            // Scorer thread
-            scorer.addRequest(new SimilarityRequest(
-                    entries, qmsg.getQueryPDU().getData(),
-                    type, qmsg.getQueryPDU().getK(),
-                    qmsg.getQueryPDU().getSourceUserProfile(),
-                    getResponseContinuation(qmsg), qmsg.getHops()));
-            scorer.doNotify();
+            answerFriendQuery((FriendQueryMessage) msg);
 
         } else if (msg instanceof GetUserProfileMessage) {
             final GetUserProfileMessage gupmsg = (GetUserProfileMessage) msg;
@@ -2460,27 +4226,40 @@ public class CatalogService extends PastImpl implements SocService {
                             user.getCompleteUserProfile() :
                             user.getPublicUserProfile());
 
-        } else if (msg instanceof SocialQueryMessage) {
-            final SocialQueryMessage sqmsg = (SocialQueryMessage) msg;
+        } else if (msg instanceof GetStatusDigestMessage) {
+            final GetStatusDigestMessage gsdmsg = (GetStatusDigestMessage) msg;
             lookups++;
 
-            // Here we are in Tager's side.
-            SocialQueryPDU sqpdu = sqmsg.getQueryPDU();
-            String[] qtags = sqpdu.getData();
-
-            // The Vector we are going to fill in
-            Vector<SocialCatalog> vec = new Vector<SocialCatalog>();
-
-            // Search Social Catalogs corresponding to our query terms.
-            Map<String, SocialCatalog> invertedMap = user
-                    .getTagContentList();
-            // SocialCatalog scat=null;
-            if (qtags != null)
-                for (String term : qtags) {
-                    if (invertedMap.containsKey(term)) {
-                        vec.add(invertedMap.get(term));
-                    }
+            getResponseContinuation(msg).receiveResult(
+                    user.getStatusDigest(gsdmsg.getLimit(),
+                            user.isFriend(msg.getSource().getId()),
+                            gsdmsg.getKnownVersion()));
+
+        } else if (msg instanceof StatusUpdateMessage) {
+            final StatusUpdateMessage sumsg = (StatusUpdateMessage) msg;
+            final Id friendId = msg.getSource().getId();
+            final StatusDigest digest = sumsg.getDigest();
+
+            // Deltas only apply on top of the digest they were computed from
+            boolean applied = false;
+            if (user.isFriend(friendId) && digest.getUID().equals(friendId)) {
+                StatusDigest known = friendStatuses.get(friendId);
+                if (known != null && known.getVersion() >= digest.getVersion())
+                    applied = true;
+                else if (!sumsg.isDelta()) {
+                    friendStatuses.put(friendId, digest);
+                    applied = true;
+                } else if (known != null && known.getVersion() == sumsg.getBaseVersion() &&
+                        known.getLimit() == digest.getLimit()) {
+                    friendStatuses.put(friendId, known.applyDelta(digest));
+                    applied = true;
                 }
+            }
+            getResponseContinuation(msg).receiveResult(applied);
+
+        } else if (msg instanceof SocialQueryMessage) {
+            final SocialQueryMessage sqmsg = (SocialQueryMessage) msg;
+            lookups++;
 
             if (logger.level <= Logger.FINER)
                 logger
@@ -2489,8 +4268,8 @@ public class CatalogService extends PastImpl implements SocService {
                                 + " from "
                                 + endpoint.getId());
 
-            // All was right! Now let's return the ContentCatalogEntry
-            getResponseContinuation(msg).receiveResult(vec);
+            // Here we are in Tager's side.
+            answerSocialQuery(sqmsg.getQueryPDU(), getResponseContinuation(msg));
 
         } else if (msg instanceof FriendAcceptMessage) {
             final FriendAcceptMessage famsg = (FriendAcceptMessage) msg;
@@ -2542,22 +4321,7 @@ public class CatalogService extends PastImpl implements SocService {
 
             // Now update the TagCloud +1 term freqs.
             TagPDU tpdu = tcmsg.getTagContentPDU();
-            Id contentId = tpdu.getTaggedId();
-            Map<Id, TagCloud> mapCloud = user.getContentTagClouds();
-            TagCloud cloud;
-            if (mapCloud.containsKey(contentId)) {
-                cloud = mapCloud.get(contentId);
-            } else { // If the TagCloud does not exist, we create it
-                cloud = new TagCloud();
-                mapCloud.put(contentId, cloud);
-            }
-
-            // TODO : Implement association with User-tagers in the TagCloud
-            ContentProfile tags = tpdu.getTags();
-            if (tags != null)
-                for (ContentField tag : tags.getAllFields()) {
-                    cloud.addTagTFMap(tag);
-                }
+            addContentTags(tpdu.getTaggedId(), tpdu.getTags());
 
             if (logger.level <= Logger.FINER)
                 logger.log("Returning response for tagcontent message "
@@ -2569,6 +4333,39 @@ public class CatalogService extends PastImpl implements SocService {
                             user.getSharedContentProfile(tpdu.getTaggedId()),
                             user.getPublicUserProfile()));
 
+        } else if (msg instanceof TagContentBatchMessage) {
+            final TagContentBatchMessage tbmsg = (TagContentBatchMessage) msg;
+            lookups++;
+
+            TagBatchPDU tbpdu = tbmsg.getTagBatchPDU();
+            Map<Id, ContentProfile> profiles = new HashMap<Id, ContentProfile>();
+            Map<Id, Long> versions = new HashMap<Id, Long>();
+            Set<Id> missing = new HashSet<Id>();
+            for (Map.Entry<Id, ContentProfile> e : tbpdu.getTags().entrySet()) {
+                Id contentId = e.getKey();
+                ContentProfile cp = user.getSharedContentProfile(contentId);
+                if (cp == null) {
+                    missing.add(contentId);
+                    continue;
+                }
+                addContentTags(contentId, e.getValue());
+                // Profiles the tagger already holds are only referenced
+                long cpVersion = user.getSharedContentVersion(contentId);
+                Long known = tbpdu.getKnownProfiles().get(contentId);
+                if (cpVersion == 0 || known == null || known != cpVersion)
+                    profiles.put(contentId, cp);
+                versions.put(contentId, cpVersion);
+            }
+            long version = user.getProfileVersion();
+            boolean ownerKnown = version != 0 && version == tbpdu.getKnownOwnerVersion();
+
+            if (logger.level <= Logger.FINER)
+                logger.log("Returning response for tagcontent batch message of "
+                        + tbpdu.getTags().size() + " contents from " + endpoint.getId());
+
+            getResponseContinuation(msg).receiveResult(new TagBatchReplyPDU(version,
+                    ownerKnown ? null : user.getPublicUserProfile(), profiles, versions, missing));
+
         } else if (msg instanceof TagUserMessage) {
             final TagUserMessage tcmsg = (TagUserMessage) msg;
             lookups++;
@@ -2579,9 +4376,9 @@ public class CatalogService extends PastImpl implements SocService {
             TagCloud cloud;
             if (mapCloud.containsKey(taggerId)) {
                 cloud = mapCloud.get(taggerId);
-                cloud.getTagTFMap().clear();
+                cloud.clear();
             } else { // If the TagCloud does not exist, we create it
-                cloud = new TagCloud();
+                cloud = new TagCloud(tagCloudSize);
                 mapCloud.put(taggerId, cloud);
             }
             // +1
@@ -2593,7 +4390,7 @@ public class CatalogService extends PastImpl implements SocService {
                 }
 
             ContentProfile cp = new ContentProfile();
-            for (ContentField tag : cloud.getTagTFMap().keySet()) {
+            for (ContentField tag : cloud.getTags()) {
                 cp.add(tag);
             }
 
@@ -2672,15 +4469,23 @@ public class CatalogService extends PastImpl implements SocService {
                         + rcmsg.getContentId() + " from " + endpoint.getId());
 
             getResponseContinuation(msg).receiveResult(cp);
+        } else if (msg instanceof RetrieveTagCloudsMessage) {
+            final RetrieveTagCloudsMessage rtcmsg = (RetrieveTagCloudsMessage) msg;
+            lookups++;
+
+            if (logger.level <= Logger.FINER)
+                logger.log("Returning response for retrieve tag clouds message from " + endpoint.getId());
+
+            getResponseContinuation(msg).receiveResult(
+                    topContentTagClouds(rtcmsg.getContentIds(), rtcmsg.getMaxTags()));
         } else if (msg instanceof RetrieveContIDsMessage) {
             lookups++;
-            Map<Id, String> ret = new HashMap<Id, String>();
-            Map<Id, SharedContentInfo> map = user.getSharedContent();
-            Iterator<Id> itid = map.keySet().iterator();
-            Iterator<SharedContentInfo> itsci = map.values().iterator();
-            while (itid.hasNext()) {
-                ret.put(itid.next(), itsci.next().getFilename());
-            }
+            RetrieveContIDsMessage rcmsg = (RetrieveContIDsMessage) msg;
+            SortedMap<Id, String> ret = new TreeMap<Id, String>();
+            Map<Id, SharedContentInfo> map = user.getSharedContentPage(
+                    rcmsg.getCursor(), rcmsg.getOffset(), rcmsg.getLimit());
+            for (Map.Entry<Id, SharedContentInfo> e : map.entrySet())
+                ret.put(e.getKey(), e.getValue().getFilename());
 
             if (logger.level <= Logger.FINER)
                 logger.log("Returning response for retrieve content ids message from " + endpoint.getId());
@@ -2702,6 +4507,7 @@ public class CatalogService extends PastImpl implements SocService {
      * @param extra_args A dictionary of extra arguments to be passed.
      * @param command    Command to be performed when the result is received.
      */
+    @SuppressWarnings("unchecked")
     public void lookup(final Id id, final short type,
                        final HashMap<String, Object> extra_args,
                        final Continuation<Object, Exception> command) {
@@ -2714,6 +4520,14 @@ public class CatalogService extends PastImpl implements SocService {
             case MessageType.GetUserProfile:
                 message = new GetUserProfileMessage(getUID(), id, getLocalNodeHandle(), id);
                 break;
+            case MessageType.GetStatusDigest:
+                message = new GetStatusDigestMessage(getUID(), getLocalNodeHandle(), id,
+                        (Integer) extra_args.get("Limit"), (Long) extra_args.get("KnownVersion"));
+                break;
+            case MessageType.StatusUpdate:
+                message = new StatusUpdateMessage(getUID(), getLocalNodeHandle(), id,
+                        (Long) extra_args.get("BaseVersion"), (StatusDigest) extra_args.get("Digest"));
+                break;
             case MessageType.FriendRequest:
                 message = new FriendReqMessage(getUID(), getLocalNodeHandle(), id, (FriendReqPDU) extra_args.get("PDU"));
                 break;
@@ -2726,6 +4540,10 @@ public class CatalogService extends PastImpl implements SocService {
             case MessageType.TagContent:
                 message = new TagContentMessage(getUID(), id, getLocalNodeHandle(), id, (TagPDU) extra_args.get("PDU"));
                 break;
+            case MessageType.TagContentBatch:
+                message = new TagContentBatchMessage(getUID(), getLocalNodeHandle(), id,
+                        (TagBatchPDU) extra_args.get("PDU"));
+                break;
             case MessageType.TagUser:
                 message = new TagUserMessage(getUID(), id, getLocalNodeHandle(), id, (TagPDU) extra_args.get("PDU"));
                 break;
@@ -2733,8 +4551,15 @@ public class CatalogService extends PastImpl implements SocService {
                 message = new RetrieveContTagsMessage(getUID(), (Id) extra_args.get("ContentId"), getLocalNodeHandle(),
                         id, (RetrieveContPDU) extra_args.get("PDU"));
                 break;
+            case MessageType.RetrieveTagClouds:
+                message = new RetrieveTagCloudsMessage(getUID(), getLocalNodeHandle(), id,
+                        (List<Id>) extra_args.get("ContentIds"), (Integer) extra_args.get("MaxTags"));
+                break;
             case MessageType.RetrieveContentIDs:
-                message = new RetrieveContIDsMessage(getUID(), getLocalNodeHandle(), id);
+                message = new RetrieveContIDsMessage(getUID(), getLocalNodeHandle(), id,
+                        (Id) extra_args.get("Cursor"),
+                        extra_args.containsKey("Offset") ? (Integer) extra_args.get("Offset") : 0,
+                        extra_args.containsKey("Limit") ? (Integer) extra_args.get("Limit") : 0);
                 break;
             default:
                 logger.log("Unknown message type. Bailing out...");
@@ -1,5 +1,6 @@
 package ceid.netcins.exo;
 
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.frontend.handlers.*;
 import ceid.netcins.exo.frontend.json.Json;
 import ceid.netcins.exo.user.User;
@@ -77,10 +78,10 @@ public class Frontend implements Serializable {
     transient private IdFactory pastryIdFactory = null;
     transient private NetworkSimulator<DirectNodeHandle, RawMessage> simulator = null;
     transient private Server server = null;
+    transient private RequestQueue queue = null;
 
     private User[] users = null;
     private boolean isSimulated = false;
-    private Hashtable<String, Vector<String>> queue = null;
     private String userName = null;
     private String resourceName = null;
     private boolean isBootstrap = false;
@@ -98,7 +99,6 @@ public class Frontend implements Serializable {
         this.pastryNodePort = pastryPort;
         if (pastryPort <= 0 || pastryPort > 65535)
             pastryNodePort = params.getInt("exo_pastry_port");
-        this.queue = new Hashtable<String, Vector<String>>();
         String pastryNodeProtocol = params.getString("exo_pastry_protocol");
         int numSimulatedNodes = params.getInt("exo_sim_num_nodes");
         if (numSimulatedNodes == 0 || !pastryNodeProtocol.equalsIgnoreCase(PROTOCOL_DIRECT))
@@ -258,7 +258,7 @@ public class Frontend implements Serializable {
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void addServletToContext(Class handlerClass, ServletContextHandler context) {
         Constructor constructor = null;
-        Class[] params = new Class[]{CatalogService.class, Hashtable.class};
+        Class[] params = new Class[]{CatalogService.class, RequestQueue.class};
         try {
             constructor = handlerClass.getConstructor(params);
         } catch (Exception e) {
@@ -310,8 +310,10 @@ public class Frontend implements Serializable {
         // XXX: Watch out! Handlers are scanned in-order until baseRequest.handled = true, and matched on a String.startsWith() basis
         Class[] handlerClasses = new Class[]{
                 ShareFileHandler.class,
+                ShareFolderHandler.class,
                 SetUserProfileHandler.class,
                 SetContentTagsHandler.class,
+                TagContentsHandler.class,
                 GetUserProfileHandler.class,
                 GetUserTagsHandler.class,
                 GetFriendRequestsHandler.class,
@@ -496,6 +498,12 @@ public class Frontend implements Serializable {
         logger = environment.getLogManager().getLogger(getClass(), null);
         pastryIdFactory = new PastryIdFactory(environment);
         Parameters params = environment.getParameters();
+        // Pending results do not outlive the process
+        queue = new RequestQueue(
+                params.contains("exo_frontend_queue_size") ? params.getInt("exo_frontend_queue_size") : 10000,
+                params.contains("exo_frontend_queue_client_size") ? params.getInt("exo_frontend_queue_client_size") : 100,
+                params.contains("exo_frontend_queue_bytes") ? params.getLong("exo_frontend_queue_bytes") : 64L * 1024 * 1024,
+                1000 * (params.contains("exo_frontend_queue_ttl") ? params.getLong("exo_frontend_queue_ttl") : 600));
 
         InetSocketAddress localhost = null;
         try {
@@ -556,6 +564,10 @@ public class Frontend implements Serializable {
     public static void saveStateToFile(Frontend fend, String statefname) {
         FileOutputStream fos = null;
         ObjectOutputStream out = null;
+        for (int i = 0; i < fend.apps.length; i++) {
+            if (fend.apps[i] != null)
+                fend.apps[i].saveProfileCache();
+        }
         for (int i = 0; i < fend.nodes.length; i++) {
             fend.nodes[i].destroy();
         }
@@ -1,12 +1,19 @@
 package ceid.netcins.exo.catalog;
 
+import ceid.netcins.exo.content.ContentProfile;
 import ceid.netcins.exo.messages.QueryPDU;
 import rice.p2p.commonapi.Id;
 import rice.p2p.past.ContentHashPastContent;
 import rice.p2p.past.PastContent;
 import rice.p2p.past.PastException;
 
-import java.util.Hashtable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Catalog is a table of CatalogEntries for a specific term identifier(TID).
@@ -24,56 +31,175 @@ public class Catalog extends ContentHashPastContent {
 
     private static final long serialVersionUID = -6819758682396530715L;
 
+    // The entry maps are read by the Scorer thread(s) while the selector
+    // thread applies InsertPDUs, so they must never lock on reads nor throw
+    // ConcurrentModificationException while being iterated.
+
     // The Content CatalogEntries
-    private Hashtable<Id, ContentCatalogEntry> contentCatalogEntries;
+    private ConcurrentHashMap<Id, ContentCatalogEntry> contentCatalogEntries;
 
     // the user catalog entries
-    private Hashtable<Id, UserCatalogEntry> userCatalogEntries;
+    private ConcurrentHashMap<Id, UserCatalogEntry> userCatalogEntries;
 
     // the url catalog entries
-    private Hashtable<Id, URLCatalogEntry> urlCatalogEntries;
+    private ConcurrentHashMap<Id, URLCatalogEntry> urlCatalogEntries;
+
+    // Owner profiles of the versioned content entries, as the latest version
+    // seen per user. Content entries are keyed by their owner, so this saves
+    // no space within a Catalog; it only lets the publisher skip resending
+    // a profile version the Catalog already has.
+    private ConcurrentHashMap<Id, UserCatalogEntry> ownerProfiles;
+
+    // Bumped after every change to the entry maps
+    private AtomicLong version;
+
+    // Last published snapshot per table (content, user, url), rebuilt lazily
+    // when the version moves on
+    private transient volatile CatalogSnapshot[] snapshots;
+
+    private static final int CONTENT_TABLE = 0, USER_TABLE = 1, URL_TABLE = 2;
 
     public Catalog(Id tid) {
         super(tid);
-        contentCatalogEntries = new Hashtable<Id, ContentCatalogEntry>();
-        userCatalogEntries = new Hashtable<Id, UserCatalogEntry>();
-        urlCatalogEntries = new Hashtable<Id, URLCatalogEntry>();
+        contentCatalogEntries = new ConcurrentHashMap<Id, ContentCatalogEntry>();
+        userCatalogEntries = new ConcurrentHashMap<Id, UserCatalogEntry>();
+        urlCatalogEntries = new ConcurrentHashMap<Id, URLCatalogEntry>();
+        ownerProfiles = new ConcurrentHashMap<Id, UserCatalogEntry>();
+        version = new AtomicLong();
     }
 
-    /**
-     * Helper to get the proper entries corresponding to the query type issued
-     * by the user.
-     *
-     * @param type One of the types defined in QueryPDU
-     * @return Return the corresponding vector of catalog entries.
-     */
-    @SuppressWarnings("rawtypes")
-    public Hashtable getCatalogEntriesForQueryType(int type) {
+    private static int tableForQueryType(int type) {
         switch (type) {
             case QueryPDU.CONTENTQUERY:
             case QueryPDU.CONTENT_ENHANCEDQUERY:
             case QueryPDU.HYBRIDQUERY:
             case QueryPDU.HYBRID_ENHANCEDQUERY:
-                return contentCatalogEntries;
+                return CONTENT_TABLE;
             case QueryPDU.USERQUERY:
             case QueryPDU.USER_ENHANCEDQUERY:
-                return userCatalogEntries;
+                return USER_TABLE;
             case QueryPDU.URLQUERY:
+                return URL_TABLE;
+        }
+        return -1;
+    }
+
+    private Map<Id, ? extends CatalogEntry> table(int table) {
+        switch (table) {
+            case CONTENT_TABLE:
+                return contentCatalogEntries;
+            case USER_TABLE:
+                return userCatalogEntries;
+            case URL_TABLE:
                 return urlCatalogEntries;
         }
         return null;
     }
 
-    public void setContentCatalogEntries(Hashtable<Id, ContentCatalogEntry> v) {
-        this.contentCatalogEntries = v;
+    // Must be called after the change has been applied to the map
+    private void touch() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the current version of this Catalog
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Helper to get the proper entries corresponding to the query type issued
+     * by the user.
+     *
+     * @param type One of the types defined in QueryPDU
+     * @return Return the corresponding vector of catalog entries.
+     */
+    @SuppressWarnings("rawtypes")
+    public Map getCatalogEntriesForQueryType(int type) {
+        int table = tableForQueryType(type);
+        return (table < 0) ? null : Collections.unmodifiableMap(table(table));
+    }
+
+    /**
+     * Returns the immutable snapshot of the entries for the query type. The
+     * snapshot is shared by all queries issued against the same version, so
+     * capturing it costs nothing unless the Catalog changed in the meantime.
+     *
+     * @param type One of the types defined in QueryPDU
+     * @return The current snapshot, or null for unknown types
+     */
+    public CatalogSnapshot getSnapshot(int type) {
+        int table = tableForQueryType(type);
+        if (table < 0)
+            return null;
+        CatalogSnapshot[] cache = snapshots;
+        if (cache == null)
+            snapshots = cache = new CatalogSnapshot[3];
+        // Read the version before the entries: a racing insert can only make
+        // the snapshot newer than its label, which just forces a rebuild
+        long v = version.get();
+        CatalogSnapshot snapshot = cache[table];
+        if (snapshot == null || snapshot.getVersion() != v) {
+            snapshot = new CatalogSnapshot(v, table(table).values(), ownerProfiles);
+            cache[table] = snapshot;
+        }
+        return snapshot;
+    }
+
+    public void setContentCatalogEntries(Map<Id, ContentCatalogEntry> v) {
+        this.contentCatalogEntries = new ConcurrentHashMap<Id, ContentCatalogEntry>(v);
+        touch();
     }
 
-    public void setUserCatalogEntries(Hashtable<Id, UserCatalogEntry> v) {
-        this.userCatalogEntries = v;
+    public void setUserCatalogEntries(Map<Id, UserCatalogEntry> v) {
+        this.userCatalogEntries = new ConcurrentHashMap<Id, UserCatalogEntry>(v);
+        touch();
     }
 
-    public void setURLCatalogEntries(Hashtable<Id, URLCatalogEntry> v) {
-        this.urlCatalogEntries = v;
+    public void setURLCatalogEntries(Map<Id, URLCatalogEntry> v) {
+        this.urlCatalogEntries = new ConcurrentHashMap<Id, URLCatalogEntry>(v);
+        touch();
+    }
+
+    /**
+     * Moves the user profile of a versioned entry to the owner profile table,
+     * keeping the newest version. The entry must not be published yet.
+     *
+     * @param ce
+     */
+    private void extractOwnerProfile(ContentCatalogEntry ce) {
+        if (ce.getUserProfileVersion() <= 0 || ce.getUserProfile() == null)
+            return;
+        UserCatalogEntry owner = ownerProfiles.get(ce.getUID());
+        if (owner == null || owner.getUserProfileVersion() < ce.getUserProfileVersion())
+            ownerProfiles.put(ce.getUID(), new UserCatalogEntry(ce.getUID(),
+                    ce.getUserProfile(), ce.getUserProfileVersion()));
+        ce.detachUserProfile();
+    }
+
+    /**
+     * @param uid
+     * @return the latest known profile of the owner uid, or null
+     */
+    public ContentProfile getOwnerProfile(Id uid) {
+        UserCatalogEntry owner = ownerProfiles.get(uid);
+        return (owner == null) ? null : owner.getUserProfile();
+    }
+
+    /**
+     * @param ce
+     * @return ce itself if it carries its user profile, else a copy with the
+     *         profile resolved from the owner profile table (if known)
+     */
+    public CatalogEntry resolveEntry(CatalogEntry ce) {
+        if (!(ce instanceof UserCatalogEntry))
+            return ce;
+        UserCatalogEntry uce = (UserCatalogEntry) ce;
+        if (uce.getUserProfile() != null || uce.getUserProfileVersion() <= 0)
+            return ce;
+        UserCatalogEntry owner = ownerProfiles.get(uce.getUID());
+        return (owner == null) ? ce : uce.withUserProfile(owner.getUserProfile());
     }
 
     /**
@@ -82,7 +208,10 @@ public class Catalog extends ContentHashPastContent {
      * @param ce
      */
     public void addContentCatalogEntry(ContentCatalogEntry ce) {
+        extractOwnerProfile(ce);
+        ce.setRefreshTime(System.currentTimeMillis());
         contentCatalogEntries.put(ce.getUID(), ce);
+        touch();
     }
 
     /**
@@ -91,7 +220,9 @@ public class Catalog extends ContentHashPastContent {
      * @param ue
      */
     public void addUserCatalogEntry(UserCatalogEntry ue) {
+        ue.setRefreshTime(System.currentTimeMillis());
         userCatalogEntries.put(ue.getUID(), ue);
+        touch();
     }
 
     /**
@@ -100,16 +231,34 @@ public class Catalog extends ContentHashPastContent {
      * @param ue
      */
     public void addURLCatalogEntry(URLCatalogEntry ue) {
+        extractOwnerProfile(ue);
+        ue.setRefreshTime(System.currentTimeMillis());
         urlCatalogEntries.put(ue.getUID(), ue);
+        touch();
     }
 
     public void addCatalogEntry(CatalogEntry ce) {
+        addCatalogEntry(ce, 0);
+    }
+
+    /**
+     * Adds an entry last refreshed by its owner at refreshTime. Entries moved
+     * here from another node (e.g. on migration) keep their refresh time, so
+     * that they still expire when their owner stops refreshing them; a
+     * refreshTime of 0 stands for an insert by the owner, i.e. now.
+     *
+     * @param ce
+     * @param refreshTime
+     */
+    public void addCatalogEntry(CatalogEntry ce, long refreshTime) {
         if (ce instanceof URLCatalogEntry)
             addURLCatalogEntry((URLCatalogEntry) ce);
         else if (ce instanceof ContentCatalogEntry)
             addContentCatalogEntry((ContentCatalogEntry) ce);
         else
             addUserCatalogEntry((UserCatalogEntry) ce);
+        if (refreshTime > 0)
+            ce.setRefreshTime(refreshTime);
     }
 
     /**
@@ -124,10 +273,10 @@ public class Catalog extends ContentHashPastContent {
         if (!oldCE.getUID().equals(newCE.getUID()))
             throw new RuntimeException("Trying to replace entry with one with a different id");
 
-        synchronized (contentCatalogEntries) {
-            contentCatalogEntries.remove(oldCE.getUID());
-            contentCatalogEntries.put(newCE.getUID(), newCE);
-        }
+        extractOwnerProfile(newCE);
+        newCE.setRefreshTime(System.currentTimeMillis());
+        contentCatalogEntries.put(newCE.getUID(), newCE);
+        touch();
     }
 
     /**
@@ -142,10 +291,9 @@ public class Catalog extends ContentHashPastContent {
         if (!oldUE.getUID().equals(newUE.getUID()))
             throw new RuntimeException("Trying to replace entry with one with a different id");
 
-        synchronized (userCatalogEntries) {
-            userCatalogEntries.remove(oldUE.getUID());
-            userCatalogEntries.put(newUE.getUID(), newUE);
-        }
+        newUE.setRefreshTime(System.currentTimeMillis());
+        userCatalogEntries.put(newUE.getUID(), newUE);
+        touch();
     }
 
     /**
@@ -160,10 +308,59 @@ public class Catalog extends ContentHashPastContent {
         if (!oldUE.getUID().equals(newUE.getUID()))
             throw new RuntimeException("Trying to replace entry with one with a different id");
 
-        synchronized (urlCatalogEntries) {
-            urlCatalogEntries.remove(oldUE.getUID());
-            urlCatalogEntries.put(newUE.getUID(), newUE);
+        extractOwnerProfile(newUE);
+        newUE.setRefreshTime(System.currentTimeMillis());
+        urlCatalogEntries.put(newUE.getUID(), newUE);
+        touch();
+    }
+
+    /**
+     * @return true if the Catalog has no entries left
+     */
+    public boolean isEmpty() {
+        return contentCatalogEntries.isEmpty() && userCatalogEntries.isEmpty() &&
+                urlCatalogEntries.isEmpty();
+    }
+
+    /**
+     * Removes the entries which have not been refreshed since cutoff, along
+     * with the owner profiles no longer referenced. Entries of Catalogs saved
+     * before refresh times were kept load with none; they are stamped on the
+     * first pass and get a full TTL. Callers must synchronize on the Catalog,
+     * as with the inserts.
+     *
+     * @param cutoff Entries last refreshed before this time (ms) are removed
+     * @return the number of entries removed
+     */
+    public int expireEntries(long cutoff) {
+        int removed = expireEntries(contentCatalogEntries, cutoff)
+                + expireEntries(userCatalogEntries, cutoff)
+                + expireEntries(urlCatalogEntries, cutoff);
+        boolean changed = (removed > 0);
+        Iterator<Id> owners = ownerProfiles.keySet().iterator();
+        while (owners.hasNext()) {
+            Id owner = owners.next();
+            if (!contentCatalogEntries.containsKey(owner) && !urlCatalogEntries.containsKey(owner)) {
+                owners.remove();
+                changed = true;
+            }
         }
+        if (changed)
+            touch();
+        return removed;
+    }
+
+    private static int expireEntries(Map<Id, ? extends CatalogEntry> entries, long cutoff) {
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Id, ? extends CatalogEntry> e : entries.entrySet()) {
+            CatalogEntry ce = e.getValue();
+            if (ce.getRefreshTime() == 0)
+                ce.setRefreshTime(now); // not read by the Scorer
+            else if (ce.getRefreshTime() < cutoff && entries.remove(e.getKey(), ce))
+                removed++;
+        }
+        return removed;
     }
 
     /**
@@ -180,8 +377,8 @@ public class Catalog extends ContentHashPastContent {
      *
      * @return the entries of catalog
      */
-    public Hashtable<Id, ContentCatalogEntry> getContentCatalogEntries() {
-        return contentCatalogEntries;
+    public Map<Id, ContentCatalogEntry> getContentCatalogEntries() {
+        return Collections.unmodifiableMap(contentCatalogEntries);
     }
 
     /**
@@ -189,8 +386,8 @@ public class Catalog extends ContentHashPastContent {
      *
      * @return
      */
-    public Hashtable<Id, UserCatalogEntry> getUserCatalogEntries() {
-        return userCatalogEntries;
+    public Map<Id, UserCatalogEntry> getUserCatalogEntries() {
+        return Collections.unmodifiableMap(userCatalogEntries);
     }
 
     /**
@@ -198,8 +395,8 @@ public class Catalog extends ContentHashPastContent {
      *
      * @return
      */
-    public Hashtable<Id, URLCatalogEntry> getURLCatalogEntries() {
-        return urlCatalogEntries;
+    public Map<Id, URLCatalogEntry> getURLCatalogEntries() {
+        return Collections.unmodifiableMap(urlCatalogEntries);
     }
 
     /**
@@ -236,6 +433,29 @@ public class Catalog extends ContentHashPastContent {
         return this;
     }
 
+    // Catalogs saved by older versions hold their entries in Hashtables, and
+    // have no owner profile table and no version
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        contentCatalogEntries = concurrentMap(fields.get("contentCatalogEntries", null));
+        userCatalogEntries = concurrentMap(fields.get("userCatalogEntries", null));
+        urlCatalogEntries = concurrentMap(fields.get("urlCatalogEntries", null));
+        ownerProfiles = concurrentMap(fields.get("ownerProfiles", null));
+        Object v = fields.get("version", null);
+        version = (v instanceof AtomicLong) ? (AtomicLong) v : new AtomicLong();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> ConcurrentHashMap<Id, V> concurrentMap(Object m) {
+        if (m instanceof ConcurrentHashMap)
+            return (ConcurrentHashMap<Id, V>) m;
+        ConcurrentHashMap<Id, V> ret = new ConcurrentHashMap<Id, V>();
+        if (m instanceof Map)
+            ret.putAll((Map<Id, V>) m);
+        return ret;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -252,6 +472,10 @@ public class Catalog extends ContentHashPastContent {
         if (urlCatalogEntries != null)
             for (URLCatalogEntry e : urlCatalogEntries.values())
                 buf.append(e.toString());
+        buf.append("\n [Owner Profiles] \n");
+        if (ownerProfiles != null)
+            for (UserCatalogEntry e : ownerProfiles.values())
+                buf.append(e.toString());
 
         return buf.toString();
     }
@@ -272,6 +496,10 @@ public class Catalog extends ContentHashPastContent {
             for (URLCatalogEntry e : urlCatalogEntries.values())
                 counter += e.computeTotalBytes();
 
+        if (ownerProfiles != null)
+            for (UserCatalogEntry e : ownerProfiles.values())
+                counter += e.computeTotalBytes();
+
         return counter;
     }
 }
@@ -23,6 +23,10 @@ public abstract class CatalogEntry implements Serializable, Comparable {
     // User identifier (or node Identifier)
     private Id uid;
 
+    // Local time (ms) the entry was last (re)inserted in a Catalog, used to
+    // expire entries that their owner stopped refreshing
+    private long refreshTime;
+
     public CatalogEntry(Id uid) {
         this.uid = uid;
     }
@@ -54,6 +58,17 @@ public abstract class CatalogEntry implements Serializable, Comparable {
         return this.uid;
     }
 
+    /**
+     * @return the time this entry was last refreshed in its Catalog, 0 if never
+     */
+    public long getRefreshTime() {
+        return refreshTime;
+    }
+
+    void setRefreshTime(long refreshTime) {
+        this.refreshTime = refreshTime;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -102,4 +117,12 @@ public abstract class CatalogEntry implements Serializable, Comparable {
      * @return the final result
      */
     public abstract CatalogEntry subtract(CatalogEntry deletions);
+
+    /**
+     * Entries published in a CatalogSnapshot must not change, so updates are
+     * applied to a copy which then replaces the original.
+     *
+     * @return a copy of this entry with its own (shallow) profile copies
+     */
+    public abstract CatalogEntry copy();
 }
@@ -0,0 +1,72 @@
+package ceid.netcins.exo.catalog;
+
+import ceid.netcins.exo.content.ContentProfile;
+import rice.p2p.commonapi.Id;
+
+import java.util.*;
+
+/**
+ * An immutable, point-in-time view of the entries of one Catalog table. Queries
+ * capture the current snapshot when they are enqueued to the Scorer, so that
+ * scoring sees a consistent set of entries without locking the Catalog, while
+ * inserts go on building the next version. Entries that are part of a
+ * snapshot are never modified in place; updates replace them with copies.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ * @version 1.0
+ */
+public final class CatalogSnapshot {
+
+    // The Catalog version this snapshot was taken at
+    private final long version;
+
+    // Unmodifiable list of entries
+    private final List<CatalogEntry> entries;
+
+    // Owner profiles referenced by (versioned) entries without a profile
+    private final Map<Id, ContentProfile> ownerProfiles;
+
+    CatalogSnapshot(long version, Collection<? extends CatalogEntry> entries,
+                    Map<Id, UserCatalogEntry> owners) {
+        this.version = version;
+        this.entries = Collections.unmodifiableList(new ArrayList<CatalogEntry>(entries));
+        Map<Id, ContentProfile> profiles = new HashMap<Id, ContentProfile>();
+        if (owners != null)
+            for (UserCatalogEntry owner : owners.values())
+                profiles.put(owner.getUID(), owner.getUserProfile());
+        this.ownerProfiles = Collections.unmodifiableMap(profiles);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<CatalogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param entry an entry of this snapshot
+     * @return the entry's user profile, resolving references to the owner
+     *         profile table of the Catalog
+     */
+    public ContentProfile resolveUserProfile(UserCatalogEntry entry) {
+        ContentProfile ret = entry.getUserProfile();
+        return (ret != null) ? ret : ownerProfiles.get(entry.getUID());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogSnapshot [version=" + version + ", entries=" + entries.size() + "]";
+    }
+}
@@ -28,10 +28,22 @@ public class ContentCatalogEntry extends UserCatalogEntry implements
     private static final long serialVersionUID = 2355147651372821335L;
     // The profile for a specific shared content object
     private ContentProfile contentProfile;
+    // Version of contentProfile at its owner, 0 if unknown
+    private long contentProfileVersion;
 
     public ContentCatalogEntry(Id uid, ContentProfile cp, ContentProfile usrp) {
-        super(uid, usrp);
+        this(uid, cp, usrp, 0);
+    }
+
+    public ContentCatalogEntry(Id uid, ContentProfile cp, ContentProfile usrp, long usrpVersion) {
+        this(uid, cp, 0, usrp, usrpVersion);
+    }
+
+    public ContentCatalogEntry(Id uid, ContentProfile cp, long cpVersion,
+                               ContentProfile usrp, long usrpVersion) {
+        super(uid, usrp, usrpVersion);
         this.contentProfile = cp;
+        this.contentProfileVersion = cpVersion;
     }
 
     @Override
@@ -79,6 +91,13 @@ public class ContentCatalogEntry extends UserCatalogEntry implements
         return this.contentProfile;
     }
 
+    /**
+     * @return the version of the content profile, 0 if unknown
+     */
+    public long getContentProfileVersion() {
+        return contentProfileVersion;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -133,6 +152,15 @@ public class ContentCatalogEntry extends UserCatalogEntry implements
         return counter;
     }
 
+    @Override
+    public CatalogEntry copy() {
+        return new ContentCatalogEntry(getUID(),
+                (contentProfile == null) ? null : new ContentProfile(contentProfile),
+                contentProfileVersion,
+                (getUserProfile() == null) ? null : new ContentProfile(getUserProfile()),
+                getUserProfileVersion());
+    }
+
     @Override
     public CatalogEntry add(CatalogEntry additions) {
         if (additions != null && (
@@ -146,7 +174,7 @@ public class ContentCatalogEntry extends UserCatalogEntry implements
 
         ContentCatalogEntry addCE = ((ContentCatalogEntry) additions);
         Set<ContentField> add = null;
-        super.add(new UserCatalogEntry(getUID(), addCE.getUserProfile()));
+        super.add(new UserCatalogEntry(getUID(), addCE.getUserProfile(), addCE.getUserProfileVersion()));
         if (addCE.contentProfile == null ||
                 (add = addCE.contentProfile.getAllFields()).size() == 0)
             return this;
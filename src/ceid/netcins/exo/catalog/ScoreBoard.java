@@ -1,7 +1,13 @@
 package ceid.netcins.exo.catalog;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 /**
@@ -85,6 +91,60 @@ public class ScoreBoard implements Serializable {
         return entries;
     }
 
+    /**
+     * Merges partial results, e.g. the ScoreBoards returned by the nodes of
+     * the individual query terms, into a single top-k list. An entry found in
+     * more than one of them keeps its highest score.
+     *
+     * @param a partial results (may be null)
+     * @param b partial results (may be null)
+     * @param k the number of entries to keep (QueryPDU.RETURN_ALL if
+     *          negative)
+     * @return a new ScoreBoard sorted by descending score
+     */
+    public static ScoreBoard merge(ScoreBoard a, ScoreBoard b, int k) {
+        Map<CatalogEntry, Float> best = new LinkedHashMap<CatalogEntry, Float>();
+        for (ScoreBoard sb : new ScoreBoard[]{a, b}) {
+            if (sb == null || sb.entries == null)
+                continue;
+            for (Score sc : sb.entries) {
+                Float old = best.get(sc.entry);
+                if (!best.containsKey(sc.entry) || (sc.score != null && (old == null || sc.score > old)))
+                    best.put(sc.entry, sc.score);
+            }
+        }
+        return topK(best, k);
+    }
+
+    /**
+     * @param scores the entries with their scores
+     * @param k      the number of entries to keep (QueryPDU.RETURN_ALL if
+     *               negative)
+     * @return a new ScoreBoard with the k best entries, sorted by descending
+     *         score
+     */
+    public static ScoreBoard topK(Map<CatalogEntry, Float> scores, int k) {
+        List<Map.Entry<CatalogEntry, Float>> sorted =
+                new ArrayList<Map.Entry<CatalogEntry, Float>>(scores.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<CatalogEntry, Float>>() {
+            @Override
+            public int compare(Map.Entry<CatalogEntry, Float> o1, Map.Entry<CatalogEntry, Float> o2) {
+                float s1 = (o1.getValue() != null) ? o1.getValue() : 0;
+                float s2 = (o2.getValue() != null) ? o2.getValue() : 0;
+                return Float.compare(s2, s1);
+            }
+        });
+        Vector<CatalogEntry> catalogEntries = new Vector<CatalogEntry>();
+        Vector<Float> scoreValues = new Vector<Float>();
+        for (Map.Entry<CatalogEntry, Float> e : sorted) {
+            if (k >= 0 && catalogEntries.size() >= k)
+                break;
+            catalogEntries.add(e.getKey());
+            scoreValues.add(e.getValue());
+        }
+        return new ScoreBoard(catalogEntries, scoreValues);
+    }
+
     public double computeBytes() {
         double counter = 0;
         counter += Float.SIZE * entries.size();
@@ -1,9 +1,12 @@
 package ceid.netcins.exo.catalog;
 
+import ceid.netcins.exo.messages.QueryPDU;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is a Catalog type (inverted List) with a set of CatalogEntries, which
@@ -34,21 +37,24 @@ public class SocialCatalog implements Serializable {
 
     public SocialCatalog(String tag) {
         this.tag = tag;
-        contentCatalogEntries = Collections.synchronizedSet(new HashSet<ContentCatalogEntry>());
-        userCatalogEntries = Collections.synchronizedSet(new HashSet<UserCatalogEntry>());
-        urlCatalogEntries = Collections.synchronizedSet(new HashSet<URLCatalogEntry>());
+        contentCatalogEntries = ConcurrentHashMap.<ContentCatalogEntry>newKeySet();
+        userCatalogEntries = ConcurrentHashMap.<UserCatalogEntry>newKeySet();
+        urlCatalogEntries = ConcurrentHashMap.<URLCatalogEntry>newKeySet();
     }
 
     public void setContentCatalogEntries(Set<ContentCatalogEntry> v) {
-        this.contentCatalogEntries = Collections.synchronizedSet(v);
+        this.contentCatalogEntries = ConcurrentHashMap.newKeySet();
+        this.contentCatalogEntries.addAll(v);
     }
 
     public void setUserCatalogEntries(Set<UserCatalogEntry> v) {
-        this.userCatalogEntries = Collections.synchronizedSet(v);
+        this.userCatalogEntries = ConcurrentHashMap.newKeySet();
+        this.userCatalogEntries.addAll(v);
     }
 
     public void setURLCatalogEntries(Set<URLCatalogEntry> v) {
-        this.urlCatalogEntries = Collections.synchronizedSet(v);
+        this.urlCatalogEntries = ConcurrentHashMap.newKeySet();
+        this.urlCatalogEntries.addAll(v);
     }
 
     /**
@@ -60,6 +66,15 @@ public class SocialCatalog implements Serializable {
         contentCatalogEntries.add(ce);
     }
 
+    /**
+     * Adds a batch of ContentCatalogEntries in contentCatalogEntries
+     *
+     * @param ces
+     */
+    public void addContentCatalogEntries(Collection<ContentCatalogEntry> ces) {
+        contentCatalogEntries.addAll(ces);
+    }
+
     /**
      * Adds a UserCatalogEntry in the userCatalogEntries Vector
      *
@@ -87,10 +102,8 @@ public class SocialCatalog implements Serializable {
      */
     public void replaceContentCatalogEntry(ContentCatalogEntry oldCE,
                                            ContentCatalogEntry newCE) {
-        synchronized (contentCatalogEntries) {
-            contentCatalogEntries.remove(oldCE);
-            contentCatalogEntries.add(newCE);
-        }
+        contentCatalogEntries.remove(oldCE);
+        contentCatalogEntries.add(newCE);
     }
 
     /**
@@ -102,10 +115,8 @@ public class SocialCatalog implements Serializable {
      */
     public void replaceUserCatalogEntry(UserCatalogEntry oldUE,
                                         UserCatalogEntry newUE) {
-        synchronized (userCatalogEntries) {
-            userCatalogEntries.remove(oldUE);
-            userCatalogEntries.add(newUE);
-        }
+        userCatalogEntries.remove(oldUE);
+        userCatalogEntries.add(newUE);
     }
 
     /**
@@ -117,10 +128,8 @@ public class SocialCatalog implements Serializable {
      */
     public void replaceURLCatalogEntry(URLCatalogEntry oldUE,
                                        URLCatalogEntry newUE) {
-        synchronized (urlCatalogEntries) {
-            urlCatalogEntries.remove(oldUE);
-            urlCatalogEntries.add(newUE);
-        }
+        urlCatalogEntries.remove(oldUE);
+        urlCatalogEntries.add(newUE);
     }
 
     /**
@@ -159,6 +168,80 @@ public class SocialCatalog implements Serializable {
         return urlCatalogEntries;
     }
 
+    /**
+     * @param type One of the types defined in QueryPDU
+     * @return the postings of this tag that a query of this type is after
+     */
+    public Set<? extends CatalogEntry> getCatalogEntriesForQueryType(int type) {
+        switch (type) {
+            case QueryPDU.USERQUERY:
+            case QueryPDU.USER_ENHANCEDQUERY:
+                return userCatalogEntries;
+            case QueryPDU.URLQUERY:
+                return urlCatalogEntries;
+            default:
+                return contentCatalogEntries;
+        }
+    }
+
+    /**
+     * Matches the entries tagged with the query tags. Postings are visited
+     * shortest first, so that an AND query only probes the other postings
+     * for the entries of the rarest tag.
+     *
+     * @param catalogs    The catalogs of the query tags found
+     * @param numTags     The number of (distinct) query tags
+     * @param type        One of the types defined in QueryPDU; hybrid
+     *                    queries match both content and users
+     * @param conjunctive Whether the entries must carry all query tags
+     * @return the matching entries, mapped to the fraction of the query tags
+     *         they carry
+     */
+    public static Map<CatalogEntry, Float> matchEntries(Collection<SocialCatalog> catalogs,
+                                                        int numTags, int type, boolean conjunctive) {
+        Map<CatalogEntry, Float> ret = new HashMap<CatalogEntry, Float>();
+        if (type == QueryPDU.HYBRIDQUERY || type == QueryPDU.HYBRID_ENHANCEDQUERY) {
+            matchEntries(ret, catalogs, numTags, QueryPDU.CONTENTQUERY, conjunctive);
+            matchEntries(ret, catalogs, numTags, QueryPDU.USERQUERY, conjunctive);
+        } else
+            matchEntries(ret, catalogs, numTags, type, conjunctive);
+        return ret;
+    }
+
+    private static void matchEntries(Map<CatalogEntry, Float> ret, Collection<SocialCatalog> catalogs,
+                                     int numTags, int type, boolean conjunctive) {
+        if (numTags <= 0 || (conjunctive && catalogs.size() < numTags))
+            return;
+        List<Set<? extends CatalogEntry>> postings = new ArrayList<Set<? extends CatalogEntry>>();
+        for (SocialCatalog sc : catalogs)
+            postings.add(sc.getCatalogEntriesForQueryType(type));
+        Collections.sort(postings, new Comparator<Set<? extends CatalogEntry>>() {
+            public int compare(Set<? extends CatalogEntry> s1, Set<? extends CatalogEntry> s2) {
+                return s1.size() - s2.size();
+            }
+        });
+
+        if (conjunctive) {
+            Float one = 1.0f;
+            for (CatalogEntry entry : postings.get(0)) {
+                boolean all = true;
+                for (int i = 1; all && i < postings.size(); i++)
+                    all = postings.get(i).contains(entry);
+                if (all)
+                    ret.put(entry, one);
+            }
+        } else {
+            Map<CatalogEntry, Integer> counts = new HashMap<CatalogEntry, Integer>();
+            for (Set<? extends CatalogEntry> posting : postings)
+                for (CatalogEntry entry : posting) {
+                    Integer c = counts.get(entry);
+                    counts.put(entry, (c == null) ? 1 : c + 1);
+                }
+            for (Map.Entry<CatalogEntry, Integer> e : counts.entrySet())
+                ret.put(e.getKey(), (float) e.getValue() / numTags);
+        }
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -178,4 +261,22 @@ public class SocialCatalog implements Serializable {
 
         return buf.toString();
     }
+
+    // Catalogs saved by older versions hold synchronized HashSets
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        contentCatalogEntries = concurrentSet(contentCatalogEntries);
+        userCatalogEntries = concurrentSet(userCatalogEntries);
+        urlCatalogEntries = concurrentSet(urlCatalogEntries);
+    }
+
+    private static <E> Set<E> concurrentSet(Set<E> s) {
+        if (s instanceof ConcurrentHashMap.KeySetView)
+            return s;
+        Set<E> ret = ConcurrentHashMap.newKeySet();
+        if (s != null)
+            ret.addAll(s);
+        return ret;
+    }
 }
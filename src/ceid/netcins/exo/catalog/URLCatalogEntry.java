@@ -70,6 +70,14 @@ public class URLCatalogEntry extends ContentCatalogEntry implements
         return (ue.getUID().equals(getUID()));
     }
 
+    @Override
+    public CatalogEntry copy() {
+        return new URLCatalogEntry(getUID(),
+                (getContentProfile() == null) ? null : new ContentProfile(getContentProfile()),
+                (getUserProfile() == null) ? null : new ContentProfile(getUserProfile()),
+                url);
+    }
+
     /**
      * A representation of the entry sewed to the specific class
      *
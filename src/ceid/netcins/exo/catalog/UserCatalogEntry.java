@@ -27,21 +27,31 @@ public class UserCatalogEntry extends CatalogEntry implements Serializable,
     // The profile of the user we want to have indexed.
     private ContentProfile userProfile;
 
+    // Version of userProfile (0 if unversioned). Catalogs keep versioned
+    // owner profiles once per user and store the entry without it.
+    private long userProfileVersion;
+
     public UserCatalogEntry(Id uid, ContentProfile usrp) {
+        this(uid, usrp, 0);
+    }
+
+    public UserCatalogEntry(Id uid, ContentProfile usrp, long usrpVersion) {
         super(uid);
         this.userProfile = usrp;
+        this.userProfileVersion = usrpVersion;
     }
 
     @Override
     public boolean equals(Object o) {
         return (o instanceof UserCatalogEntry &&
                 super.equals((CatalogEntry) o) &&
-                userProfile.equals(((UserCatalogEntry) o).userProfile));
+                (userProfile == null ? ((UserCatalogEntry) o).userProfile == null :
+                        userProfile.equals(((UserCatalogEntry) o).userProfile)));
     }
 
     @Override
     public int hashCode() {
-        return super.hashCode() + userProfile.hashCode();
+        return super.hashCode() + (userProfile == null ? 0 : userProfile.hashCode());
     }
 
     /**
@@ -53,6 +63,33 @@ public class UserCatalogEntry extends CatalogEntry implements Serializable,
         return this.userProfile;
     }
 
+    /**
+     * @return the version of the user profile, 0 if unversioned
+     */
+    public long getUserProfileVersion() {
+        return userProfileVersion;
+    }
+
+    /**
+     * @param usrp the resolved profile of the entry's owner
+     * @return a copy of this entry carrying usrp
+     */
+    public UserCatalogEntry withUserProfile(ContentProfile usrp) {
+        UserCatalogEntry ret = (UserCatalogEntry) copy();
+        ret.userProfile = usrp;
+        ret.setRefreshTime(getRefreshTime());
+        return ret;
+    }
+
+    /**
+     * Drops the embedded user profile, keeping its version as a reference to
+     * the Catalog's owner profile table. Only to be used on entries that have
+     * not been published yet.
+     */
+    void detachUserProfile() {
+        userProfile = null;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -78,6 +115,13 @@ public class UserCatalogEntry extends CatalogEntry implements Serializable,
         return counter;
     }
 
+    @Override
+    public CatalogEntry copy() {
+        return new UserCatalogEntry(getUID(),
+                (userProfile == null) ? null : new ContentProfile(userProfile),
+                userProfileVersion);
+    }
+
     @Override
     public CatalogEntry add(CatalogEntry additions) {
         if (additions != null && (
@@ -86,6 +130,8 @@ public class UserCatalogEntry extends CatalogEntry implements Serializable,
                 ) {
             return null;
         }
+        if (additions != null && ((UserCatalogEntry) additions).userProfileVersion > userProfileVersion)
+            userProfileVersion = ((UserCatalogEntry) additions).userProfileVersion;
         Set<ContentField> add = null;
         ContentProfile addcp = null;
         if (additions == null || (addcp = ((UserCatalogEntry) additions).getUserProfile()) == null ||
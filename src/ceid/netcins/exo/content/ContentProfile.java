@@ -1,7 +1,10 @@
 package ceid.netcins.exo.content;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This Class holds the Content Profile of a content object. Such an object is
@@ -24,13 +27,14 @@ public class ContentProfile implements Serializable, ProfileSet {
 
     private static final long serialVersionUID = -3971044346421201440L;
 
+    // Concurrent set: profiles are iterated by the Scorer while being updated
     Set<ContentField> fields;
 
     /**
      * Default constructor
      */
     public ContentProfile() {
-        this.fields = Collections.synchronizedSet(new HashSet<ContentField>());
+        this.fields = newFieldSet();
     }
 
     /**
@@ -39,9 +43,10 @@ public class ContentProfile implements Serializable, ProfileSet {
      * @param cp the ContentProfile to copy from
      */
     public ContentProfile(ContentProfile cp) {
-        if (cp != null)
-            this.fields = Collections.synchronizedSet(new HashSet<ContentField>(cp.fields));
-        else
+        if (cp != null) {
+            this.fields = newFieldSet();
+            this.fields.addAll(cp.fields);
+        } else
             this.fields = null;
     }
 
@@ -263,4 +268,19 @@ public class ContentProfile implements Serializable, ProfileSet {
         for (ContentField cf : add)
             add(cf);
     }
+
+    private static Set<ContentField> newFieldSet() {
+        return ConcurrentHashMap.<ContentField>newKeySet();
+    }
+
+    // Profiles saved by older versions hold a synchronized HashSet
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        if (fields != null && !(fields instanceof ConcurrentHashMap.KeySetView)) {
+            Set<ContentField> old = fields;
+            fields = newFieldSet();
+            fields.addAll(old);
+        }
+    }
 }
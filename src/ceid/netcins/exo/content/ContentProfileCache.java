@@ -0,0 +1,163 @@
+package ceid.netcins.exo.content;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the profiles extracted from files by their SHA-1 checksum, so
+ * that sharing the same content again (another copy, a re-upload, or a
+ * re-share after a restart) does not run libextractor and the analyzer
+ * again. It also remembers the checksum of every file by its path, size and
+ * modification time, so that unchanged files need not even be hashed.
+ * Both tables are bounded and drop their least recently used entries first.
+ * The cache is saved to, and loaded from, a file of its own.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class ContentProfileCache implements Serializable {
+
+    private static final long serialVersionUID = 2754930917160344751L;
+
+    private static class FileStamp implements Serializable {
+        private static final long serialVersionUID = -5119807416452208353L;
+        private final long length;
+        private final long lastModified;
+        private final String sha1;
+
+        private FileStamp(long length, long lastModified, String sha1) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+    }
+
+    // Maximum number of entries of each table
+    private final int maxEntries;
+
+    // Absolute path -> checksum of the file, least recently used first
+    private final LinkedHashMap<String, FileStamp> stamps;
+
+    // Checksum -> extracted profile, least recently used first
+    private final LinkedHashMap<String, ContentProfile> profiles;
+
+    // Whether there are changes not saved yet
+    private transient boolean dirty = false;
+
+    public ContentProfileCache(int maxEntries) {
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.stamps = new LinkedHashMap<String, FileStamp>(16, 0.75f, true);
+        this.profiles = new LinkedHashMap<String, ContentProfile>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the checksum of f as last recorded, or null if f is not known
+     *         or has changed (in size or modification time) since
+     */
+    public synchronized String getDigest(File f) {
+        FileStamp stamp = stamps.get(f.getAbsolutePath());
+        if (stamp == null)
+            return null;
+        if (stamp.length != f.length() || stamp.lastModified != f.lastModified()) {
+            stamps.remove(f.getAbsolutePath());
+            dirty = true;
+            return null;
+        }
+        return stamp.sha1;
+    }
+
+    public synchronized void putDigest(File f, String sha1) {
+        stamps.put(f.getAbsolutePath(), new FileStamp(f.length(), f.lastModified(), sha1));
+        trim(stamps);
+        dirty = true;
+    }
+
+    /**
+     * @return the profile extracted from a file with this checksum, or null.
+     *         The profile is a copy, still carrying the file specific fields
+     *         of the file it was extracted from.
+     */
+    public synchronized ContentProfile get(String sha1) {
+        ContentProfile cp = profiles.get(sha1);
+        return (cp != null) ? new ContentProfile(cp) : null;
+    }
+
+    public synchronized void put(String sha1, ContentProfile cp) {
+        profiles.put(sha1, new ContentProfile(cp));
+        trim(profiles);
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return profiles.size();
+    }
+
+    /**
+     * Saves the cache to a file, if it has changed since it was loaded or
+     * last saved.
+     */
+    public synchronized void save(File f) throws IOException {
+        if (!dirty)
+            return;
+        // Write aside and rename, not to lose the old copy on failure
+        File tmp = new File(f.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+            throw new IOException("Cannot replace " + f);
+        dirty = false;
+    }
+
+    /**
+     * @return the cache saved in f, or an empty one if there is no such
+     *         (readable) file
+     */
+    public static ContentProfileCache load(File f, int maxEntries) {
+        ContentProfileCache ret = null;
+        if (f.isFile() && f.canRead()) {
+            try {
+                ObjectInputStream in = new ObjectInputStream(
+                        new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    ret = (ContentProfileCache) in.readObject();
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                System.err.println("Ignoring unreadable profile cache " + f + ": " + e.getMessage());
+            }
+        }
+        if (ret == null)
+            return new ContentProfileCache(maxEntries);
+        if (ret.maxEntries == maxEntries)
+            return ret;
+        // The limit has changed; keep the most recently used entries
+        ContentProfileCache resized = new ContentProfileCache(maxEntries);
+        resized.stamps.putAll(ret.stamps);
+        resized.profiles.putAll(ret.profiles);
+        resized.trim(resized.stamps);
+        resized.trim(resized.profiles);
+        resized.dirty = true;
+        return resized;
+    }
+
+    private void trim(Map<String, ?> table) {
+        Iterator<String> it = table.keySet().iterator();
+        while (table.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ceid.netcins.exo.content;
 
+import ceid.netcins.exo.utils.ObjectIntHashMap;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.TermAttribute;
@@ -9,6 +10,10 @@ import org.gnu.libextractor.Extractor;
 import org.gnu.libextractor.MetaData;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -33,12 +38,26 @@ public class ContentProfileFactory {
     // Default length for a field. The max num of terms!
     public final static int DEFAULT_MAX_FIELD_LENGTH = 10000;
 
-    // Our analyzer!
+    // Size of the (direct) buffers used to read and digest files
+    private final static int IO_BUFFER_SIZE = 256 * 1024;
+
+    // One I/O buffer per thread, as direct buffers are expensive to allocate
+    private final static ThreadLocal<ByteBuffer> ioBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        }
+    };
+
+    // Our analyzer! It keeps one reusable TokenStream per thread
     StandardAnalyzer sa;
 
     // max num of terms permitted to handle
     int maxFieldLength;
 
+    // Profiles already extracted, by checksum (may be null)
+    private ContentProfileCache cache = null;
+
     /**
      * Creates a ContentProfile for a specific File given as input.
      * The extracted attributes of the file are grouped as ContentFields in the
@@ -67,6 +86,18 @@ public class ContentProfileFactory {
      */
     public ContentProfile buildContentProfile(File f)
             throws java.io.FileNotFoundException, java.io.IOException {
+        return buildContentProfile(f, null);
+    }
+
+    /**
+     * As buildContentProfile(File), for a file whose SHA-1 checksum is
+     * already known (e.g. computed while it was being stored, see
+     * storeWithDigest()), so that the file is not read again to compute it.
+     *
+     * @param sha1 the hex SHA-1 checksum of f, or null to compute it
+     */
+    public ContentProfile buildContentProfile(File f, String sha1)
+            throws java.io.FileNotFoundException, java.io.IOException {
 
         if (!f.exists()) {
             throw new java.io.FileNotFoundException("File does not exist!");
@@ -78,11 +109,19 @@ public class ContentProfileFactory {
             throw new java.io.FileNotFoundException("File cannot be read!");
         }
 
+        if (cache != null) {
+            if (sha1 == null)
+                sha1 = digestFile(f);
+            ContentProfile cached = (sha1 != null) ? cache.get(sha1) : null;
+            if (cached != null)
+                return setFileFields(cached, f);
+        }
+
         // make a new, empty ContentProfile to fill in!
         ContentProfile cprof = new ContentProfile();
 
         // Map of candidate fields as given by the libextractor!
-        Map<String, String> candfields = extractFile(f);
+        Map<String, String> candfields = extractFile(f, sha1);
 
         if (candfields != null) {
 
@@ -178,10 +217,41 @@ public class ContentProfileFactory {
                 cprof.add(new TermField(keys.next(), values.next()));
         }
 
+        if (cache != null && sha1 != null)
+            cache.put(sha1, cprof);
+
         // return the content profile
         return cprof;
     }
 
+    /**
+     * Replaces the fields that describe the file rather than its content, in
+     * a (cached) profile extracted from another file with the same content.
+     */
+    private ContentProfile setFileFields(ContentProfile cprof, File f) {
+        ContentField old;
+        if ((old = cprof.getField("filename", TermField.class)) != null)
+            cprof.remove(old);
+        cprof.add(new TermField("filename", f.getName()));
+        if ((old = cprof.getField("modified", StoredField.class)) != null)
+            cprof.remove(old);
+        cprof.add(new StoredField("modified", DateTools.timeToString(f
+                .lastModified(), DateTools.Resolution.MINUTE)));
+        return cprof;
+    }
+
+    /**
+     * Sets the cache consulted before extracting a profile or digesting a
+     * file, or null for none.
+     */
+    public void setCache(ContentProfileCache cache) {
+        this.cache = cache;
+    }
+
+    public ContentProfileCache getCache() {
+        return cache;
+    }
+
     private Map<String, String> metadataToMap(ArrayList<MetaData> keywords) {
         Map<String, String> tempcontainer = new HashMap<String, String>();
         if (keywords != null)
@@ -198,8 +268,15 @@ public class ContentProfileFactory {
         return tempcontainer;
     }
 
-    @SuppressWarnings("unchecked")
     public Map<String, String> extractFile(File f) throws IOException {
+        return extractFile(f, null);
+    }
+
+    /**
+     * @param sha1 the hex SHA-1 checksum of f, or null to compute it
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> extractFile(File f, String sha1) throws IOException {
         if (!f.exists() || !f.canRead() || f.isDirectory())
             return null;
         Extractor ex = null;
@@ -212,12 +289,27 @@ public class ContentProfileFactory {
         if (ex != null)
             tempcontainer.putAll(metadataToMap(ex.extract(f)));
         tempcontainer.put("filename", f.getName());
-        String sha1 = getFileDigest(f, "SHA1");
+        if (sha1 == null)
+            sha1 = digestFile(f);
         if (sha1 != null)
             tempcontainer.put("SHA-1", sha1);
         return tempcontainer;
     }
 
+    /**
+     * @return the hex SHA-1 checksum of f, as used in content profiles, or
+     *         null if it cannot be read
+     */
+    public String digestFile(File f) {
+        String sha1 = (cache != null) ? cache.getDigest(f) : null;
+        if (sha1 != null)
+            return sha1;
+        sha1 = getFileDigest(f, "SHA1");
+        if (cache != null && sha1 != null)
+            cache.putDigest(f, sha1);
+        return sha1;
+    }
+
     private String getFileDigest(File f, String algorithm) {
         MessageDigest md;
         try {
@@ -226,91 +318,136 @@ public class ContentProfileFactory {
             return null;
         }
 
-        FileInputStream fis = null;
-        byte[] dataBytes = new byte[1024];
-        int nread = 0;
-
+        FileChannel fc = null;
+        ByteBuffer buf = ioBuffer.get();
         try {
-            fis = new FileInputStream(f);
-            while ((nread = fis.read(dataBytes)) != -1)
-                md.update(dataBytes, 0, nread);
+            fc = new FileInputStream(f).getChannel();
+            buf.clear();
+            while (fc.read(buf) != -1) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
         } catch (FileNotFoundException e) {
             return null;
         } catch (IOException e) {
             return null;
         } finally {
             try {
-                if (fis != null)
-                    fis.close();
+                if (fc != null)
+                    fc.close();
             } catch (IOException e) {
                 return null;
             }
         }
+        return toHexString(md.digest());
+    }
 
-        byte[] mdbytes = md.digest();
-        StringBuffer sb = new StringBuffer("");
+    /**
+     * Stores a stream (e.g. an upload) to a file, computing its SHA-1
+     * checksum on the way, so that it does not have to be read back for it.
+     *
+     * @param in   the data to store; it is not closed
+     * @param dest the file to store it to
+     * @return the hex SHA-1 checksum of the data, as used in content profiles
+     */
+    public static String storeWithDigest(InputStream in, File dest) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1 implementation available", e);
+        }
+
+        ReadableByteChannel src = Channels.newChannel(in);
+        FileChannel fc = new FileOutputStream(dest).getChannel();
+        ByteBuffer buf = ioBuffer.get();
+        try {
+            buf.clear();
+            while (src.read(buf) != -1) {
+                buf.flip();
+                md.update(buf.duplicate());
+                while (buf.hasRemaining())
+                    fc.write(buf);
+                buf.clear();
+            }
+        } finally {
+            fc.close();
+        }
+        return toHexString(md.digest());
+    }
+
+    private static String toHexString(byte[] mdbytes) {
+        StringBuffer sb = new StringBuffer(mdbytes.length * 2);
         for (int i = 0; i < mdbytes.length; i++)
             sb.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16).substring(1));
         return sb.toString();
     }
 
     /**
+     * Tokenizes the contents of reader, counting the occurences of each term.
+     * This is safe to call from several threads at once: the analyzer keeps
+     * one reusable TokenStream per thread, instead of building a new
+     * tokenizer/filter chain per document.
+     *
      * @param reader a source for obtaining the tokens
-     * @return null if no reader can be obtained, or a Map with the set of terms
-     *         the corresponding term occurences in the field.
-     *         Map<String,Integer> = Map < Term, TF >
+     * @return null if no reader can be obtained, or the terms with the
+     *         corresponding term occurences in the field.
      */
-    public TreeMap<String, Integer> termFrequencies(Reader reader)
+    public ObjectIntHashMap<String> termCounts(Reader reader)
             throws IOException {
 
-        // TODO : compute global Doc term frequency
-        if (reader != null) {
-
-            TokenStream ts = sa.tokenStream("contents", reader); // Field name is not used at all :-) in LUCENE!!!
-
-            int length = 0; // Number of terms seen!
-            TreeMap<String, Integer> tfv = new TreeMap<String, Integer>(); // TreeMap to sort terms
-            Integer i = null;
-
-            // reset the TokenStream to the first token
-            ts.reset();
-
-            try {
+        if (reader == null)
+            return null;
 
-                for (; ; ) {
-                    if (ts.incrementToken() == false)
-                        break;
-                    String str = ts.getAttribute(TermAttribute.class).term();
+        // Field name is not used at all :-) in LUCENE!!!
+        TokenStream ts = sa.reusableTokenStream("contents", reader);
+        TermAttribute termAtt = ts.addAttribute(TermAttribute.class);
 
-                    if (str != null) {
+        int length = 0; // Number of terms seen!
+        ObjectIntHashMap<String> counts = new ObjectIntHashMap<String>();
 
-                        // Already met this term, +1 to term frequency
-                        if (tfv.containsKey(str) && (i = tfv.get(str)) != null) {
-                            tfv.put(str, Integer.valueOf(i.intValue() + 1));
-                            i = null;
+        // reset the TokenStream to the first token
+        ts.reset();
 
-                        } else { // First term occurence
-                            tfv.put(str, Integer.valueOf(1));
-                        }
-                    } else {
-                        System.out.println("Null token.termText!");
-                        break;
-                    }
-                    if (++length >= maxFieldLength) {
-                        System.out
-                                .println("maxFieldLength "
-                                        + maxFieldLength
-                                        + " reached for field, ignoring following tokens");
-                        break;
-                    }
+        try {
+            while (ts.incrementToken()) {
+                // +1 to term frequency (first occurence inserts 1)
+                counts.increment(termAtt.term(), 1);
+                if (++length >= maxFieldLength) {
+                    System.out
+                            .println("maxFieldLength "
+                                    + maxFieldLength
+                                    + " reached for field, ignoring following tokens");
+                    break;
                 }
-
-            } finally {
-                ts.close();
             }
-            return tfv;
+            ts.end();
+        } finally {
+            ts.close();
         }
-        return null;
+        return counts;
+    }
+
+    /**
+     * @param reader a source for obtaining the tokens
+     * @return null if no reader can be obtained, or a Map with the set of terms
+     *         the corresponding term occurences in the field.
+     *         Map<String,Integer> = Map < Term, TF >
+     */
+    public TreeMap<String, Integer> termFrequencies(Reader reader)
+            throws IOException {
+
+        // TODO : compute global Doc term frequency
+        ObjectIntHashMap<String> counts = termCounts(reader);
+        if (counts == null)
+            return null;
+        TreeMap<String, Integer> tfv = new TreeMap<String, Integer>(); // TreeMap to sort terms
+        List<String> terms = counts.keys();
+        int[] freqs = counts.values();
+        for (int i = 0; i < freqs.length; i++)
+            tfv.put(terms.get(i), freqs[i]);
+        return tfv;
     }
 
     /**
@@ -320,50 +457,8 @@ public class ContentProfileFactory {
      *         field.
      */
     public TreeSet<String> termSet(Reader reader) throws IOException {
-
-        if (reader != null) {
-
-            TokenStream ts = sa.tokenStream("contents", reader); // Field name
-            // is not
-            // used at
-            // all :-)
-            // in
-            // LUCENE!!!
-
-            int length = 0; // Number of terms seen!
-            TreeSet<String> tv = new TreeSet<String>(); // TreeSet to sort terms
-
-            // reset the TokenStream to the first token
-            ts.reset();
-
-            try {
-
-                for (; ; ) {
-                    if (ts.incrementToken() == false)
-                        break;
-                    String str = ts.getAttribute(TermAttribute.class).term();
-
-                    if (str != null) {
-                        tv.add(str);
-                    } else {
-                        System.out.println("Null token.termText!");
-                        break;
-                    }
-                    if (++length >= maxFieldLength) {
-                        System.out
-                                .println("maxFieldLength "
-                                        + maxFieldLength
-                                        + " reached for field, ignoring following tokens");
-                        break;
-                    }
-                }
-
-            } finally {
-                ts.close();
-            }
-            return tv;
-        }
-        return null;
+        ObjectIntHashMap<String> counts = termCounts(reader);
+        return (counts != null) ? new TreeSet<String>(counts.keys()) : null;
     }
 
     /**
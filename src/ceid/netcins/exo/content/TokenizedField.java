@@ -1,5 +1,9 @@
 package ceid.netcins.exo.content;
 
+import ceid.netcins.exo.utils.ObjectIntHashMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
 
@@ -19,8 +23,8 @@ public class TokenizedField extends ContentField implements Serializable {
 
     private static final long serialVersionUID = 3889036995034671146L;
 
-    // Terms are provided in sorted order;
-    private Hashtable<String, Integer> termFreq;
+    // Term -> tf, kept unboxed (a profile may carry thousands of terms)
+    private ObjectIntHashMap<String> termFreq;
 
     private static final Random rng = new Random(System.currentTimeMillis());
 
@@ -28,9 +32,12 @@ public class TokenizedField extends ContentField implements Serializable {
         super(name, isPublic);
 
         // Allocate the necessary size and transfer the terms and tfs
-        termFreq = new Hashtable<String, Integer>();
-        if (tfm != null)
-            termFreq.putAll(tfm);
+        termFreq = (tfm != null) ? new ObjectIntHashMap<String>(tfm) : new ObjectIntHashMap<String>();
+    }
+
+    public TokenizedField(String name, ObjectIntHashMap<String> tfm, boolean isPublic) {
+        super(name, isPublic);
+        termFreq = (tfm != null) ? tfm : new ObjectIntHashMap<String>();
     }
 
     public TokenizedField(String name, TreeMap<String, Integer> tfm) {
@@ -47,12 +54,10 @@ public class TokenizedField extends ContentField implements Serializable {
         super(name, isPublic);
 
         // Allocate the necessary size and transfer the terms
-        termFreq = new Hashtable<String, Integer>();
+        termFreq = new ObjectIntHashMap<String>(tfm != null ? tfm.size() : 0);
         if (tfm != null)
-            for (String term : tfm) {
-                Integer freq = (termFreq.containsKey(term) ? termFreq.get(term) : 0);
-                termFreq.put(term, freq);
-            }
+            for (String term : tfm)
+                termFreq.put(term, 0);
     }
 
     public TokenizedField(String name, TreeSet<String> tfm) {
@@ -63,34 +68,35 @@ public class TokenizedField extends ContentField implements Serializable {
         if (tkf.termFreq == null || tkf.termFreq.size() == 0)
             return;
         if (termFreq == null) {
-            termFreq = new Hashtable<String, Integer>(tkf.termFreq);
+            termFreq = new ObjectIntHashMap<String>(tkf.termFreq);
             return;
         }
-        Iterator<String> keys = tkf.termFreq.keySet().iterator();
-        Iterator<Integer> values = tkf.termFreq.values().iterator();
-        while (keys.hasNext()) {
-            String otherKey = keys.next();
-            Integer otherValue = values.next();
-            addTerm(otherKey, otherValue);
-        }
+        List<String> keys = tkf.termFreq.keys();
+        int[] values = tkf.termFreq.values();
+        for (int i = 0; i < values.length; i++)
+            addTerm(keys.get(i), values[i]);
     }
 
     public String[] getTerms() {
-        Object[] o = termFreq.keySet().toArray();
-        String[] ret = new String[o.length];
-        for (int i = 0; i < ret.length; i++)
-            ret[i] = (String) o[i];
-        return ret;
+        return termFreq.keys().toArray(new String[termFreq.size()]);
     }
 
     public Integer[] getTF() {
-        Object[] o = termFreq.values().toArray();
-        Integer[] ret = new Integer[o.length];
+        int[] tf = termFreq.values();
+        Integer[] ret = new Integer[tf.length];
         for (int i = 0; i < ret.length; i++)
-            ret[i] = (Integer) o[i];
+            ret[i] = tf[i];
         return ret;
     }
 
+    /**
+     * @param term
+     * @return the tf of term, or 0 if the term is not part of this field
+     */
+    public int getTF(String term) {
+        return termFreq.get(term);
+    }
+
     public void addTerm(String term) {
         addTerm(term, 1);
     }
@@ -98,17 +104,13 @@ public class TokenizedField extends ContentField implements Serializable {
     public void addTerm(String term, Integer freq) {
         if (freq == null || freq < 0)
             throw new RuntimeException("Negative frequency");
-        Integer oldFreq = termFreq.get(term);
-        if (oldFreq == null)
-            oldFreq = Integer.valueOf(0);
-        termFreq.put(term, freq + oldFreq);
+        termFreq.increment(term, freq);
     }
 
     public String randomTerm() {
         if (termFreq.isEmpty())
             return null;
-        int num = rng.nextInt(termFreq.size());
-        return (String) (termFreq.keySet().toArray()[num]);
+        return termFreq.keyAtPosition(rng.nextInt(termFreq.size()));
     }
 
     /* (non-Javadoc)
@@ -116,7 +118,7 @@ public class TokenizedField extends ContentField implements Serializable {
       */
     public int size() {
         int sum = super.size();
-        for (String s : termFreq.keySet()) {
+        for (String s : termFreq.keys()) {
             sum += s.getBytes().length + 4; // 4 bytes for the term frequencies
         }
         return sum;
@@ -129,16 +131,16 @@ public class TokenizedField extends ContentField implements Serializable {
         boolean isFirst = true;
         StringBuffer buffer = new StringBuffer();
         buffer.append("TKF{ \"" + name + "\" : [ ");
-        Iterator<String> keys = termFreq.keySet().iterator();
-        Iterator<Integer> values = termFreq.values().iterator();
-        while (keys.hasNext()) {
+        Iterator<String> keys = termFreq.keys().iterator();
+        int[] values = termFreq.values();
+        for (int i = 0; keys.hasNext(); i++) {
             if (!isFirst)
                 buffer.append(" , ");
             else
                 isFirst = false;
 
             String term = keys.next();
-            Integer freq = values.next();
+            int freq = values[i];
             buffer.append("{ \" " + term + "\"");
             if (freq != 0)
                 buffer.append(" : " + freq);
@@ -152,7 +154,7 @@ public class TokenizedField extends ContentField implements Serializable {
         boolean isFirst = true;
         StringBuffer buffer = new StringBuffer();
         buffer.append("TKF{ \"" + name + "\" : [ ");
-        Iterator<String> keys = termFreq.keySet().iterator();
+        Iterator<String> keys = termFreq.keys().iterator();
         while (keys.hasNext()) {
             if (!isFirst)
                 buffer.append(" , ");
@@ -176,4 +178,19 @@ public class TokenizedField extends ContentField implements Serializable {
     public int hashCode() {
         return super.hashCode() + termFreq.hashCode();
     }
+
+    // Fields saved by older versions keep their term frequencies in a
+    // Hashtable<String, Integer>
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Object tfm = fields.get("termFreq", null);
+        if (tfm instanceof ObjectIntHashMap)
+            termFreq = (ObjectIntHashMap<String>) tfm;
+        else if (tfm instanceof Map)
+            termFreq = new ObjectIntHashMap<String>((Map<String, Integer>) tfm);
+        else
+            termFreq = new ObjectIntHashMap<String>();
+    }
 }
@@ -0,0 +1,270 @@
+package ceid.netcins.exo.frontend;
+
+import ceid.netcins.exo.catalog.ScoreBoard;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the outcome of asynchronous frontend requests until the client polls
+ * for them. Results used to be kept until collected, so requests whose client
+ * went away (closed tabs, clients that never poll) leaked their results
+ * forever. This queue is bounded in the number of requests, both overall and
+ * per client, and in the (estimated) size of the stored results; requests
+ * left untouched for longer than the TTL are dropped. Entries are kept in the
+ * order of their last update, so that expired and eviction candidates are
+ * always found at the head.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class RequestQueue {
+
+    // Rough per-item estimates for results other than ScoreBoards
+    private static final long EntryBytes = 64;
+    private static final long ItemBytes = 32;
+
+    private static class Entry {
+        private final String client;
+        private Map<String, Object> result;
+        private long bytes;
+        private long lastUpdate;
+        private boolean completed;
+
+        private Entry(String client) {
+            this.client = client;
+        }
+    }
+
+    private final int maxRequests;
+    private final int maxPerClient;
+    private final long maxBytes;
+    private final long ttl;
+
+    // reqID -> entry, least recently updated first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    // client -> number of entries it holds
+    private final Map<String, Integer> clientRequests = new HashMap<String, Integer>();
+
+    // Estimated size of all stored results
+    private long bytes = 0;
+
+    // Metrics
+    private long numCollected = 0;
+    private long numExpired = 0;
+    private long numAbandoned = 0;
+    private long numEvicted = 0;
+    private long numLate = 0;
+
+    /**
+     * @param maxRequests  maximum number of requests held overall
+     * @param maxPerClient maximum number of requests held per client
+     * @param maxBytes     maximum estimated size of the stored results
+     * @param ttl          time (ms) after its last update that a request is
+     *                     dropped
+     */
+    public RequestQueue(int maxRequests, int maxPerClient, long maxBytes, long ttl) {
+        this.maxRequests = Math.max(maxRequests, 1);
+        this.maxPerClient = Math.max(maxPerClient, 1);
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Registers a new request of the given client. If the client (or the
+     * queue as a whole) is at its limit, its least recently updated requests
+     * are evicted to make room.
+     */
+    public synchronized void add(String reqID, String client, Map<String, Object> result) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (client == null)
+            client = "";
+        remove(reqID, false);
+        Integer held = clientRequests.get(client);
+        if (held != null && held >= maxPerClient)
+            evictOldest(client);
+        while (entries.size() >= maxRequests && evictOldest(null))
+            ;
+        Entry e = new Entry(client);
+        entries.put(reqID, e);
+        held = clientRequests.get(client);
+        clientRequests.put(client, (held == null) ? 1 : held + 1);
+        store(e, result, false, now);
+    }
+
+    /**
+     * Records a new outcome for an existing request.
+     *
+     * @return false if the request is unknown, e.g. because it has already
+     *         expired or been evicted; the result is then dropped
+     */
+    public synchronized boolean update(String reqID, Map<String, Object> result, boolean completed) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Entry e = entries.remove(reqID);
+        if (e == null) {
+            numLate++;
+            return false;
+        }
+        // Re-insert, to move it to the tail
+        entries.put(reqID, e);
+        store(e, result, completed, now);
+        while (bytes > maxBytes && entries.size() > 1 && evictOldest(null))
+            ;
+        return true;
+    }
+
+    /**
+     * @return the last recorded outcome of the request, or null if unknown
+     */
+    public synchronized Map<String, Object> get(String reqID) {
+        expire(System.currentTimeMillis());
+        Entry e = entries.get(reqID);
+        return (e != null) ? e.result : null;
+    }
+
+    /**
+     * Drops a request whose outcome has been delivered to its client.
+     */
+    public synchronized Map<String, Object> remove(String reqID) {
+        Entry e = remove(reqID, false);
+        if (e == null)
+            return null;
+        numCollected++;
+        return e.result;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of results delivered to their clients
+     */
+    public synchronized long getNumCollected() {
+        return numCollected;
+    }
+
+    /**
+     * @return the number of requests dropped while still being processed
+     */
+    public synchronized long getNumExpired() {
+        return numExpired;
+    }
+
+    /**
+     * @return the number of completed results never collected by their client
+     */
+    public synchronized long getNumAbandoned() {
+        return numAbandoned;
+    }
+
+    /**
+     * @return the number of requests evicted to stay within the limits
+     */
+    public synchronized long getNumEvicted() {
+        return numEvicted;
+    }
+
+    /**
+     * @return the number of outcomes that arrived for unknown requests
+     */
+    public synchronized long getNumLate() {
+        return numLate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RequestQueue [requests=" + entries.size() + ", bytes=" + bytes +
+                ", collected=" + numCollected + ", expired=" + numExpired +
+                ", abandoned=" + numAbandoned + ", evicted=" + numEvicted +
+                ", late=" + numLate + "]";
+    }
+
+    private void store(Entry e, Map<String, Object> result, boolean completed, long now) {
+        long size = estimateBytes(result);
+        bytes += size - e.bytes;
+        e.bytes = size;
+        e.result = result;
+        e.completed = completed;
+        e.lastUpdate = now;
+    }
+
+    private Entry remove(String reqID, boolean dropped) {
+        Entry e = entries.remove(reqID);
+        if (e == null)
+            return null;
+        bytes -= e.bytes;
+        Integer held = clientRequests.get(e.client);
+        if (held == null || held <= 1)
+            clientRequests.remove(e.client);
+        else
+            clientRequests.put(e.client, held - 1);
+        if (dropped) {
+            if (e.completed)
+                numAbandoned++;
+            else
+                numExpired++;
+        }
+        return e;
+    }
+
+    private void expire(long now) {
+        while (!entries.isEmpty()) {
+            Map.Entry<String, Entry> head = entries.entrySet().iterator().next();
+            if (now - head.getValue().lastUpdate < ttl)
+                break;
+            remove(head.getKey(), true);
+        }
+    }
+
+    /**
+     * Evicts the least recently updated request of the given client, or of
+     * any client if client is null.
+     *
+     * @return true if something was evicted
+     */
+    private boolean evictOldest(String client) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (client == null || client.equals(e.getValue().client)) {
+                remove(e.getKey(), false);
+                numEvicted++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static long estimateBytes(Map<String, Object> result) {
+        if (result == null)
+            return 0;
+        long ret = EntryBytes;
+        for (Object data : result.values()) {
+            if (data instanceof ScoreBoard)
+                ret += (long) ((ScoreBoard) data).computeBytes();
+            else if (data instanceof Map)
+                ret += ItemBytes * ((Map) data).size();
+            else if (data instanceof Collection)
+                ret += ItemBytes * ((Collection) data).size();
+            else if (data instanceof Object[])
+                ret += ItemBytes * ((Object[]) data).length;
+            else
+                ret += ItemBytes;
+        }
+        return ret;
+    }
+}
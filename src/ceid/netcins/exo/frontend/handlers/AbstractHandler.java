@@ -2,19 +2,30 @@ package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
 import ceid.netcins.exo.Frontend;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.frontend.json.Json;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.Id;
+import rice.persistence.PersistentStorage;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -31,6 +42,7 @@ public abstract class AbstractHandler extends HttpServlet {
     private static final long DefaultSleepTime = 3000;
     private static final String DefaultEncoding = "utf-8";
     private static final String PostParamTag = "eXO_data";
+    private static final String UploadRepository = "shared";
     private static final String RequestStatusTag = "eXO::Status";
     private static final String ResponseDataTag = "eXO::Data";
 
@@ -41,6 +53,16 @@ public abstract class AbstractHandler extends HttpServlet {
     private static final String FriendMessageTag = "eXO::FriendMessage";
     private static final String SearchQueryTag = "eXO::SearchQuery";
     private static final String QueryTopKTag = "eXO::TopK";
+    private static final String QueryTTLTag = "eXO::TTL";
+    private static final String StreamTag = "eXO::Stream";
+    private static final String ExpandTag = "eXO::Expand";
+    private static final String CursorTag = "eXO::Cursor";
+    private static final String OffsetTag = "eXO::Offset";
+    private static final String PageSizeTag = "eXO::PageSize";
+    private static final String PageItemsTag = "eXO::Items";
+    private static final String NextCursorTag = "eXO::NextCursor";
+
+    private static final int DefaultMaxPageSize = 1000;
 
     protected static enum RequestState {
         LOCAL,
@@ -65,30 +87,166 @@ public abstract class AbstractHandler extends HttpServlet {
         }
     }
 
+    // Long polls parked on a request that is still being processed, by reqID
+    // (guarded by itself)
+    private static final Map<String, Set<Continuation>> waiters =
+            new HashMap<String, Set<Continuation>>();
+
     private long sleepTime;
-    private Hashtable<String, Hashtable<String, Object>> queue = null;
+    private int maxPageSize = DefaultMaxPageSize;
+    private RequestQueue queue = null;
 
     protected CatalogService catalogService = null;
 
-    @SuppressWarnings("rawtypes")
-    protected Map jsonMap = null;
-    protected Id uid = null;
-    protected Id cid = null;
-    protected String frMsg = null;
-    protected String filename = null;
-    protected String rawQuery = null;
-    protected Integer queryTopK = null;
-
-    public AbstractHandler(CatalogService catalogService, Hashtable<String, Hashtable<String, Object>> queue, long sleepTime) {
+    /**
+     * The values parsed from a single request. Jetty serves all concurrent
+     * requests to an endpoint with the same handler instance, so handlers keep
+     * no per-request fields; prepare() builds one of these and doPost()
+     * works off it instead.
+     */
+    protected static final class RequestContext {
+        private final RequestState state;
+        @SuppressWarnings("rawtypes")
+        private final Map jsonMap;
+        private final Id uid;
+        private final Id cid;
+        private final String frMsg;
+        private final String filename;
+        private final String rawQuery;
+        private final Integer queryTopK;
+        // How many times friend queries may be forwarded to friends of friends
+        private final int queryTTL;
+        // Whether results should be streamed instead of polled for
+        private final boolean stream;
+        // Whether DHT searches may expand the query with tags of the results
+        private final boolean expand;
+        // Listing position: the last Id of the previous page and/or an offset
+        private final Id cursor;
+        private final int offset;
+        // Requested page size, 0 if the listing is not paged
+        private final int pageSize;
+        // The reqID issued for this request, if any
+        private final String reqID;
+
+        private RequestContext(RequestState state) {
+            this(state, null, null, null, null, null, null, null, 0, false, false, null, 0, 0, null);
+        }
+
+        @SuppressWarnings("rawtypes")
+        private RequestContext(RequestState state, Map jsonMap, Id uid, Id cid,
+                               String frMsg, String filename, String rawQuery,
+                               Integer queryTopK, int queryTTL, boolean stream, boolean expand, Id cursor,
+                               int offset, int pageSize, String reqID) {
+            this.state = state;
+            this.jsonMap = jsonMap;
+            this.uid = uid;
+            this.cid = cid;
+            this.frMsg = frMsg;
+            this.filename = filename;
+            this.rawQuery = rawQuery;
+            this.queryTopK = queryTopK;
+            this.queryTTL = queryTTL;
+            this.stream = stream;
+            this.expand = expand;
+            this.cursor = cursor;
+            this.offset = offset;
+            this.pageSize = pageSize;
+            this.reqID = reqID;
+        }
+
+        public RequestState getState() {
+            return state;
+        }
+
+        public boolean isFinished() {
+            return state.equals(RequestState.FINISHED);
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Map getJsonMap() {
+            return jsonMap;
+        }
+
+        public Id getUID() {
+            return uid;
+        }
+
+        public Id getCID() {
+            return cid;
+        }
+
+        public String getFriendMessage() {
+            return frMsg;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getRawQuery() {
+            return rawQuery;
+        }
+
+        public Integer getQueryTopK() {
+            return queryTopK;
+        }
+
+        public int getQueryTTL() {
+            return queryTTL;
+        }
+
+        public boolean isStream() {
+            return stream;
+        }
+
+        public boolean isExpand() {
+            return expand;
+        }
+
+        public Id getCursor() {
+            return cursor;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public boolean isPaged() {
+            return pageSize > 0;
+        }
+
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        public String getReqID() {
+            return reqID;
+        }
+
+        /**
+         * @return a copy of this context carrying the given reqID
+         */
+        public RequestContext withReqID(String reqID) {
+            return new RequestContext(state, jsonMap, uid, cid, frMsg, filename, rawQuery, queryTopK, queryTTL,
+                    stream, expand, cursor, offset, pageSize, reqID);
+        }
+    }
+
+    protected static final RequestContext Finished = new RequestContext(RequestState.FINISHED);
+    private static final RequestContext Local = new RequestContext(RequestState.LOCAL);
+
+    public AbstractHandler(CatalogService catalogService, RequestQueue queue, long sleepTime) {
         this.catalogService = catalogService;
         this.queue = queue;
         this.sleepTime = sleepTime;
     }
 
-    public AbstractHandler(CatalogService catalogService, Hashtable<String, Hashtable<String, Object>> queue) {
+    public AbstractHandler(CatalogService catalogService, RequestQueue queue) {
         this(catalogService, queue, DefaultSleepTime);
         if (catalogService.getEnvironment().getParameters().contains("exo_jetty_longpolling_timeout"))
             sleepTime = catalogService.getEnvironment().getParameters().getLong("exo_jetty_longpolling_timeout");
+        if (catalogService.getEnvironment().getParameters().contains("exo_frontend_max_page_size"))
+            maxPageSize = catalogService.getEnvironment().getParameters().getInt("exo_frontend_max_page_size");
     }
 
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
@@ -106,10 +264,7 @@ public abstract class AbstractHandler extends HttpServlet {
         if (status.equals(RequestStatus.FAILURE))
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         try {
-            Logger logger = catalogService.getEnvironment().getLogManager().getLogger(this.getClass(), null);
-            if (logger.level <= Logger.INFO)
-                logger.log("JSON response: " + Json.toString(ret));
-            response.getWriter().write(Json.toString(ret));
+            writeJSON(response.getWriter(), ret);
         } catch (IOException e) {
             System.err.println("Error sending response to client");
             e.printStackTrace();
@@ -120,16 +275,46 @@ public abstract class AbstractHandler extends HttpServlet {
         sendStatus(response, status, data, null);
     }
 
-    protected String getNewReqID(HttpServletResponse response) {
+    /**
+     * Wraps one page of a listing, along with the cursor to the next page
+     * (the last key of this one), which is only present if the page is full.
+     */
+    protected Map<String, Object> makePage(SortedMap<Id, ?> items, int pageSize) {
+        Map<String, Object> ret = new Hashtable<String, Object>();
+        ret.put(PageItemsTag, items);
+        if (!items.isEmpty() && items.size() >= pageSize)
+            ret.put(NextCursorTag, items.lastKey().toStringFull());
+        return ret;
+    }
+
+    /**
+     * Writes the JSON form of a response, as sent by sendStatus()
+     */
+    protected void writeJSONResult(Writer writer, RequestStatus status, Object data) throws IOException {
+        writeJSON(writer, makeSendResult(status, data));
+    }
+
+    /**
+     * Streams ret to writer; it is only rendered as a whole String when it
+     * has to be logged as well.
+     */
+    private void writeJSON(Writer writer, Map<String, ?> ret) throws IOException {
+        Logger logger = catalogService.getEnvironment().getLogManager().getLogger(this.getClass(), null);
+        if (logger.level <= Logger.INFO) {
+            String json = Json.toString(ret);
+            logger.log("JSON response: " + json);
+            writer.write(json);
+        } else
+            Json.write(ret, writer);
+    }
+
+    protected String getNewReqID(HttpServletRequest request, HttpServletResponse response) {
         String reqID = Integer.toString(Frontend.nextReqID());
-        queueStatus(reqID, RequestStatus.PROCESSING, null);
+        queue.add(reqID, request.getRemoteAddr(), makeQueueResult(RequestStatus.PROCESSING, null));
         Map<String, String> ret = new Hashtable<String, String>();
         ret.put(ReqIDTag, reqID);
         try {
-            Logger logger = catalogService.getEnvironment().getLogManager().getLogger(this.getClass(), null);
-            if (logger.level <= Logger.INFO)
-                logger.log("JSON response: " + Json.toString(ret));
-            response.getWriter().write(Json.toString(ret));
+            writeJSON(response.getWriter(), ret);
         } catch (IOException e) {
             System.err.println("Error sending response to client");
             e.printStackTrace();
@@ -137,16 +322,12 @@ public abstract class AbstractHandler extends HttpServlet {
         return reqID;
     }
 
+    /**
+     * Parses the request. A FINISHED context means that a response has
+     * already been sent (or the request has been parked, see above).
+     */
     @SuppressWarnings("rawtypes")
-    protected RequestState prepare(HttpServletRequest request, HttpServletResponse response) {
-        jsonMap = null;
-        uid = null;
-        cid = null;
-        frMsg = null;
-        filename = null;
-        rawQuery = null;
-        queryTopK = null;
-
+    protected RequestContext prepare(HttpServletRequest request, HttpServletResponse response) {
         response.setContentType("application/json");
         response.setStatus(HttpServletResponse.SC_OK);
         response.setCharacterEncoding("utf-8");
@@ -158,38 +339,53 @@ public abstract class AbstractHandler extends HttpServlet {
                 param = URLDecoder.decode(param, DefaultEncoding);
             } catch (UnsupportedEncodingException e1) {
                 sendStatus(response, RequestStatus.FAILURE, null, "The thing that shouldn't be: " + e1.getMessage());
-                return RequestState.FINISHED;
+                return Finished;
             }
             Object jsonParams = null;
             try {
                 jsonParams = Json.parse(param);
             } catch (IllegalStateException e) {
                 sendStatus(response, RequestStatus.FAILURE, null, "Error parsing JSON request: " + e.getMessage());
-                return RequestState.FINISHED;
+                return Finished;
             }
             if (jsonParams instanceof Map) {
-                this.jsonMap = (Map) jsonParams;
+                Map jsonMap = (Map) jsonParams;
                 if (jsonMap.containsKey(ReqIDTag)) {
                     RequestStatus curStatus = null;
                     String reqID = (String) jsonMap.get(ReqIDTag);
-                    Map<String, Object> res = (Map<String, Object>) queue.get(reqID);
+                    Map<String, Object> res = queue.get(reqID);
                     if (res == null) {
                         sendStatus(response, RequestStatus.UNKNOWN, null, null);
-                        return RequestState.FINISHED;
+                        return Finished;
                     } else if ((curStatus = ((RequestStatus) res.get(RequestStatusTag))).equals(RequestStatus.PROCESSING)) {
-                        // Sleep as in long polling
-                        try {
-                            Thread.sleep(sleepTime);
-                        } catch (InterruptedException e) {
-                            System.err.println("Sleep interrupted. Ignoring...");
+                        // Long polling: park the request without holding a thread,
+                        // until queueStatus() completes reqID or sleepTime elapses
+                        Continuation continuation = ContinuationSupport.getContinuation(request);
+                        if (continuation.isInitial() && sleepTime > 0) {
+                            continuation.setTimeout(sleepTime);
+                            continuation.suspend();
+                            addWaiter(reqID, continuation);
+                            // The request may have completed before we were registered
+                            if (!isProcessing(reqID) && removeWaiter(reqID, continuation))
+                                resume(continuation);
+                            return Finished;
                         }
-                        sendStatus(response, RequestStatus.PROCESSING, null, null);
-                        return RequestState.FINISHED;
+                        removeWaiter(reqID, continuation);
+                        // Long running requests may report their progress
+                        sendStatus(response, RequestStatus.PROCESSING, res.get(ResponseDataTag), null);
+                        return Finished;
                     }
                     sendStatus(response, curStatus, res.get(ResponseDataTag), null);
                     queue.remove(reqID);
-                    return RequestState.FINISHED;
+                    return Finished;
                 }
+                Id uid = null, cid = null;
+                String frMsg = null, filename = null, rawQuery = null;
+                Integer queryTopK = null;
+                int queryTTL = 0;
+                boolean stream = false, expand = false;
+                Id cursor = null;
+                int offset = 0, pageSize = 0;
                 if (jsonMap.containsKey(UIDTag))
                     uid = rice.pastry.Id.build((String) jsonMap.get(UIDTag));
                 if (jsonMap.containsKey(CIDTag))
@@ -204,12 +400,41 @@ public abstract class AbstractHandler extends HttpServlet {
                     rawQuery = (String) jsonMap.get(SearchQueryTag);
                 if (jsonMap.containsKey(QueryTopKTag))
                     queryTopK = Long.valueOf((String) jsonMap.get(QueryTopKTag)).intValue();
-                return RequestState.REMOTE;
+                if (jsonMap.containsKey(QueryTTLTag))
+                    queryTTL = Math.max(Long.valueOf(String.valueOf(jsonMap.get(QueryTTLTag))).intValue(), 0);
+                if (jsonMap.containsKey(StreamTag))
+                    stream = Boolean.parseBoolean(String.valueOf(jsonMap.get(StreamTag)));
+                if (jsonMap.containsKey(ExpandTag))
+                    expand = Boolean.parseBoolean(String.valueOf(jsonMap.get(ExpandTag)));
+                if (jsonMap.containsKey(CursorTag))
+                    cursor = rice.pastry.Id.build((String) jsonMap.get(CursorTag));
+                if (jsonMap.containsKey(OffsetTag))
+                    offset = Math.max(Long.valueOf(String.valueOf(jsonMap.get(OffsetTag))).intValue(), 0);
+                if (jsonMap.containsKey(PageSizeTag))
+                    pageSize = Math.min(Math.max(Long.valueOf(String.valueOf(jsonMap.get(PageSizeTag))).intValue(), 0),
+                            maxPageSize);
+                return new RequestContext(RequestState.REMOTE, jsonMap, uid, cid,
+                        frMsg, filename, rawQuery, queryTopK, queryTTL, stream, expand, cursor, offset, pageSize, null);
             }
             sendStatus(response, RequestStatus.FAILURE, null, "Error in JSON request");
-            return RequestState.FINISHED;
+            return Finished;
         }
-        return RequestState.LOCAL;
+        return Local;
+    }
+
+    /**
+     * @return the directory uploads are stored in, and the only one local
+     *         files may be shared from
+     */
+    protected File getUploadRepository() {
+        PersistentStorage ps = (PersistentStorage) catalogService.getStorageManager().getStorage();
+        Parameters params = catalogService.getEnvironment().getParameters();
+        return new File(ps.getRoot() + File.separator +
+                ps.getName() + File.separator +
+                (params.contains("exo_uploads_repository") ?
+                        params.getString("exo_uploads_repository") :
+                        UploadRepository
+                ));
     }
 
     protected long getSleepTime() {
@@ -222,7 +447,61 @@ public abstract class AbstractHandler extends HttpServlet {
     }
 
     protected void queueStatus(String reqID, RequestStatus status, Object data) {
-        queue.put(reqID, makeQueueResult(status, data));
+        boolean completed = (status != null && !status.equals(RequestStatus.PROCESSING));
+        if (!queue.update(reqID, makeQueueResult(status, data), completed)) {
+            Logger logger = catalogService.getEnvironment().getLogManager().getLogger(this.getClass(), null);
+            if (logger.level <= Logger.INFO)
+                logger.log("Dropping result of expired request " + reqID + ": " + queue);
+        }
+        if (!completed)
+            return;
+        // Wake up the long polls waiting for this request
+        Set<Continuation> parked = null;
+        synchronized (waiters) {
+            parked = waiters.remove(reqID);
+        }
+        if (parked != null)
+            for (Continuation continuation : parked)
+                resume(continuation);
+    }
+
+    private boolean isProcessing(String reqID) {
+        Map<String, Object> res = queue.get(reqID);
+        return res != null && RequestStatus.PROCESSING.equals(res.get(RequestStatusTag));
+    }
+
+    private static void addWaiter(String reqID, Continuation continuation) {
+        synchronized (waiters) {
+            Set<Continuation> parked = waiters.get(reqID);
+            if (parked == null) {
+                parked = new HashSet<Continuation>();
+                waiters.put(reqID, parked);
+            }
+            parked.add(continuation);
+        }
+    }
+
+    /**
+     * @return true if the continuation was still registered, i.e. nobody else
+     *         has taken it over to resume it
+     */
+    private static boolean removeWaiter(String reqID, Continuation continuation) {
+        synchronized (waiters) {
+            Set<Continuation> parked = waiters.get(reqID);
+            if (parked == null || !parked.remove(continuation))
+                return false;
+            if (parked.isEmpty())
+                waiters.remove(reqID);
+            return true;
+        }
+    }
+
+    private static void resume(Continuation continuation) {
+        try {
+            continuation.resume();
+        } catch (IllegalStateException e) {
+            // Already expired and redispatched; the poll reports PROCESSING
+        }
     }
 
     private Hashtable<String, Object> makeQueueResult(RequestStatus status, Object data) {
@@ -1,11 +1,11 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import rice.Continuation;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
 import java.util.Map;
 
 /**
@@ -19,25 +19,31 @@ import java.util.Map;
  */
 public abstract class FriendRequestBaseHandler extends AbstractHandler {
     private static final long serialVersionUID = 6574754775170389536L;
-    protected String reqID = null;
-    Continuation<Object, Exception> command = null;
 
     public FriendRequestBaseHandler(CatalogService catalogService,
-                                    Hashtable<String, Hashtable<String, Object>> queue) {
+                                    RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
-    public RequestState prepare(HttpServletRequest request,
-                                HttpServletResponse response) {
-        if (super.prepare(request, response) == RequestState.FINISHED)
-            return RequestState.FINISHED;
-        if (uid == null) {
+    public RequestContext prepare(HttpServletRequest request,
+                                  HttpServletResponse response) {
+        RequestContext context = super.prepare(request, response);
+        if (context.isFinished())
+            return context;
+        if (context.getUID() == null) {
             sendStatus(response, RequestStatus.FAILURE, null);
-            return RequestState.FINISHED;
+            return Finished;
         }
-        reqID = getNewReqID(response);
-        command = new Continuation<Object, Exception>() {
+        return context.withReqID(getNewReqID(request, response));
+    }
+
+    /**
+     * @return a continuation queueing the outcome of a friend request command
+     *         under the given reqID
+     */
+    protected Continuation<Object, Exception> newCommand(final String reqID) {
+        return new Continuation<Object, Exception>() {
             @Override
             public void receiveResult(Object result) {
                 Object res;
@@ -54,6 +60,5 @@ public abstract class FriendRequestBaseHandler extends AbstractHandler {
                 queueStatus(reqID, RequestStatus.FAILURE, null);
             }
         };
-        return RequestState.REMOTE;
     }
 }
@@ -1,11 +1,17 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
+import ceid.netcins.exo.user.SharedContentInfo;
+import ceid.netcins.exo.user.User.SharedContentItem;
+import rice.p2p.commonapi.Id;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -21,15 +27,24 @@ public class GetContentHandler extends AbstractHandler {
     private static final long serialVersionUID = -2901313244513782698L;
 
     public GetContentHandler(CatalogService catalogService,
-                             Hashtable<String, Hashtable<String, Object>> queue) {
+                             RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
-        sendStatus(response, RequestStatus.SUCCESS, catalogService.getUser().getSharedContentItems());
+        if (!context.isPaged()) {
+            sendStatus(response, RequestStatus.SUCCESS, catalogService.getUser().getSharedContentItems());
+            return;
+        }
+        SortedMap<Id, SharedContentItem> page = new TreeMap<Id, SharedContentItem>();
+        for (Map.Entry<Id, SharedContentInfo> e : catalogService.getUser().getSharedContentPage(
+                context.getCursor(), context.getOffset(), context.getPageSize()).entrySet())
+            page.put(e.getKey(), new SharedContentItem(e.getValue().getFilename(), e.getValue().getProfile()));
+        sendStatus(response, RequestStatus.SUCCESS, makePage(page, context.getPageSize()));
     }
 }
@@ -1,6 +1,7 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.user.SharedContentInfo;
 import rice.Continuation;
 import rice.p2p.commonapi.Id;
@@ -9,10 +10,9 @@ import rice.p2p.past.PastException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -28,41 +28,48 @@ public class GetContentIDsHandler extends AbstractHandler {
     private static final long serialVersionUID = 2066271262351320193L;
 
     public GetContentIDsHandler(CatalogService catalogService,
-                                Hashtable<String, Hashtable<String, Object>> queue) {
+                                RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
 
         // If local request, return immediately
-        if (uid == null) {
-            Map<Id, String> ret = new HashMap<Id, String>();
-            Map<Id, SharedContentInfo> map = catalogService.getUser().getSharedContent();
-            Iterator<Id> itid = map.keySet().iterator();
-            Iterator<SharedContentInfo> itsci = map.values().iterator();
-            while (itid.hasNext()) {
-                ret.put(itid.next(), itsci.next().getFilename());
-            }
-            sendStatus(response, RequestStatus.SUCCESS, ret);
+        if (context.getUID() == null) {
+            SortedMap<Id, String> ret = new TreeMap<Id, String>();
+            Map<Id, SharedContentInfo> map = catalogService.getUser().getSharedContentPage(
+                    context.getCursor(), context.getOffset(), context.getPageSize());
+            for (Map.Entry<Id, SharedContentInfo> e : map.entrySet())
+                ret.put(e.getKey(), e.getValue().getFilename());
+            sendStatus(response, RequestStatus.SUCCESS,
+                    context.isPaged() ? makePage(ret, context.getPageSize()) : ret);
             return;
         }
 
         // Search for it in the network
-        final String reqID = getNewReqID(response);
+        final String reqID = getNewReqID(request, response);
         try {
-            catalogService.retrieveContentIDs(uid,
+            catalogService.retrieveContentIDs(context.getUID(),
+                    context.getCursor(), context.getOffset(), context.getPageSize(),
                     new Continuation<Object, Exception>() {
                         @Override
+                        @SuppressWarnings("unchecked")
                         public void receiveResult(Object result) {
                             if (result == null || !(result instanceof Map)) {
                                 receiveException(new PastException("Result was null or of wrong type"));
                                 return;
                             }
-                            queueStatus(reqID, RequestStatus.SUCCESS, result);
+                            if (!context.isPaged()) {
+                                queueStatus(reqID, RequestStatus.SUCCESS, result);
+                                return;
+                            }
+                            SortedMap<Id, String> page = new TreeMap<Id, String>((Map<Id, String>) result);
+                            queueStatus(reqID, RequestStatus.SUCCESS, makePage(page, context.getPageSize()));
                         }
 
                         @Override
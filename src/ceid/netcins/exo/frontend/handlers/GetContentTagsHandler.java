@@ -2,13 +2,14 @@ package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
 import ceid.netcins.exo.content.ContentProfile;
+import ceid.netcins.exo.frontend.RequestQueue;
 import rice.Continuation;
+import rice.p2p.commonapi.Id;
 import rice.p2p.past.PastException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -24,16 +25,19 @@ public class GetContentTagsHandler extends AbstractHandler {
     private static final long serialVersionUID = -358145592191291166L;
 
     public GetContentTagsHandler(CatalogService catalogService,
-                                 Hashtable<String, Hashtable<String, Object>> queue) {
+                                 RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
 
+        final Id uid = context.getUID();
+        final Id cid = context.getCID();
         if (cid == null) {
             sendStatus(response, RequestStatus.FAILURE, null);
             return;
@@ -50,7 +54,7 @@ public class GetContentTagsHandler extends AbstractHandler {
         }
 
         // Search for it in the network
-        final String reqID = getNewReqID(response);
+        final String reqID = getNewReqID(request, response);
         try {
             catalogService.retrieveContentTags(uid, cid,
                     new Continuation<Object, Exception>() {
@@ -1,6 +1,7 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.user.FriendRequest;
 
 import javax.servlet.ServletException;
@@ -25,14 +26,14 @@ public class GetFriendRequestsHandler extends AbstractHandler {
     private static final long serialVersionUID = -7350932922284839640L;
 
     public GetFriendRequestsHandler(CatalogService catalogService,
-                                    Hashtable<String, Hashtable<String, Object>> queue) {
+                                    RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        if (prepare(request, response).isFinished())
             return;
         Map<String, FriendRequest[]> ret = new Hashtable<String, FriendRequest[]>();
         Set<FriendRequest> frReqs = new HashSet<FriendRequest>();
@@ -1,17 +1,19 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
-import ceid.netcins.exo.content.ContentField;
 import ceid.netcins.exo.content.ContentProfile;
 import ceid.netcins.exo.content.Status;
 import ceid.netcins.exo.content.TermField;
-import ceid.netcins.exo.user.Friend;
+import ceid.netcins.exo.frontend.RequestQueue;
+import ceid.netcins.exo.user.StatusDigest;
+import ceid.netcins.exo.user.User;
 import rice.Continuation;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -25,72 +27,43 @@ public class GetFriendStatusHandler extends AbstractHandler {
     private static final long serialVersionUID = 7508245962714729908L;
 
     public GetFriendStatusHandler(CatalogService catalogService,
-                                  Hashtable<String, Hashtable<String, Object>> queue) {
+                                  RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        final HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        if (prepare(request, response).isFinished())
             return;
 
 
-        final String reqID = getNewReqID(response);
-
-        final List<ContentProfile> contentProfiles = new ArrayList<ContentProfile>();
-        for (final Friend friend : catalogService.getUser().getFriends().values()) {
-            try {
-                catalogService.getUserProfile(friend.getUID(), friend.getNodeHandle(), new Continuation<Object, Exception>() {
-                    @SuppressWarnings("unchecked")
-                    @Override
-                    public void receiveResult(Object result) {
-                        final HashMap<String, Object> resMap = (HashMap<String, Object>) result;
-                        if (!((Integer) resMap.get("status")).equals(CatalogService.SUCCESS))
-                            receiveException(new RuntimeException());
-
-                        final ContentProfile thisContentProfile = new ContentProfile((ContentProfile) resMap.get("data"));
-                        final ContentProfile thisStatusProfile = new ContentProfile();
-                        final List<Status> statusList = new ArrayList<Status>();
-                        for (final ContentField contentField : thisContentProfile.getAllFields()) {
-                            if (contentField instanceof Status) {
-                                statusList.add((Status) contentField);
-                            } else if (contentField.getFieldName().equals("Username")) {
-                                thisStatusProfile.add(contentField);
-                            }
-                        }
-
-
-                        Collections.sort(statusList);
-
-                        if (statusList.size() > 0) {
-                            if (statusList.size() >= 5) {
-                                for (int i = 0; i < 4; i++) {
-                                    thisStatusProfile.add(statusList.get(i));
-                                }
-                            } else {
-                                for (ContentField contentField : statusList) {
-                                    thisStatusProfile.add(contentField);
-                                }
-                            }
-
-                        }
-                        thisStatusProfile.add(new TermField("eXO:UID", friend.getUID().toStringFull()));
-
-                        contentProfiles.add(thisStatusProfile);
-                    }
+        final String reqID = getNewReqID(request, response);
+
+        // Friends are asked for their latest statuses only, all at once; the
+        // request completes when all have answered or the deadline expires.
+        // Digests pushed by friends since are not fetched again.
+        catalogService.getFriendStatuses(catalogService.getStatusLimit(), new Continuation<Object, Exception>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public void receiveResult(Object result) {
+                final List<ContentProfile> contentProfiles = new ArrayList<ContentProfile>();
+                for (final StatusDigest digest : (List<StatusDigest>) result) {
+                    final ContentProfile thisStatusProfile = new ContentProfile();
+                    if (digest.getUsername() != null)
+                        thisStatusProfile.add(new TermField(User.UsernameTag, digest.getUsername(), true));
+                    for (final Status status : digest.getStatuses())
+                        thisStatusProfile.add(status);
+                    thisStatusProfile.add(new TermField("eXO:UID", digest.getUID().toStringFull()));
+                    contentProfiles.add(thisStatusProfile);
+                }
+                queueStatus(reqID, RequestStatus.SUCCESS, contentProfiles);
+            }
 
-                    @Override
-                    public void receiveException(Exception exception) {
-                        exception.printStackTrace();
-                        queueStatus(reqID, RequestStatus.FAILURE, null);
-                    }
-                });
-            } catch (final Exception e) {
+            @Override
+            public void receiveException(Exception exception) {
                 queueStatus(reqID, RequestStatus.FAILURE, null);
             }
-        }
-
-        queueStatus(reqID, RequestStatus.SUCCESS, contentProfiles);
+        });
     }
 }
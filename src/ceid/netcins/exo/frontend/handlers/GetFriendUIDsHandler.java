@@ -1,6 +1,7 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.user.Friend;
 import rice.p2p.commonapi.Id;
 
@@ -8,6 +9,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Hashtable;
+import java.util.Map;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -23,18 +25,18 @@ public class GetFriendUIDsHandler extends AbstractHandler {
     private static final long serialVersionUID = 5244547683415352126L;
 
     public GetFriendUIDsHandler(CatalogService catalogService,
-                                Hashtable<String, Hashtable<String, Object>> queue) {
+                                RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        if (prepare(request, response).isFinished())
             return;
         Hashtable<String, Object> ret = new Hashtable<String, Object>();
         synchronized (catalogService) {
-            Hashtable<Id, Friend> friends = catalogService.getUser().getFriends();
+            Map<Id, Friend> friends = catalogService.getUser().getFriends();
             if (friends != null)
                 ret.put(FriendsTag, friends.values().toArray());
             else
@@ -2,13 +2,13 @@ package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
 import ceid.netcins.exo.content.ContentProfile;
+import ceid.netcins.exo.frontend.RequestQueue;
 import rice.Continuation;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
-import java.util.Hashtable;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -24,17 +24,18 @@ public class GetUserProfileHandler extends AbstractHandler {
     private static final long serialVersionUID = 2401227782075291999L;
 
     public GetUserProfileHandler(CatalogService catalogService,
-                                 Hashtable<String, Hashtable<String, Object>> queue) {
+                                 RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
 
-        if (uid == null) { // Local operation. Return immediately.
+        if (context.getUID() == null) { // Local operation. Return immediately.
             ContentProfile userProfile = catalogService.getUserProfile();
             if (userProfile != null)
                 sendStatus(response, RequestStatus.SUCCESS, userProfile);
@@ -43,9 +44,9 @@ public class GetUserProfileHandler extends AbstractHandler {
             return;
         }
 
-        final String reqID = getNewReqID(response);
+        final String reqID = getNewReqID(request, response);
         try {
-            catalogService.getUserProfile(uid, new Continuation<Object, Exception>() {
+            catalogService.getUserProfile(context.getUID(), new Continuation<Object, Exception>() {
 
                 @SuppressWarnings("unchecked")
                 @Override
@@ -1,6 +1,7 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.social.TagCloud;
 import rice.p2p.commonapi.Id;
 
@@ -8,7 +9,6 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.Map;
 
 /**
@@ -25,14 +25,14 @@ public class GetUserTagsHandler extends AbstractHandler {
     private static final long serialVersionUID = 7508245962714729908L;
 
     public GetUserTagsHandler(CatalogService catalogService,
-                              Hashtable<String, Hashtable<String, Object>> queue) {
+                              RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        if (prepare(request, response).isFinished())
             return;
         Map<Id, TagCloud> userTags = catalogService.getUser().getUserTagClouds();
         sendStatus(response, RequestStatus.SUCCESS, (userTags != null) ? userTags : new HashMap<String, String>());
@@ -1,13 +1,14 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.user.FriendRequest;
 import rice.p2p.commonapi.Id;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import java.util.Map;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -22,22 +23,24 @@ public class RejectFriendRequestHandler extends FriendRequestBaseHandler {
     private static final long serialVersionUID = -3228871623527689289L;
 
     public RejectFriendRequestHandler(CatalogService catalogService,
-                                      Hashtable<String, Hashtable<String, Object>> queue) {
+                                      RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
         synchronized (catalogService) {
-            final Hashtable<Id, FriendRequest> fr = catalogService.getUser().getPendingIncomingFReq();
-            if (!fr.containsKey(uid)) {
+            final Map<Id, FriendRequest> fr = catalogService.getUser().getPendingIncomingFReq();
+            if (!fr.containsKey(context.getUID())) {
                 sendStatus(response, RequestStatus.FAILURE, null);
                 return;
             }
-            catalogService.rejectFriend(fr.get(uid), frMsg, command);
+            catalogService.rejectFriend(fr.get(context.getUID()), context.getFriendMessage(),
+                    newCommand(context.getReqID()));
         }
     }
 }
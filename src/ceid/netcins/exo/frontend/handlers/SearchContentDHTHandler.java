@@ -1,11 +1,8 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
-
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import ceid.netcins.exo.frontend.RequestQueue;
+import rice.Continuation;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -20,18 +17,16 @@ public class SearchContentDHTHandler extends SearchRequestBaseHandler {
     private static final long serialVersionUID = 825367464625718048L;
 
     public SearchContentDHTHandler(CatalogService catalogService,
-                                   Hashtable<String, Hashtable<String, Object>> queue) {
+                                   RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
-    public void doPost(HttpServletRequest request,
-                       HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
-            return;
-
-        final String reqID = getNewReqID(response);
-        catalogService.searchContent(rawQuery, queryTopK,
-                new SearchResultContinuation(reqID, this));
+    protected int doSearch(RequestContext context, Continuation<Object, Exception> command) {
+        if (context.isExpand())
+            return catalogService.searchContentExpanded(context.getRawQuery(), context.getQueryTopK(),
+                    command);
+        return catalogService.searchContent(context.getRawQuery(), context.getQueryTopK(),
+                command);
     }
 }
@@ -2,12 +2,18 @@ package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
 import ceid.netcins.exo.catalog.ScoreBoard;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.messages.ResponsePDU;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import rice.Continuation;
 
+import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -21,6 +27,10 @@ import java.util.Hashtable;
 abstract public class SearchRequestBaseHandler extends AbstractHandler {
     private static final long serialVersionUID = 8956831399923066438L;
 
+    private static final long DefaultStreamTimeout = 30000;
+
+    private long streamTimeout = DefaultStreamTimeout;
+
     protected class SearchResultContinuation implements Continuation<Object, Exception> {
         private String reqID;
 
@@ -46,21 +56,144 @@ abstract public class SearchRequestBaseHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Streams the results of a search to the client as Server-Sent Events,
+     * instead of queueing them to be polled for. Every response of a term node
+     * (or friend) is merged into the top-k received so far and pushed as an
+     * eXO::Processing event; the final top-k is sent as eXO::Success once all
+     * expected responses have arrived, or the stream times out.
+     */
+    protected class SearchResultStream implements Continuation<Object, Exception>, ContinuationListener {
+        private final org.eclipse.jetty.continuation.Continuation suspended;
+        private final int k;
+        private ScoreBoard merged = null;
+        // Number of responses to wait for, -1 until known
+        private int expected = -1;
+        private int received = 0;
+        private int failed = 0;
+        private boolean finished = false;
+
+        public SearchResultStream(HttpServletRequest request, HttpServletResponse response, int k) {
+            this.k = k;
+            response.setContentType("text/event-stream");
+            suspended = ContinuationSupport.getContinuation(request);
+            suspended.setTimeout(streamTimeout);
+            suspended.addContinuationListener(this);
+            suspended.suspend(response);
+        }
+
+        /**
+         * Sets the number of responses the search is going to deliver.
+         * Responses may already have arrived by the time this is known.
+         */
+        public synchronized void expect(int expected) {
+            this.expected = expected;
+            if (!finished && received >= expected)
+                finish();
+        }
+
+        @Override
+        public synchronized void receiveResult(Object arg0) {
+            received++;
+            if (finished)
+                return;
+            ScoreBoard sb = null;
+            if (arg0 instanceof ResponsePDU && (sb = ((ResponsePDU) arg0).getScoreBoard()) != null &&
+                    sb.getAllEntries() != null && !sb.getAllEntries().isEmpty()) {
+                merged = ScoreBoard.merge(merged, sb, k);
+                if (expected < 0 || received < expected)
+                    send(RequestStatus.PROCESSING, merged);
+            } else if (!(arg0 instanceof ResponsePDU))
+                failed++;
+            if (expected >= 0 && received >= expected)
+                finish();
+        }
+
+        @Override
+        public synchronized void receiveException(Exception arg0) {
+            received++;
+            failed++;
+            if (!finished && expected >= 0 && received >= expected)
+                finish();
+        }
+
+        @Override
+        public void onComplete(org.eclipse.jetty.continuation.Continuation continuation) {
+        }
+
+        @Override
+        public synchronized void onTimeout(org.eclipse.jetty.continuation.Continuation continuation) {
+            // Send whatever has been gathered so far
+            if (!finished)
+                finish();
+        }
+
+        private void finish() {
+            if (merged == null && received > 0 && failed == received)
+                send(RequestStatus.FAILURE, null);
+            else
+                send(RequestStatus.SUCCESS, (merged != null) ? merged : new ScoreBoard(null, null));
+            finished = true;
+            suspended.complete();
+        }
+
+        private void send(RequestStatus status, ScoreBoard sb) {
+            try {
+                ServletResponse response = suspended.getServletResponse();
+                PrintWriter writer = response.getWriter();
+                writer.write("data: ");
+                writeJSONResult(writer, status, sb);
+                writer.write("\n\n");
+                writer.flush();
+                response.flushBuffer();
+            } catch (IOException e) {
+                // The client has gone away; stop streaming
+                finished = true;
+            }
+        }
+    }
+
     public SearchRequestBaseHandler(CatalogService catalogService,
-                                    Hashtable<String, Hashtable<String, Object>> queue) {
+                                    RequestQueue queue) {
         super(catalogService, queue);
+        if (catalogService.getEnvironment().getParameters().contains("exo_search_stream_timeout"))
+            streamTimeout = catalogService.getEnvironment().getParameters().getLong("exo_search_stream_timeout");
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request,
+                       HttpServletResponse response) throws ServletException {
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
+            return;
+
+        if (context.isStream()) {
+            SearchResultStream stream = new SearchResultStream(request, response, context.getQueryTopK());
+            stream.expect(doSearch(context, stream));
+            return;
+        }
+        final String reqID = getNewReqID(request, response);
+        doSearch(context, new SearchResultContinuation(reqID, this));
     }
 
+    /**
+     * Issues the search this handler stands for.
+     *
+     * @return the number of responses command is going to receive
+     */
+    protected abstract int doSearch(RequestContext context, Continuation<Object, Exception> command);
+
     @Override
-    protected RequestState prepare(HttpServletRequest request,
-                                   HttpServletResponse response) {
-        if (super.prepare(request, response) == RequestState.FINISHED)
-            return RequestState.FINISHED;
+    protected RequestContext prepare(HttpServletRequest request,
+                                     HttpServletResponse response) {
+        RequestContext context = super.prepare(request, response);
+        if (context.isFinished())
+            return context;
 
-        if (rawQuery == null || queryTopK == null) {
+        if (context.getRawQuery() == null || context.getQueryTopK() == null) {
             sendStatus(response, RequestStatus.FAILURE, null);
-            return RequestState.FINISHED;
+            return Finished;
         }
-        return RequestState.REMOTE;
+        return context;
     }
 }
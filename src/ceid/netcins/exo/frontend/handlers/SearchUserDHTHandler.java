@@ -1,11 +1,8 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
-
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import ceid.netcins.exo.frontend.RequestQueue;
+import rice.Continuation;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -20,18 +17,13 @@ public class SearchUserDHTHandler extends SearchRequestBaseHandler {
     private static final long serialVersionUID = 2138885947637986858L;
 
     public SearchUserDHTHandler(CatalogService catalogService,
-                                Hashtable<String, Hashtable<String, Object>> queue) {
+                                RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
-    public void doPost(HttpServletRequest request,
-                       HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
-            return;
-
-        final String reqID = getNewReqID(response);
-        catalogService.searchUser(rawQuery, queryTopK,
-                new SearchResultContinuation(reqID, this));
+    protected int doSearch(RequestContext context, Continuation<Object, Exception> command) {
+        return catalogService.searchUser(context.getRawQuery(), context.getQueryTopK(),
+                command);
     }
 }
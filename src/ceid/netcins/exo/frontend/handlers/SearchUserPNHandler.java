@@ -1,12 +1,9 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.messages.QueryPDU;
-
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import rice.Continuation;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -21,20 +18,15 @@ public class SearchUserPNHandler extends SearchRequestBaseHandler {
     private static final long serialVersionUID = 3315828801415839675L;
 
     public SearchUserPNHandler(CatalogService catalogService,
-                               Hashtable<String, Hashtable<String, Object>> queue) {
+                               RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
-    public void doPost(HttpServletRequest request,
-                       HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
-            return;
-
-        final String reqID = getNewReqID(response);
-        catalogService.searchFriendsNetwork(
+    protected int doSearch(RequestContext context, Continuation<Object, Exception> command) {
+        return catalogService.searchFriendsNetwork(
                 QueryPDU.USERQUERY,
-                rawQuery, queryTopK,
-                new SearchResultContinuation(reqID, this));
+                context.getRawQuery(), context.getQueryTopK(),
+                context.getQueryTTL(), command);
     }
 }
@@ -1,6 +1,7 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.user.Friend;
 import ceid.netcins.exo.user.FriendRequest;
 import rice.p2p.commonapi.Id;
@@ -8,7 +9,7 @@ import rice.p2p.commonapi.Id;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Hashtable;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -24,30 +25,32 @@ public class SendFriendRequestHandler extends FriendRequestBaseHandler {
     private static final long serialVersionUID = -5535744211758924495L;
 
     public SendFriendRequestHandler(CatalogService catalogService,
-                                    Hashtable<String, Hashtable<String, Object>> queue) {
+                                    RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
 
         synchronized (catalogService) {
-            Hashtable<Id, Friend> friends = catalogService.getUser().getFriends();
+            Id uid = context.getUID();
+            Map<Id, Friend> friends = catalogService.getUser().getFriends();
             Set<Id> freqsOut = catalogService.getUser().getPendingOutgoingFReq();
-            Hashtable<Id, FriendRequest> freqsIn = catalogService.getUser().getPendingIncomingFReq();
+            Map<Id, FriendRequest> freqsIn = catalogService.getUser().getPendingIncomingFReq();
 
             if (friends.containsKey(uid) || freqsOut.contains(uid)) {
-                queueStatus(reqID, RequestStatus.SUCCESS, null);
+                queueStatus(context.getReqID(), RequestStatus.SUCCESS, null);
                 return;
             }
             if (freqsIn.containsKey(uid)) {
-                catalogService.acceptFriend(freqsIn.get(uid), command);
+                catalogService.acceptFriend(freqsIn.get(uid), newCommand(context.getReqID()));
                 return;
             }
-            catalogService.friendRequest(uid, frMsg, command);
+            catalogService.friendRequest(uid, context.getFriendMessage(), newCommand(context.getReqID()));
         }
     }
 }
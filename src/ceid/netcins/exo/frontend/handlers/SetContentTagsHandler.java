@@ -4,14 +4,15 @@ import ceid.netcins.exo.CatalogService;
 import ceid.netcins.exo.content.ContentProfile;
 import ceid.netcins.exo.content.StoredField;
 import ceid.netcins.exo.content.TermField;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.frontend.json.ContentProfileJSONConvertor;
 import rice.Continuation;
+import rice.p2p.commonapi.Id;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
-import java.util.Hashtable;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -27,25 +28,28 @@ public class SetContentTagsHandler extends AbstractHandler {
     private static final long serialVersionUID = -565717952819033549L;
 
     public SetContentTagsHandler(CatalogService catalogService,
-                                 Hashtable<String, Hashtable<String, Object>> queue) {
+                                 RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
 
         ContentProfileJSONConvertor cpj = new ContentProfileJSONConvertor();
-        ContentProfile profile = (ContentProfile) cpj.fromJSON(jsonMap);
+        ContentProfile profile = (ContentProfile) cpj.fromJSON(context.getJsonMap());
 
+        final Id uid = context.getUID();
+        final Id cid = context.getCID();
         if (cid == null || profile == null) {
             sendStatus(response, RequestStatus.FAILURE, null);
             return;
         }
 
-        final String reqID = getNewReqID(response);
+        final String reqID = getNewReqID(request, response);
 
         if (profile.getField("SHA-1", TermField.class) == null && profile.getField("SHA-1", StoredField.class) == null)
             profile.add(new StoredField("SHA-1", cid.toStringFull()));
@@ -61,15 +65,15 @@ public class SetContentTagsHandler extends AbstractHandler {
             } else {
                 additions = profile;
             }
-            doIndexPseudoContent((identifier != null) ? identifier.getFieldData() : null, additions, deletions, reqID);
+            doIndexPseudoContent(cid, (identifier != null) ? identifier.getFieldData() : null, additions, deletions, reqID);
             return;
         }
 
         // Search for it in the network
-        doTagContent(profile, reqID);
+        doTagContent(uid, cid, profile, reqID);
     }
 
-    private void doIndexPseudoContent(final String identifier, final ContentProfile additions, final ContentProfile deletions, final String reqID) {
+    private void doIndexPseudoContent(final Id cid, final String identifier, final ContentProfile additions, final ContentProfile deletions, final String reqID) {
         catalogService.indexPseudoContent(cid,
                 identifier, additions, deletions,
                 new Continuation<Object, Exception>() {
@@ -94,7 +98,7 @@ public class SetContentTagsHandler extends AbstractHandler {
                 });
     }
 
-    private void doTagContent(final ContentProfile profile, final String reqID) {
+    private void doTagContent(final Id uid, final Id cid, final ContentProfile profile, final String reqID) {
         catalogService.tagContent(uid, cid, profile,
                 new Continuation<Object, Exception>() {
                     @Override
@@ -113,7 +117,7 @@ public class SetContentTagsHandler extends AbstractHandler {
                     @Override
                     public void receiveException(Exception exception) {
                         System.err.println("Received exception while trying to tag content. Retrying...");
-                        doTagContent(profile, reqID);
+                        doTagContent(uid, cid, profile, reqID);
                     }
                 });
     }
@@ -2,15 +2,16 @@ package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
 import ceid.netcins.exo.content.ContentProfile;
+import ceid.netcins.exo.frontend.RequestQueue;
 import ceid.netcins.exo.frontend.json.ContentProfileJSONConvertor;
 import rice.Continuation;
+import rice.p2p.commonapi.Id;
 import rice.environment.logging.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
-import java.util.Hashtable;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -26,23 +27,24 @@ public class SetUserProfileHandler extends AbstractHandler {
     private static final long serialVersionUID = 5124127253356875812L;
 
     public SetUserProfileHandler(CatalogService catalogService,
-                                 Hashtable<String, Hashtable<String, Object>> queue) {
+                                 RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
             return;
 
         ContentProfileJSONConvertor cpj = new ContentProfileJSONConvertor();
-        ContentProfile profile = (ContentProfile) cpj.fromJSON(jsonMap);
+        ContentProfile profile = (ContentProfile) cpj.fromJSON(context.getJsonMap());
 
-        if (uid == null) { // Local operation
+        if (context.getUID() == null) { // Local operation
             ContentProfile oldProfile = catalogService.getUser().getPublicUserProfile();
             if (!oldProfile.equalsPublic(profile)) {
-                final String reqID = getNewReqID(response);
+                final String reqID = getNewReqID(request, response);
                 // The public part has changed. We should reindex the user profile in the network
                 ContentProfile deletions = oldProfile.minus(profile);
                 doSetUserProfile(profile, deletions, reqID);
@@ -54,8 +56,8 @@ public class SetUserProfileHandler extends AbstractHandler {
         }
 
         // Search for the user in the network
-        final String reqID = getNewReqID(response);
-        doTagUser(profile, reqID);
+        final String reqID = getNewReqID(request, response);
+        doTagUser(context.getUID(), profile, reqID);
     }
 
     private void doSetUserProfile(final ContentProfile additions, final ContentProfile deletions, final String reqID) {
@@ -91,7 +93,7 @@ public class SetUserProfileHandler extends AbstractHandler {
         });
     }
 
-    private void doTagUser(final ContentProfile profile, final String reqID) {
+    private void doTagUser(final Id uid, final ContentProfile profile, final String reqID) {
         catalogService.tagUser(uid, profile, null, new Continuation<Object, Exception>() {
 
             @Override
@@ -110,7 +112,7 @@ public class SetUserProfileHandler extends AbstractHandler {
             @Override
             public void receiveException(Exception exception) {
                 System.err.println("Received exception while trying to tag user. Retrying...");
-                doTagUser(profile, reqID);
+                doTagUser(uid, profile, reqID);
             }
         });
     }
@@ -1,19 +1,16 @@
 package ceid.netcins.exo.frontend.handlers;
 
 import ceid.netcins.exo.CatalogService;
-import org.apache.commons.io.IOUtils;
+import ceid.netcins.exo.content.ContentProfileFactory;
+import ceid.netcins.exo.frontend.RequestQueue;
 import rice.Continuation;
-import rice.environment.params.Parameters;
-import rice.persistence.PersistentStorage;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Hashtable;
 
 /**
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
@@ -27,19 +24,16 @@ import java.util.Hashtable;
 public class ShareFileHandler extends AbstractHandler {
     private static final long serialVersionUID = 6460386943881811107L;
     private static final String FileHeaderTag = "X-File-Name";
-    private static final String UploadRepository = "shared";
-
-    private String uploadRepository = null;
 
     public ShareFileHandler(CatalogService catalogService,
-                            Hashtable<String, Hashtable<String, Object>> queue) {
+                            RequestQueue queue) {
         super(catalogService, queue);
     }
 
     @Override
     public void doPost(HttpServletRequest request,
                        HttpServletResponse response) throws ServletException {
-        if (prepare(request, response) == RequestState.FINISHED)
+        if (prepare(request, response).isFinished())
             return;
 
         String filename = request.getHeader(FileHeaderTag);
@@ -48,18 +42,9 @@ public class ShareFileHandler extends AbstractHandler {
             return;
         }
 
-        PersistentStorage ps = (PersistentStorage) catalogService.getStorageManager().getStorage();
-        Parameters params = catalogService.getEnvironment().getParameters();
         // XXX : In a real-world implementation, this should be either sanitized or decoupled from user-supplied data
-        uploadRepository =
-                ps.getRoot() + File.separator +
-                        ps.getName() + File.separator +
-                        (params.contains("exo_uploads_repository") ?
-                                params.getString("exo_uploads_repository") :
-                                UploadRepository
-                        );
-
-        File uploadDir = new File(uploadRepository);
+        File uploadDir = getUploadRepository();
+        String uploadRepository = uploadDir.getPath();
         if (!uploadDir.mkdirs() && !(uploadDir.exists() && uploadDir.isDirectory())) {
             sendStatus(response, RequestStatus.FAILURE, null);
             return;
@@ -74,9 +59,10 @@ public class ShareFileHandler extends AbstractHandler {
                     (!upload.exists() && !upload.createNewFile()))
                 throw new Exception();
 
-            FileOutputStream fos = new FileOutputStream(upload);
-            IOUtils.copy(is, fos);
-            doIndexContent(upload, getNewReqID(response));
+            // Digest the upload while it is written, so that indexing does
+            // not have to read it back just for its checksum
+            String sha1 = ContentProfileFactory.storeWithDigest(is, upload);
+            doIndexContent(upload, sha1, getNewReqID(request, response));
             return;
         } catch (IOException e) {
             // Fall through
@@ -86,8 +72,8 @@ public class ShareFileHandler extends AbstractHandler {
         sendStatus(response, RequestStatus.FAILURE, null);
     }
 
-    private void doIndexContent(final File upload, final String reqID) {
-        catalogService.indexContent(upload, new Continuation<Object, Exception>() {
+    private void doIndexContent(final File upload, final String sha1, final String reqID) {
+        catalogService.indexContent(upload, sha1, new Continuation<Object, Exception>() {
             @Override
             public void receiveResult(Object result) {
                 if (!(result instanceof Boolean[])) {
@@ -104,7 +90,7 @@ public class ShareFileHandler extends AbstractHandler {
             @Override
             public void receiveException(Exception exception) {
                 System.err.println("Received exception while trying to index file. Retrying...");
-                doIndexContent(upload, reqID);
+                doIndexContent(upload, sha1, reqID);
             }
         });
     }
@@ -0,0 +1,93 @@
+package ceid.netcins.exo.frontend.handlers;
+
+import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.frontend.RequestQueue;
+import rice.Continuation;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Shares all the files under a directory of the upload repository. While the import is running,
+ * polling the request returns its progress along with the PROCESSING status.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class ShareFolderHandler extends AbstractHandler {
+    private static final long serialVersionUID = -3377108226745010943L;
+
+    public ShareFolderHandler(CatalogService catalogService,
+                              RequestQueue queue) {
+        super(catalogService, queue);
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request,
+                       HttpServletResponse response) throws ServletException {
+        RequestContext context = prepare(request, response);
+        if (context.isFinished())
+            return;
+
+        File folder = (context.getFilename() != null) ? resolveFolder(context.getFilename()) : null;
+        if (folder == null || !folder.isDirectory()) {
+            sendStatus(response, RequestStatus.FAILURE, null);
+            return;
+        }
+
+        final String reqID = getNewReqID(request, response);
+        catalogService.indexDirectory(folder, new Continuation<Object, Exception>() {
+            @Override
+            public void receiveResult(Object result) {
+                queueStatus(reqID, RequestStatus.PROCESSING, result);
+            }
+
+            @Override
+            public void receiveException(Exception exception) {
+            }
+        }, new Continuation<Object, Exception>() {
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void receiveResult(Object result) {
+                // Nothing new to share is not a failure
+                boolean didit = (result instanceof Map &&
+                        ((Integer) ((Map) result).get("failed")) == 0);
+                queueStatus(reqID, didit ? RequestStatus.SUCCESS : RequestStatus.FAILURE, result);
+            }
+
+            @Override
+            public void receiveException(Exception exception) {
+                queueStatus(reqID, RequestStatus.FAILURE, null);
+            }
+        });
+    }
+
+    /**
+     * Only folders under the upload repository (see ShareFileHandler) may be
+     * shared.
+     *
+     * @param filename The folder, relative to the upload repository
+     * @return the folder, or null if it is outside the upload repository
+     */
+    private File resolveFolder(String filename) {
+        try {
+            File root = getUploadRepository().getCanonicalFile();
+            File folder = new File(root, filename).getCanonicalFile();
+            for (File f = folder; f != null; f = f.getParentFile())
+                if (f.equals(root))
+                    return folder;
+        } catch (IOException e) {
+            // Fall through
+        }
+        return null;
+    }
+}
@@ -0,0 +1,102 @@
+package ceid.netcins.exo.frontend.handlers;
+
+import ceid.netcins.exo.CatalogService;
+import ceid.netcins.exo.catalog.ContentCatalogEntry;
+import ceid.netcins.exo.content.ContentProfile;
+import ceid.netcins.exo.frontend.RequestQueue;
+import ceid.netcins.exo.frontend.json.ContentProfileJSONConvertor;
+import rice.Continuation;
+import rice.p2p.commonapi.Id;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tags a batch of contents of the same (remote) owner in a single message;
+ * see CatalogService.tagContents(). The request carries the owner's UID and
+ * a list of contents, each with its CID and the tags to apply to it, e.g.
+ * {"eXO::UID":"...","eXO::Contents":[{"eXO::CID":"...","eXO::Profile":[...]}]}
+ * The response maps the CIDs of the contents tagged to their catalog entries.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class TagContentsHandler extends AbstractHandler {
+
+    private static final long serialVersionUID = 3904184658238716542L;
+    private static final String ContentsTag = "eXO::Contents";
+    private static final String CIDTag = "eXO::CID";
+
+    public TagContentsHandler(CatalogService catalogService,
+                              RequestQueue queue) {
+        super(catalogService, queue);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void doPost(HttpServletRequest request,
+                       HttpServletResponse response) throws ServletException {
+        final RequestContext context = prepare(request, response);
+        if (context.isFinished())
+            return;
+
+        final Id uid = context.getUID();
+        Object contents = (context.getJsonMap() != null) ? context.getJsonMap().get(ContentsTag) : null;
+        if (uid == null || !(contents instanceof Object[])) {
+            sendStatus(response, RequestStatus.FAILURE, null);
+            return;
+        }
+
+        ContentProfileJSONConvertor cpj = new ContentProfileJSONConvertor();
+        Map<Id, ContentProfile> tags = new HashMap<Id, ContentProfile>();
+        for (Object o : (Object[]) contents) {
+            if (!(o instanceof Map) || !(((Map) o).get(CIDTag) instanceof String)) {
+                sendStatus(response, RequestStatus.FAILURE, null);
+                return;
+            }
+            Id cid = rice.pastry.Id.build((String) ((Map) o).get(CIDTag));
+            ContentProfile profile = (ContentProfile) cpj.fromJSON((Map) o);
+            if (profile == null) {
+                sendStatus(response, RequestStatus.FAILURE, null);
+                return;
+            }
+            tags.put(cid, profile);
+        }
+
+        final String reqID = getNewReqID(request, response);
+        catalogService.tagContents(uid, tags,
+                new Continuation<Object, Exception>() {
+                    @Override
+                    public void receiveResult(Object result) {
+                        if (!(result instanceof HashMap)) {
+                            queueStatus(reqID, RequestStatus.FAILURE, null);
+                            return;
+                        }
+                        @SuppressWarnings("unchecked")
+                        HashMap<String, Object> resMap = (HashMap<String, Object>) result;
+                        // Key the entries by the full CIDs, as the client sent them
+                        Map<String, ContentCatalogEntry> entries = new HashMap<String, ContentCatalogEntry>();
+                        if (resMap.get("data") instanceof Map)
+                            for (Object e : ((Map) resMap.get("data")).entrySet())
+                                if (((Map.Entry) e).getValue() instanceof ContentCatalogEntry)
+                                    entries.put(((Id) ((Map.Entry) e).getKey()).toStringFull(),
+                                            (ContentCatalogEntry) ((Map.Entry) e).getValue());
+                        queueStatus(reqID, Integer.valueOf(CatalogService.SUCCESS).equals(resMap.get("status")) ?
+                                RequestStatus.SUCCESS : RequestStatus.FAILURE, entries);
+                    }
+
+                    @Override
+                    public void receiveException(Exception exception) {
+                        queueStatus(reqID, RequestStatus.FAILURE, null);
+                    }
+                });
+    }
+}
@@ -12,6 +12,8 @@ import ceid.netcins.exo.user.FriendRequest;
 import ceid.netcins.exo.user.User.SharedContentItem;
 import org.eclipse.jetty.util.ajax.JSON;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -25,9 +27,13 @@ import java.util.Map;
  *         January 9-12, 2011, Asilomar, California, USA.
  */
 public class Json extends JSON {
-    private static final Json instance = new Json();
+    // Pending output of write() is drained to the writer beyond this size
+    private static final int FlushThreshold = 8192;
 
-    private Json() {
+    // Larger per-thread buffers are not kept around after write()
+    private static final int MaxRetainedBuffer = 4 * FlushThreshold;
+
+    static {
         JSON.registerConvertor(TermField.class, new TermFieldJSONConvertor());
         JSON.registerConvertor(StoredField.class, new StoredFieldJSONConvertor());
         JSON.registerConvertor(TokenizedField.class, new TokenizedFieldJSONConvertor());
@@ -46,6 +52,18 @@ public class Json extends JSON {
         JSON.registerConvertor(Status.class, new StatusJSONConvertor());
     }
 
+    private static final Json instance = new Json();
+
+    private static final ThreadLocal<StreamingJson> streamingInstance = new ThreadLocal<StreamingJson>() {
+        @Override
+        protected StreamingJson initialValue() {
+            return new StreamingJson();
+        }
+    };
+
+    private Json() {
+    }
+
     public static void init() {
         // Force singleton initialization
     }
@@ -118,4 +136,77 @@ public class Json extends JSON {
             return buffer.toString();
         }
     }
+
+    /**
+     * Writes the JSON form of object (as toString(Map) would produce it for
+     * maps) to out. The output is generated into a per-thread buffer that is
+     * reused across calls and drained into out whenever it fills up, so large
+     * responses are never held in memory as a whole.
+     */
+    public static void write(Object object, Writer out) throws IOException {
+        StreamingJson json = streamingInstance.get();
+        if (json.out != null) // Reentrant call
+            json = new StreamingJson();
+        json.out = out;
+        try {
+            json.append(json.buffer, object);
+            json.drain(true);
+        } catch (WriteFailedException e) {
+            throw e.getCause();
+        } finally {
+            json.out = null;
+            json.buffer.setLength(0);
+            if (json.buffer.capacity() > MaxRetainedBuffer)
+                json.buffer = new StringBuffer(FlushThreshold);
+        }
+    }
+
+    /**
+     * Carries an IOException of the writer out of JSON's append methods,
+     * which may not throw it.
+     */
+    private static class WriteFailedException extends RuntimeException {
+        private static final long serialVersionUID = 2830476528014530711L;
+
+        WriteFailedException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private static class StreamingJson extends Json {
+        private StringBuffer buffer = new StringBuffer(FlushThreshold);
+        private final char[] chars = new char[FlushThreshold];
+        private Writer out = null;
+
+        @Override
+        public void append(StringBuffer buffer, Object object) {
+            super.append(buffer, object);
+            // JSON only ever appends to the buffer, so whatever is in there
+            // once a value is complete can be handed over to the writer
+            if (buffer == this.buffer && out != null) {
+                try {
+                    drain(false);
+                } catch (IOException e) {
+                    throw new WriteFailedException(e);
+                }
+            }
+        }
+
+        private void drain(boolean all) throws IOException {
+            int len = buffer.length();
+            if (len == 0 || (!all && len < FlushThreshold))
+                return;
+            for (int off = 0; off < len; off += chars.length) {
+                int num = Math.min(chars.length, len - off);
+                buffer.getChars(off, off + num, chars, 0);
+                out.write(chars, 0, num);
+            }
+            buffer.setLength(0);
+        }
+    }
 }
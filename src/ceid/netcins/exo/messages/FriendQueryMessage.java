@@ -43,6 +43,18 @@ public class FriendQueryMessage extends ContinuationMessage {
     // Count of overlay hops or messages between two overlay nodes
     private int hops;
 
+    // Multi-hop (friend-of-friend) queries: the ID of the query, used to
+    // drop duplicates, and the UID of the user who issued it
+    private long queryID = 0;
+    private Id origin = null;
+
+    // Number of times the query may still be forwarded to friends of friends
+    private int ttl = 0;
+
+    // Time (ms) and number of friends the receiver may wait for and forward to
+    private long deadline = 0;
+    private int fanout = 0;
+
     /**
      * Constructor
      *
@@ -58,6 +70,29 @@ public class FriendQueryMessage extends ContinuationMessage {
         this.hops = 0;
     }
 
+    /**
+     * Constructor of a query that is to be forwarded to friends of friends
+     *
+     * @param uid      The unique id
+     * @param source   The source address
+     * @param dest     The destination address
+     * @param queryID  The ID of the query
+     * @param origin   The UID of the user who issued the query
+     * @param ttl      How many more times the query may be forwarded
+     * @param deadline Time (ms) the receiver may wait for its friends
+     * @param fanout   Number of friends the receiver may query at a time
+     */
+    public FriendQueryMessage(int uid, NodeHandle source, Id dest,
+                              QueryPDU qpdu, long queryID, Id origin, int ttl,
+                              long deadline, int fanout) {
+        this(uid, source, dest, qpdu);
+        this.queryID = queryID;
+        this.origin = origin;
+        this.ttl = ttl;
+        this.deadline = deadline;
+        this.fanout = fanout;
+    }
+
     /**
      * Returns whether or not this message has been cached
      *
@@ -112,6 +147,33 @@ public class FriendQueryMessage extends ContinuationMessage {
         return hops;
     }
 
+    /**
+     * @return the ID of a multi-hop query, or 0
+     */
+    public long getQueryID() {
+        return queryID;
+    }
+
+    /**
+     * @return the UID of the user who issued a multi-hop query, or null for
+     *         queries coming straight from the querier
+     */
+    public Id getOrigin() {
+        return origin;
+    }
+
+    public int getTTL() {
+        return ttl;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
     /**
      * Add one more hop to the counter
      */
@@ -138,7 +200,10 @@ public class FriendQueryMessage extends ContinuationMessage {
 
     @Override
     public void serialize(OutputBuffer buf) throws IOException {
-        buf.writeByte((byte) 0); // version
+        // Plain (single-hop) queries keep the version 0 format, so that nodes
+        // that do not forward queries can still serve them
+        boolean multiHop = ttl > 0 || queryID != 0 || origin != null;
+        buf.writeByte((byte) (multiHop ? 1 : 0)); // version
         if (response != null && response instanceof RawPastContent) {
             super.serialize(buf, false);
             RawPastContent rpc = (RawPastContent) response;
@@ -159,6 +224,18 @@ public class FriendQueryMessage extends ContinuationMessage {
 
         // Java serialization is used for the serialization of the QueryPDU
         JavaSerializer.serialize(buf, queryPDU);
+
+        if (multiHop) {
+            buf.writeLong(queryID);
+            buf.writeBoolean(origin != null);
+            if (origin != null) {
+                buf.writeShort(origin.getType());
+                origin.serialize(buf);
+            }
+            buf.writeInt(ttl);
+            buf.writeLong(deadline);
+            buf.writeInt(fanout);
+        }
     }
 
     public static FriendQueryMessage build(InputBuffer buf, Endpoint endpoint,
@@ -166,14 +243,15 @@ public class FriendQueryMessage extends ContinuationMessage {
         byte version = buf.readByte();
         switch (version) {
             case 0:
-                return new FriendQueryMessage(buf, endpoint, pcd);
+            case 1:
+                return new FriendQueryMessage(buf, endpoint, pcd, version);
             default:
                 throw new IOException("Unknown Version: " + version);
         }
     }
 
     private FriendQueryMessage(InputBuffer buf, Endpoint endpoint,
-                               PastContentDeserializer pcd) throws IOException {
+                               PastContentDeserializer pcd, byte version) throws IOException {
         super(buf, endpoint);
         if (serType == S_SUB) {
             short contentType = buf.readShort();
@@ -188,6 +266,15 @@ public class FriendQueryMessage extends ContinuationMessage {
 
         // Java deserialization
         queryPDU = (QueryPDU) JavaSerializer.deserialize(buf, endpoint);
+
+        if (version >= 1) {
+            queryID = buf.readLong();
+            if (buf.readBoolean())
+                origin = endpoint.readId(buf, buf.readShort());
+            ttl = buf.readInt();
+            deadline = buf.readLong();
+            fanout = buf.readInt();
+        }
     }
 
 }
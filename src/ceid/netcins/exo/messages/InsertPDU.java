@@ -10,7 +10,7 @@ import rice.p2p.past.PastContent;
 import rice.p2p.past.PastException;
 
 import java.io.Serializable;
-import java.util.Hashtable;
+import java.util.Map;
 
 /**
  * This class represents the Protocol Data Unit (PDU) of the insert message of
@@ -128,25 +128,33 @@ public class InsertPDU extends ContentHashPastContent implements Serializable {
                     "Catalog : can't insert, existing object for the TID("
                             + this.myId + ") is of unknown class type");
 
+        // Fresh entries of the owner carry no refresh time; entries moved
+        // here from another node carry the one they had there
+        long refreshTime = (additions != null) ? additions.getRefreshTime() : 0;
+
         if (existingContent == null) {
             // There is no Catalog for this TID! Let's create one :-)
             Catalog c = new Catalog(id);
             CatalogEntry finalEntry = null;
             if (additions != null) {
-                finalEntry = additions;
+                // The PDU entry may be shared with the PDUs of other terms;
+                // the Catalog detaches the owner profile of what it stores
+                finalEntry = additions.copy();
                 finalEntry.subtract(deletions);
-                c.addCatalogEntry(finalEntry);
+                c.addCatalogEntry(finalEntry, refreshTime);
             }
             return c;
         }
 
+        // Writers still serialize on the Catalog; readers (the Scorer) work on
+        // immutable snapshots without taking this lock.
         synchronized (existingContent) {
             // Update existing Catalog entry
             Catalog catalog = (Catalog) existingContent;
 
             // Here is the main processing of new data
             @SuppressWarnings("rawtypes")
-            Hashtable catalogEntries = null;
+            Map catalogEntries = null;
             switch (type) {
                 case USER:
                     catalogEntries = catalog.getUserCatalogEntries();
@@ -161,15 +169,20 @@ public class InsertPDU extends ContentHashPastContent implements Serializable {
 
             CatalogEntry finalEntry = (CatalogEntry) catalogEntries.get((additions != null) ? additions.getUID() : deletions.getUID());
             if (finalEntry == null) {
-                finalEntry = additions;
+                finalEntry = (additions != null) ? additions.copy() : null;
                 if (finalEntry != null)
                     finalEntry.subtract(deletions);
             } else {
+                // Copy on write: the stored entry may be part of a snapshot
+                // that is being scored right now
+                if (refreshTime > 0)
+                    refreshTime = Math.max(refreshTime, finalEntry.getRefreshTime());
+                finalEntry = finalEntry.copy();
                 finalEntry.add(additions);
                 finalEntry.subtract(deletions);
             }
             if (finalEntry != null)
-                catalogEntries.put(finalEntry.getUID(), finalEntry);
+                catalog.addCatalogEntry(finalEntry, refreshTime);
             return existingContent; // The same reference as catalog!
         }
     }
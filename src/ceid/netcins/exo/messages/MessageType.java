@@ -29,4 +29,8 @@ public final class MessageType {
     public static final short RetrieveContentTags = 17;
     public static final short TagContent = 18;
     public static final short TagUser = 19;
+    public static final short GetStatusDigest = 20;
+    public static final short StatusUpdate = 21;
+    public static final short RetrieveTagClouds = 22;
+    public static final short TagContentBatch = 23;
 }
@@ -35,6 +35,15 @@ public class RetrieveContIDsMessage extends ContinuationMessage {
     // the list of nodes where this message has been
     private NodeHandle handle;
 
+    // the last content Id of the previous page (null for the first page)
+    private Id cursor = null;
+
+    // the number of Ids to skip after the cursor
+    private int offset = 0;
+
+    // the page size (everything if not positive)
+    private int limit = 0;
+
     /**
      * Constructor
      *
@@ -46,6 +55,36 @@ public class RetrieveContIDsMessage extends ContinuationMessage {
         super(uid, source, dest);
     }
 
+    /**
+     * Constructor for a request of a single page of content Ids
+     *
+     * @param uid    The unique id
+     * @param source The source address
+     * @param dest   The destination address
+     * @param cursor The last content Id of the previous page, or null
+     * @param offset The number of Ids to skip after the cursor
+     * @param limit  The page size
+     */
+    public RetrieveContIDsMessage(int uid, NodeHandle source, Id dest,
+                                  Id cursor, int offset, int limit) {
+        super(uid, source, dest);
+        this.cursor = cursor;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public Id getCursor() {
+        return cursor;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
     /**
      * Returns whether or not this message has been cached
      *
@@ -101,7 +140,10 @@ public class RetrieveContIDsMessage extends ContinuationMessage {
 
     @Override
     public void serialize(OutputBuffer buf) throws IOException {
-        buf.writeByte((byte) 0); // version
+        // Unpaged listings keep the version 0 format, so that nodes that do
+        // not know about paging can still serve them
+        boolean paged = cursor != null || offset != 0 || limit > 0;
+        buf.writeByte((byte) (paged ? 1 : 0)); // version
         if (response != null && response instanceof RawPastContent) {
             super.serialize(buf, false);
             RawPastContent rpc = (RawPastContent) response;
@@ -116,6 +158,16 @@ public class RetrieveContIDsMessage extends ContinuationMessage {
             handle.serialize(buf);
 
         buf.writeBoolean(cached);
+
+        if (paged) {
+            buf.writeBoolean(cursor != null);
+            if (cursor != null) {
+                buf.writeShort(cursor.getType());
+                cursor.serialize(buf);
+            }
+            buf.writeInt(offset);
+            buf.writeInt(limit);
+        }
     }
 
     public static RetrieveContIDsMessage build(InputBuffer buf, Endpoint endpoint,
@@ -123,14 +175,15 @@ public class RetrieveContIDsMessage extends ContinuationMessage {
         byte version = buf.readByte();
         switch (version) {
             case 0:
-                return new RetrieveContIDsMessage(buf, endpoint, pcd);
+            case 1:
+                return new RetrieveContIDsMessage(buf, endpoint, pcd, version);
             default:
                 throw new IOException("Unknown Version: " + version);
         }
     }
 
     private RetrieveContIDsMessage(InputBuffer buf, Endpoint endpoint,
-                                   PastContentDeserializer pcd) throws IOException {
+                                   PastContentDeserializer pcd, byte version) throws IOException {
         super(buf, endpoint);
         if (serType == S_SUB) {
             short contentType = buf.readShort();
@@ -139,5 +192,11 @@ public class RetrieveContIDsMessage extends ContinuationMessage {
         if (buf.readBoolean())
             handle = endpoint.readNodeHandle(buf);
         cached = buf.readBoolean();
+        if (version < 1)
+            return;
+        if (buf.readBoolean())
+            cursor = endpoint.readId(buf, buf.readShort());
+        offset = buf.readInt();
+        limit = buf.readInt();
     }
 }
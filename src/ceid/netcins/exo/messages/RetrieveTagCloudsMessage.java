@@ -0,0 +1,155 @@
+package ceid.netcins.exo.messages;
+
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.past.messaging.ContinuationMessage;
+import rice.p2p.past.rawserialization.PastContentDeserializer;
+import rice.p2p.past.rawserialization.RawPastContent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class will carry a request for the tag clouds of a set of contents
+ * shared by the destination user. It is answered with a map from content Id
+ * to a cloud holding only the top tags of the corresponding tag cloud.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class RetrieveTagCloudsMessage extends ContinuationMessage {
+
+    private static final long serialVersionUID = -6021376447590338114L;
+
+    public static final short TYPE = MessageType.RetrieveTagClouds;
+
+    // the list of nodes where this message has been
+    private NodeHandle handle;
+
+    // The contents whose tag clouds are requested
+    private List<Id> contentIds;
+
+    // The maximum number of tags to return per cloud
+    private int maxTags;
+
+    /**
+     * Constructor
+     *
+     * @param uid        The unique id
+     * @param source     The source address
+     * @param dest       The destination address
+     * @param contentIds The contents whose tag clouds are requested
+     * @param maxTags    The maximum number of tags to return per cloud
+     */
+    public RetrieveTagCloudsMessage(int uid, NodeHandle source, Id dest,
+                                    List<Id> contentIds, int maxTags) {
+        super(uid, source, dest);
+        this.contentIds = contentIds;
+        this.maxTags = maxTags;
+    }
+
+    public List<Id> getContentIds() {
+        return contentIds;
+    }
+
+    public int getMaxTags() {
+        return maxTags;
+    }
+
+    /**
+     * Method which is designed to be overridden by subclasses if they need to
+     * keep track of where they've been.
+     *
+     * @param handle The current local handle
+     */
+    @Override
+    public void addHop(NodeHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Method which returns the previous hop (where the message was just at)
+     *
+     * @return The previous hop
+     */
+    public NodeHandle getPreviousNodeHandle() {
+        return handle;
+    }
+
+    /**
+     * Returns a string representation of this message
+     *
+     * @return A string representing this message
+     */
+    @Override
+    public String toString() {
+        return "[RetrieveTagCloudsMessage for " + dest + " data " + response + "]";
+    }
+
+    /**
+     * ************** Raw Serialization **************************************
+     */
+    public short getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException {
+        buf.writeByte((byte) 0); // version
+        if (response != null && response instanceof RawPastContent) {
+            super.serialize(buf, false);
+            RawPastContent rpc = (RawPastContent) response;
+            buf.writeShort(rpc.getType());
+            rpc.serialize(buf);
+        } else {
+            super.serialize(buf, true);
+        }
+
+        buf.writeBoolean(handle != null);
+        if (handle != null)
+            handle.serialize(buf);
+
+        buf.writeInt(contentIds.size());
+        for (Id id : contentIds) {
+            buf.writeShort(id.getType());
+            id.serialize(buf);
+        }
+        buf.writeInt(maxTags);
+    }
+
+    public static RetrieveTagCloudsMessage build(InputBuffer buf, Endpoint endpoint,
+                                                 PastContentDeserializer pcd) throws IOException {
+        byte version = buf.readByte();
+        switch (version) {
+            case 0:
+                return new RetrieveTagCloudsMessage(buf, endpoint, pcd);
+            default:
+                throw new IOException("Unknown Version: " + version);
+        }
+    }
+
+    private RetrieveTagCloudsMessage(InputBuffer buf, Endpoint endpoint,
+                                     PastContentDeserializer pcd) throws IOException {
+        super(buf, endpoint);
+        if (serType == S_SUB) {
+            short contentType = buf.readShort();
+            response = pcd.deserializePastContent(buf, endpoint, contentType);
+        }
+        if (buf.readBoolean())
+            handle = endpoint.readNodeHandle(buf);
+        int num = buf.readInt();
+        contentIds = new ArrayList<Id>(num);
+        for (int i = 0; i < num; i++)
+            contentIds.add(endpoint.readId(buf, buf.readShort()));
+        maxTags = buf.readInt();
+    }
+}
@@ -38,6 +38,12 @@ public class SocialQueryPDU implements Serializable {
     // Source user's profile.
     private ContentProfile userProfile;
 
+    // Whether the entries must carry all tags (AND) instead of any (OR)
+    private boolean conjunctive = false;
+
+    // The number of results to return
+    private int k = QueryPDU.RETURN_ALL;
+
     /**
      * Constructor
      *
@@ -73,6 +79,22 @@ public class SocialQueryPDU implements Serializable {
         this.userProfile = userProfile;
     }
 
+    /**
+     * Constructor
+     *
+     * @param data
+     * @param type
+     * @param conjunctive Match the entries carrying all tags instead of any
+     * @param k           The number of results to return
+     * @param userProfile
+     */
+    public SocialQueryPDU(String[] data, int type, boolean conjunctive, int k,
+                          ContentProfile userProfile) {
+        this(data, type, userProfile);
+        this.conjunctive = conjunctive;
+        this.k = k;
+    }
+
     /**
      * Getter for query terms
      *
@@ -99,4 +121,12 @@ public class SocialQueryPDU implements Serializable {
     public ContentProfile getSourceUserProfile() {
         return userProfile;
     }
+
+    public boolean isConjunctive() {
+        return conjunctive;
+    }
+
+    public int getK() {
+        return k;
+    }
 }
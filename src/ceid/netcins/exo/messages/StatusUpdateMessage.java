@@ -0,0 +1,154 @@
+package ceid.netcins.exo.messages;
+
+import ceid.netcins.exo.user.StatusDigest;
+import ceid.netcins.exo.utils.JavaSerializer;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.past.messaging.ContinuationMessage;
+import rice.p2p.past.rawserialization.PastContentDeserializer;
+import rice.p2p.past.rawserialization.RawPastContent;
+
+import java.io.IOException;
+
+/**
+ * This class will push the status updates of a user to one of her friends.
+ * It carries either the whole StatusDigest (base version 0) or only the
+ * statuses added since the base version. The friend answers with
+ * Boolean.FALSE if it could not apply a delta, i.e. it does not hold the
+ * digest at the base version.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class StatusUpdateMessage extends ContinuationMessage {
+
+    private static final long serialVersionUID = -6014482957136205981L;
+
+    public static final short TYPE = MessageType.StatusUpdate;
+
+    // the list of nodes where this message has been
+    private NodeHandle handle;
+
+    // The version the delta applies to, 0 for a whole digest
+    private long baseVersion;
+
+    // The statuses pushed
+    private StatusDigest digest;
+
+    /**
+     * Constructor
+     *
+     * @param uid         The unique id
+     * @param source      The source address
+     * @param dest        The destination address
+     * @param baseVersion The version the delta applies to, 0 if digest is whole
+     * @param digest      The statuses pushed
+     */
+    public StatusUpdateMessage(int uid, NodeHandle source, Id dest,
+                               long baseVersion, StatusDigest digest) {
+        super(uid, source, dest);
+        this.baseVersion = baseVersion;
+        this.digest = digest;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public boolean isDelta() {
+        return baseVersion != 0;
+    }
+
+    public StatusDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Method which is designed to be overridden by subclasses if they need to
+     * keep track of where they've been.
+     *
+     * @param handle The current local handle
+     */
+    @Override
+    public void addHop(NodeHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Method which returns the previous hop (where the message was just at)
+     *
+     * @return The previous hop
+     */
+    public NodeHandle getPreviousNodeHandle() {
+        return handle;
+    }
+
+    /**
+     * Returns a string representation of this message
+     *
+     * @return A string representing this message
+     */
+    @Override
+    public String toString() {
+        return "[StatusUpdateMessage for " + dest + " base " + baseVersion + " data " + digest + "]";
+    }
+
+    /**
+     * ************** Raw Serialization **************************************
+     */
+    public short getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException {
+        buf.writeByte((byte) 0); // version
+        if (response != null && response instanceof RawPastContent) {
+            super.serialize(buf, false);
+            RawPastContent rpc = (RawPastContent) response;
+            buf.writeShort(rpc.getType());
+            rpc.serialize(buf);
+        } else {
+            super.serialize(buf, true);
+        }
+
+        buf.writeBoolean(handle != null);
+        if (handle != null)
+            handle.serialize(buf);
+
+        buf.writeLong(baseVersion);
+        JavaSerializer.serialize(buf, digest);
+    }
+
+    public static StatusUpdateMessage build(InputBuffer buf, Endpoint endpoint,
+                                            PastContentDeserializer pcd) throws IOException {
+        byte version = buf.readByte();
+        switch (version) {
+            case 0:
+                return new StatusUpdateMessage(buf, endpoint, pcd);
+            default:
+                throw new IOException("Unknown Version: " + version);
+        }
+    }
+
+    private StatusUpdateMessage(InputBuffer buf, Endpoint endpoint,
+                                PastContentDeserializer pcd) throws IOException {
+        super(buf, endpoint);
+        if (serType == S_SUB) {
+            short contentType = buf.readShort();
+            response = pcd.deserializePastContent(buf, endpoint, contentType);
+        }
+        if (buf.readBoolean())
+            handle = endpoint.readNodeHandle(buf);
+        baseVersion = buf.readLong();
+        digest = (StatusDigest) JavaSerializer.deserialize(buf, endpoint);
+    }
+}
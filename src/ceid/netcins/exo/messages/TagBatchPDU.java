@@ -0,0 +1,59 @@
+package ceid.netcins.exo.messages;
+
+import ceid.netcins.exo.content.ContentProfile;
+import rice.p2p.commonapi.Id;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class contains the tags for a batch of contents of the same owner.
+ * Along with them go the versions of the catalog entries the tagger already
+ * holds for these contents, so that the owner only returns what has changed.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class TagBatchPDU implements Serializable {
+
+    private static final long serialVersionUID = 6287151038473645923L;
+
+    // Content Id -> the tags applied to it
+    private HashMap<Id, ContentProfile> tags;
+
+    // Content Id -> version of the content profile the tagger holds
+    private HashMap<Id, Long> knownProfiles;
+
+    // Version of the owner profile the tagger holds, 0 if none
+    private long knownOwnerVersion;
+
+    public TagBatchPDU(Map<Id, ContentProfile> tags, Map<Id, Long> knownProfiles,
+                       long knownOwnerVersion) {
+        this.tags = new HashMap<Id, ContentProfile>(tags);
+        this.knownProfiles = new HashMap<Id, Long>(knownProfiles);
+        this.knownOwnerVersion = knownOwnerVersion;
+    }
+
+    /**
+     * Getter for tags
+     *
+     * @return
+     */
+    public Map<Id, ContentProfile> getTags() {
+        return tags;
+    }
+
+    public Map<Id, Long> getKnownProfiles() {
+        return knownProfiles;
+    }
+
+    public long getKnownOwnerVersion() {
+        return knownOwnerVersion;
+    }
+}
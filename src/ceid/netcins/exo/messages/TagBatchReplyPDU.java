@@ -0,0 +1,79 @@
+package ceid.netcins.exo.messages;
+
+import ceid.netcins.exo.content.ContentProfile;
+import rice.p2p.commonapi.Id;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The answer of an owner to a TagBatchPDU. Instead of a full catalog entry
+ * per tagged content, it carries the owner profile once, and only if the
+ * tagger does not already hold its current version, plus the content
+ * profiles the tagger does not hold. The tagger builds the entries from these
+ * and the entries it already has.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class TagBatchReplyPDU implements Serializable {
+
+    private static final long serialVersionUID = -3480245517032690214L;
+
+    // Version of the public profile of the owner
+    private long ownerVersion;
+
+    // The public profile of the owner, null if the tagger holds ownerVersion
+    private ContentProfile ownerProfile;
+
+    // Content Id -> content profile, for the profiles the tagger does not hold
+    private HashMap<Id, ContentProfile> contentProfiles;
+
+    // Content Id -> version of its content profile, for the tagged contents
+    private HashMap<Id, Long> contentVersions;
+
+    // The tagged contents which the owner does not share
+    private HashSet<Id> missing;
+
+    public TagBatchReplyPDU(long ownerVersion, ContentProfile ownerProfile,
+                            Map<Id, ContentProfile> contentProfiles, Map<Id, Long> contentVersions,
+                            Set<Id> missing) {
+        this.ownerVersion = ownerVersion;
+        this.ownerProfile = ownerProfile;
+        this.contentProfiles = new HashMap<Id, ContentProfile>(contentProfiles);
+        this.contentVersions = new HashMap<Id, Long>(contentVersions);
+        this.missing = new HashSet<Id>(missing);
+    }
+
+    public long getOwnerVersion() {
+        return ownerVersion;
+    }
+
+    public ContentProfile getOwnerProfile() {
+        return ownerProfile;
+    }
+
+    public Map<Id, ContentProfile> getContentProfiles() {
+        return contentProfiles;
+    }
+
+    /**
+     * @return the version of the content profile of contentId, 0 if unknown
+     */
+    public long getContentVersion(Id contentId) {
+        Long version = contentVersions.get(contentId);
+        return (version != null) ? version : 0;
+    }
+
+    public Set<Id> getMissing() {
+        return missing;
+    }
+}
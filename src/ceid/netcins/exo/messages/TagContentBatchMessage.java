@@ -0,0 +1,143 @@
+package ceid.netcins.exo.messages;
+
+import ceid.netcins.exo.utils.JavaSerializer;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.past.messaging.ContinuationMessage;
+import rice.p2p.past.rawserialization.PastContentDeserializer;
+import rice.p2p.past.rawserialization.RawPastContent;
+
+import java.io.IOException;
+
+/**
+ * This class will carry the tags for a batch of contents of the same owner.
+ * It is answered with a TagBatchReplyPDU.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class TagContentBatchMessage extends ContinuationMessage {
+
+    private static final long serialVersionUID = 1529786342005831276L;
+
+    public static final short TYPE = MessageType.TagContentBatch;
+
+    // the list of nodes where this message has been
+    private NodeHandle handle;
+
+    // TagBatchPDU holds the tags of the batch
+    private TagBatchPDU tbPDU;
+
+    /**
+     * Constructor
+     *
+     * @param uid    The unique id
+     * @param source The source address
+     * @param dest   The destination address
+     * @param tbPDU  The tags of the batch
+     */
+    public TagContentBatchMessage(int uid, NodeHandle source, Id dest,
+                                  TagBatchPDU tbPDU) {
+        super(uid, source, dest);
+        this.tbPDU = tbPDU;
+    }
+
+    /**
+     * Getter for PDU
+     *
+     * @return
+     */
+    public TagBatchPDU getTagBatchPDU() {
+        return tbPDU;
+    }
+
+    /**
+     * Method which is designed to be overridden by subclasses if they need to
+     * keep track of where they've been.
+     *
+     * @param handle The current local handle
+     */
+    @Override
+    public void addHop(NodeHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Method which returns the previous hop (where the message was just at)
+     *
+     * @return The previous hop
+     */
+    public NodeHandle getPreviousNodeHandle() {
+        return handle;
+    }
+
+    /**
+     * Returns a string representation of this message
+     *
+     * @return A string representing this message
+     */
+    @Override
+    public String toString() {
+        return "[TagContentBatchMessage for " + dest + " data " + response + "]";
+    }
+
+    /**
+     * ************** Raw Serialization **************************************
+     */
+    public short getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException {
+        buf.writeByte((byte) 0); // version
+        if (response != null && response instanceof RawPastContent) {
+            super.serialize(buf, false);
+            RawPastContent rpc = (RawPastContent) response;
+            buf.writeShort(rpc.getType());
+            rpc.serialize(buf);
+        } else {
+            super.serialize(buf, true);
+        }
+
+        buf.writeBoolean(handle != null);
+        if (handle != null)
+            handle.serialize(buf);
+
+        // Java serialization is used for the serialization of the TagBatchPDU
+        JavaSerializer.serialize(buf, tbPDU);
+    }
+
+    public static TagContentBatchMessage build(InputBuffer buf, Endpoint endpoint,
+                                               PastContentDeserializer pcd) throws IOException {
+        byte version = buf.readByte();
+        switch (version) {
+            case 0:
+                return new TagContentBatchMessage(buf, endpoint, pcd);
+            default:
+                throw new IOException("Unknown Version: " + version);
+        }
+    }
+
+    private TagContentBatchMessage(InputBuffer buf, Endpoint endpoint,
+                                   PastContentDeserializer pcd) throws IOException {
+        super(buf, endpoint);
+        if (serType == S_SUB) {
+            short contentType = buf.readShort();
+            response = pcd.deserializePastContent(buf, endpoint, contentType);
+        }
+        if (buf.readBoolean())
+            handle = endpoint.readNodeHandle(buf);
+
+        // Java deserialization
+        tbPDU = (TagBatchPDU) JavaSerializer.deserialize(buf, endpoint);
+    }
+}
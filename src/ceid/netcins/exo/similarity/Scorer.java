@@ -9,6 +9,7 @@ import ceid.netcins.exo.messages.QueryPDU;
 import ceid.netcins.exo.messages.ResponsePDU;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This object defines the methods of the "Scorer" thread which is waiting until
@@ -33,14 +34,15 @@ public class Scorer {
     // Variable to avoid missed signals and spurious wakeups
     private boolean wasSignalled = false;
 
-    // The Vector with the requests for the Scorer thread
-    private Vector<SimilarityRequest> similarityRequests;
+    // The queue with the requests for the Scorer thread (lock-free, since it
+    // is fed by the selector thread)
+    private Queue<SimilarityRequest> similarityRequests;
 
     // Controls the running loop of the "Scorer" thread!
     private boolean main_running;
 
     public Scorer() {
-        similarityRequests = new Vector<SimilarityRequest>();
+        similarityRequests = new ConcurrentLinkedQueue<SimilarityRequest>();
         main_running = true;
     }
 
@@ -62,6 +64,11 @@ public class Scorer {
     @SuppressWarnings("unchecked")
     private void serveRequest(SimilarityRequest req) {
 
+        if (req.getTagScores() != null) {
+            serveTagRequest(req);
+            return;
+        }
+
         @SuppressWarnings("rawtypes")
         Collection profileEntries = req.getProfileEntries();
         String[] query = req.getQuery();
@@ -144,8 +151,9 @@ public class Scorer {
 
                 // 4. ENTRY's USER PROFILE WEIGHTS (ENHANCED QUERY)
                 if (cossimUserProfiles != null) {
-                    // User Profile
-                    cprof = entry.getUserProfile();
+                    // User Profile (possibly a reference to the Catalog's
+                    // owner profile table)
+                    cprof = req.resolveUserProfile(entry);
                     if (cprof != null) {
                         // Get the set of profile terms
                         cprof.getTermSet(docTerms);
@@ -196,6 +204,7 @@ public class Scorer {
 
             // Resolve ties at the end of results list
             resolveTies(v1, v2, req.getK());
+            attachUserProfiles(v1, req);
 
             ScoreBoard topK = new ScoreBoard(v1, v2);
             req.getContinuation().receiveResult(
@@ -335,6 +344,69 @@ public class Scorer {
         }
     }
 
+    /**
+     * Ranks the entries matched by a social tag query. Entries are scored by
+     * the fraction of the query tags they carry; ENHANCED queries also weigh
+     * in the similarity of the entry's user profile to the source user's.
+     *
+     * @param req The similarity request to be served.
+     */
+    @SuppressWarnings("unchecked")
+    private void serveTagRequest(SimilarityRequest req) {
+        final Map<CatalogEntry, Float> scores = new HashMap<CatalogEntry, Float>(req.getTagScores());
+
+        CosineSimilarity cossimUserProfiles = null;
+        TreeSet<String> docTerms = new TreeSet<String>();
+        if ((req.getType() == QueryPDU.CONTENT_ENHANCEDQUERY
+                || req.getType() == QueryPDU.USER_ENHANCEDQUERY
+                || req.getType() == QueryPDU.HYBRID_ENHANCEDQUERY)
+                && req.getSourceUserProfile() != null) {
+            req.getSourceUserProfile().getTermSet(docTerms);
+            cossimUserProfiles = new CosineSimilarity(toWeights(docTerms));
+        }
+        if (cossimUserProfiles != null) {
+            for (Map.Entry<CatalogEntry, Float> e : scores.entrySet()) {
+                float sim = 0;
+                if (e.getKey() instanceof UserCatalogEntry) {
+                    ContentProfile cprof = req.resolveUserProfile((UserCatalogEntry) e.getKey());
+                    if (cprof != null) {
+                        cprof.getTermSet(docTerms);
+                        cossimUserProfiles.setDocWeights(toWeights(docTerms));
+                        sim = cossimUserProfiles.getScore();
+                    }
+                }
+                e.setValue(A1 * e.getValue() + A2 * sim);
+            }
+        }
+
+        // Sort by descending score
+        List<CatalogEntry> sorted = new ArrayList<CatalogEntry>(scores.keySet());
+        Collections.sort(sorted, new Comparator<CatalogEntry>() {
+            public int compare(CatalogEntry e1, CatalogEntry e2) {
+                return scores.get(e2).compareTo(scores.get(e1));
+            }
+        });
+        Vector<CatalogEntry> v1 = new Vector<CatalogEntry>(sorted.size());
+        Vector<Float> v2 = new Vector<Float>(sorted.size());
+        for (CatalogEntry entry : sorted) {
+            v1.add(entry);
+            v2.add(scores.get(entry));
+        }
+
+        resolveTies(v1, v2, req.getK());
+        attachUserProfiles(v1, req);
+        req.getContinuation().receiveResult(
+                new ResponsePDU(req.getMessagesCounter(), new ScoreBoard(v1, v2)));
+    }
+
+    private static BinaryWeight[] toWeights(Set<String> terms) {
+        BinaryWeight[] weights = new BinaryWeight[terms.size()];
+        int z = 0;
+        for (String term : terms)
+            weights[z++] = new BinaryWeight(term);
+        return weights;
+    }
+
     /**
      * Used to handle ties at the end of the result vectors. E.g. by choosing
      * RANDOMLY the appropriate number of entries and concatenate them to the
@@ -384,12 +456,33 @@ public class Scorer {
         }
     }
 
+    /**
+     * Entries stored by reference to their owner's profile get a copy with
+     * the profile attached, so that only the returned top-k carry it.
+     *
+     * @param v1  The result entries
+     * @param req The request they were scored for
+     */
+    private void attachUserProfiles(Vector<CatalogEntry> v1, SimilarityRequest req) {
+        for (int i = 0; i < v1.size(); i++) {
+            if (!(v1.get(i) instanceof UserCatalogEntry))
+                continue;
+            UserCatalogEntry entry = (UserCatalogEntry) v1.get(i);
+            if (entry.getUserProfile() != null)
+                continue;
+            ContentProfile usrp = req.resolveUserProfile(entry);
+            if (usrp != null)
+                v1.set(i, entry.withUserProfile(usrp));
+        }
+    }
+
     public void startScorer() {
         // Run each test
         while (main_running) {
             try {
-                while (!similarityRequests.isEmpty()) {
-                    serveRequest(similarityRequests.remove(0));
+                SimilarityRequest req;
+                while ((req = similarityRequests.poll()) != null) {
+                    serveRequest(req);
                 }
                 // Wait until the Selector Thread notify!
                 synchronized (this) {
@@ -500,7 +593,7 @@ public class Scorer {
         return sortedMap;
     }
 
-    public Vector<SimilarityRequest> getSimilarityRequests() {
+    public Queue<SimilarityRequest> getSimilarityRequests() {
         return similarityRequests;
     }
 
@@ -1,11 +1,15 @@
 package ceid.netcins.exo.similarity;
 
+import ceid.netcins.exo.catalog.CatalogEntry;
+import ceid.netcins.exo.catalog.CatalogSnapshot;
+import ceid.netcins.exo.catalog.UserCatalogEntry;
 import ceid.netcins.exo.content.ContentProfile;
 import ceid.netcins.exo.messages.QueryPDU;
 import rice.Continuation;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -46,6 +50,13 @@ public class SimilarityRequest {
     // request-response
     private int messagesCounter;
 
+    // The Catalog snapshot the entries come from (null if none)
+    private CatalogSnapshot snapshot = null;
+
+    // The entries matched by a social tag query with their tag scores (null
+    // for profile queries)
+    private Map<CatalogEntry, Float> tagScores = null;
+
     /**
      * Constructor with the default params
      *
@@ -130,6 +141,45 @@ public class SimilarityRequest {
         this.k = k;
     }
 
+    /**
+     * Constructor for scoring the entries of an immutable Catalog snapshot,
+     * captured when the request was issued.
+     *
+     * @param snapshot    The snapshot to score
+     * @param query
+     * @param type        It defines a specific type of issued query
+     * @param userProfile Defines the source user's profile
+     * @param result      Feeds the result back to Selector through a call to
+     *                    endpoint.route
+     */
+    @SuppressWarnings("rawtypes")
+    public SimilarityRequest(CatalogSnapshot snapshot, String[] query, int type,
+                             int k, ContentProfile userProfile, Continuation result,
+                             int msgcounter) {
+        this((snapshot == null) ? null : snapshot.getEntries(), query, type, k,
+                userProfile, result, msgcounter);
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Constructor for ranking the entries matched by a social tag query.
+     *
+     * @param tagScores   The matched entries with the fraction of the query
+     *                    tags they carry
+     * @param query       The query tags
+     * @param type        It defines a specific type of issued query
+     * @param userProfile Defines the source user's profile
+     * @param result      Feeds the result back to Selector through a call to
+     *                    endpoint.route
+     */
+    @SuppressWarnings("rawtypes")
+    public SimilarityRequest(Map<CatalogEntry, Float> tagScores, String[] query, int type,
+                             int k, ContentProfile userProfile, Continuation result,
+                             int msgcounter) {
+        this(tagScores.keySet(), query, type, k, userProfile, result, msgcounter);
+        this.tagScores = tagScores;
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     public SimilarityRequest(Vector profileEntries, String[] query, int type,
                              int k, ContentProfile userProfile, Continuation result,
@@ -174,4 +224,27 @@ public class SimilarityRequest {
         return messagesCounter;
     }
 
+    /**
+     * @return the tag scores of the entries of a social tag query, or null
+     */
+    public Map<CatalogEntry, Float> getTagScores() {
+        return tagScores;
+    }
+
+    /**
+     * @return the version of the scored Catalog snapshot, -1 if none
+     */
+    public long getSnapshotVersion() {
+        return (snapshot == null) ? -1 : snapshot.getVersion();
+    }
+
+    /**
+     * @param entry one of the entries to be scored
+     * @return the user profile of entry, following the references to the
+     *         Catalog's owner profiles
+     */
+    public ContentProfile resolveUserProfile(UserCatalogEntry entry) {
+        return (snapshot == null) ? entry.getUserProfile() : snapshot.resolveUserProfile(entry);
+    }
+
 }
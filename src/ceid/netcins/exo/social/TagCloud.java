@@ -1,14 +1,23 @@
 package ceid.netcins.exo.social;
 
 import ceid.netcins.exo.content.ContentField;
+import ceid.netcins.exo.utils.ObjectIntHashMap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * This is a set of social terms/tags with a corresponding weight = TF.
  * The tag cloud consists of terms contributed by users other than the owner.
+ * <p/>
+ * Clouds hold at most capacity tags, maintained with the Space-Saving
+ * algorithm (Metwally et al., ICDT 2005): once the cloud is full, a new tag
+ * replaces the one with the smallest TF and inherits that TF (+1) as its
+ * possible overestimation. The TF of every tag that occurs more often than
+ * 1/capacity of all taggings is thus kept, overestimated by at most its
+ * error; tags with no error, typically the top ones, have exact TFs.
  *
  * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
  * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
@@ -20,32 +29,130 @@ import java.util.Iterator;
  */
 public class TagCloud implements Serializable {
     private static final long serialVersionUID = -1110912254142511274L;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
     // Term frequency map
-    private Hashtable<ContentField, Integer> tfm;
+    private ObjectIntHashMap<ContentField> tfm;
+
+    // Overestimation of the TFs in tfm; only non-zero errors are kept
+    private ObjectIntHashMap<ContentField> errors;
+
+    // Maximum number of tags
+    private int capacity;
+
+    // The tags of a full cloud grouped by TF (the Stream-Summary of
+    // Space-Saving), so that the least frequent one is found without a
+    // scan. Built on the first replacement, dropped when the cloud is
+    // cleared.
+    private transient TreeMap<Integer, Set<ContentField>> byTF;
 
     /**
      * Constructor
      *
      * @param tfm
      */
-    public TagCloud(Hashtable<ContentField, Integer> tfm) {
-        this.tfm = tfm;
+    public TagCloud(Map<ContentField, Integer> tfm) {
+        this(Math.max(tfm.size(), DEFAULT_CAPACITY));
+        for (Map.Entry<ContentField, Integer> e : tfm.entrySet())
+            this.tfm.put(e.getKey(), e.getValue());
     }
 
     /**
      * Constructor
      */
     public TagCloud() {
-        this.tfm = new Hashtable<ContentField, Integer>();
+        this(DEFAULT_CAPACITY);
     }
 
     /**
-     * Getter for tfm
+     * Constructor
+     *
+     * @param capacity the maximum number of tags kept
+     */
+    public TagCloud(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.tfm = new ObjectIntHashMap<ContentField>();
+        this.errors = new ObjectIntHashMap<ContentField>();
+    }
+
+    /**
+     * Boxed copy of tfm, for the frontend convertors
      *
      * @return
      */
-    public Hashtable<ContentField, Integer> getTagTFMap() {
-        return tfm;
+    public synchronized Map<ContentField, Integer> getTagTFMap() {
+        return tfm.toMap();
+    }
+
+    /**
+     * @return the tags of this cloud
+     */
+    public synchronized List<ContentField> getTags() {
+        return tfm.keys();
+    }
+
+    /**
+     * @param n the number of tags to return
+     * @return the (up to) n tags with the highest TF, highest first
+     */
+    public synchronized List<ContentField> getTopTags(int n) {
+        List<ContentField> ret = tfm.keys();
+        Collections.sort(ret, new Comparator<ContentField>() {
+            public int compare(ContentField t1, ContentField t2) {
+                return tfm.get(t2) - tfm.get(t1);
+            }
+        });
+        return (ret.size() > n) ? new ArrayList<ContentField>(ret.subList(0, n)) : ret;
+    }
+
+    /**
+     * @param n the number of tags to keep
+     * @return a cloud holding the (up to) n top tags of this one, with their
+     *         TFs and errors, e.g. to ship a compact cloud across the wire
+     */
+    public synchronized TagCloud getTopCloud(int n) {
+        TagCloud ret = new TagCloud(n);
+        for (ContentField tag : getTopTags(n)) {
+            ret.tfm.put(tag, tfm.get(tag));
+            int error = errors.get(tag);
+            if (error != 0)
+                ret.errors.put(tag, error);
+        }
+        return ret;
+    }
+
+    /**
+     * @param tag
+     * @return the TF of tag, or 0 if it is not part of the cloud
+     */
+    public synchronized int getTagTF(ContentField tag) {
+        return tfm.get(tag);
+    }
+
+    /**
+     * @param tag
+     * @return by how much the TF of tag may be overestimated
+     */
+    public synchronized int getTagError(ContentField tag) {
+        return errors.get(tag);
+    }
+
+    public synchronized int size() {
+        return tfm.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Remove all tags from the cloud
+     */
+    public synchronized void clear() {
+        tfm.clear();
+        errors.clear();
+        byTF = null;
     }
 
     /**
@@ -53,14 +160,51 @@ public class TagCloud implements Serializable {
      *
      * @param tag
      */
-    public void addTagTFMap(ContentField tag) {
-
-        // Increase the TF
-        if (tfm.containsKey(tag)) {
-            int num = tfm.get(tag);
-            tfm.put(tag, (num + 1));
-        } else {
-            tfm.put(tag, 1);
+    public synchronized void addTagTFMap(ContentField tag) {
+        if (tfm.containsKey(tag) || tfm.size() < capacity) {
+            // Increase the TF
+            int tf = tfm.increment(tag, 1);
+            if (byTF != null)
+                moveTF(tag, tf - 1, tf);
+            return;
+        }
+        // Replace the least frequent tag
+        if (byTF == null) {
+            byTF = new TreeMap<Integer, Set<ContentField>>();
+            for (ContentField t : tfm.keys())
+                moveTF(t, 0, tfm.get(t));
+        }
+        Map.Entry<Integer, Set<ContentField>> least = byTF.firstEntry();
+        ContentField min = least.getValue().iterator().next();
+        int minTF = least.getKey();
+        moveTF(min, minTF, 0);
+        tfm.remove(min);
+        errors.remove(min);
+        tfm.put(tag, minTF + 1);
+        errors.put(tag, minTF);
+        moveTF(tag, 0, minTF + 1);
+    }
+
+    /**
+     * Moves tag from the byTF group of TF from to that of TF to; 0 stands
+     * for no group.
+     */
+    private void moveTF(ContentField tag, int from, int to) {
+        if (from != 0) {
+            Set<ContentField> group = byTF.get(from);
+            group.remove(tag);
+            if (group.isEmpty())
+                byTF.remove(from);
+        }
+        if (to != 0) {
+            Set<ContentField> group = byTF.get(to);
+            if (group == null) {
+                // Insertion ordered, so that the oldest of the least
+                // frequent tags is replaced first
+                group = new LinkedHashSet<ContentField>();
+                byTF.put(to, group);
+            }
+            group.add(tag);
         }
     }
 
@@ -70,17 +214,37 @@ public class TagCloud implements Serializable {
      * @return
      */
     @Override
-    public String toString() {
+    public synchronized String toString() {
         StringBuffer buf = new StringBuffer();
         buf.append("TagCloud : [");
-        Iterator<ContentField> it = tfm.keySet().iterator();
-        ContentField tag;
-        while (it.hasNext()) {
-            tag = it.next();
-            buf.append("{ tag : " + tag + ", freq : " + tfm.get(tag) + " }"
+        Iterator<ContentField> it = tfm.keys().iterator();
+        int[] freqs = tfm.values();
+        for (int i = 0; it.hasNext(); i++) {
+            buf.append("{ tag : " + it.next() + ", freq : " + freqs[i] + " }"
                     + (it.hasNext() ? "," : ""));
         }
         buf.append("]");
         return buf.toString();
     }
+
+    // Clouds saved by older versions keep their TFs in a
+    // Hashtable<ContentField, Integer>, are unbounded and have no errors
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Object tfs = fields.get("tfm", null);
+        if (tfs instanceof ObjectIntHashMap)
+            tfm = (ObjectIntHashMap<ContentField>) tfs;
+        else if (tfs instanceof Map)
+            tfm = new ObjectIntHashMap<ContentField>((Map<ContentField, Integer>) tfs);
+        else
+            tfm = new ObjectIntHashMap<ContentField>();
+        errors = (ObjectIntHashMap<ContentField>) fields.get("errors", null);
+        if (errors == null)
+            errors = new ObjectIntHashMap<ContentField>();
+        capacity = fields.get("capacity", 0);
+        if (capacity <= 0)
+            capacity = Math.max(tfm.size(), DEFAULT_CAPACITY);
+    }
 }
@@ -10,11 +10,15 @@ public class SharedContentInfo implements Serializable {
     private File file;
     private String filename;
     private ContentProfile profile;
+    // Version of profile. Time based, like the user profile version, so that
+    // it keeps increasing across restarts; 0 for items saved by older versions
+    private long version;
 
     SharedContentInfo(File file, String filename, ContentProfile profile) {
         this.file = file;
         this.filename = filename;
         this.profile = profile;
+        this.version = System.currentTimeMillis();
     }
 
     public String getFilename() {
@@ -35,5 +39,13 @@ public class SharedContentInfo implements Serializable {
 
     public void setProfile(ContentProfile cp) {
         this.profile = cp;
+        this.version = Math.max(System.currentTimeMillis(), version + 1);
+    }
+
+    /**
+     * @return the version of the profile, 0 if unversioned
+     */
+    public long getVersion() {
+        return version;
     }
 }
\ No newline at end of file
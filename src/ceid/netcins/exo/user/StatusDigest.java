@@ -0,0 +1,106 @@
+package ceid.netcins.exo.user;
+
+import ceid.netcins.exo.content.Status;
+import rice.p2p.commonapi.Id;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The latest status updates of a user, as returned to friends polling for
+ * them, instead of the whole user profile. Digests are stamped with the
+ * status version of the user, so that a digest the poller already holds is
+ * not sent again: such requests are answered with a digest without statuses
+ * (see isModified()). Digests pushed to friends may also carry just the
+ * statuses added since a previous version, see applyDelta().
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class StatusDigest implements Serializable {
+
+    private static final long serialVersionUID = -2204567810923305713L;
+
+    // Orders statuses newest first
+    public static final Comparator<Status> NewestFirst = new Comparator<Status>() {
+        public int compare(Status s1, Status s2) {
+            return s2.getDate().compareTo(s1.getDate());
+        }
+    };
+
+    private final Id uid;
+    private final String username;
+    private final long version;
+
+    // Maximum number of statuses requested
+    private final int limit;
+
+    // Newest first; null if not modified
+    private final List<Status> statuses;
+
+    public StatusDigest(Id uid, String username, long version, int limit, List<Status> statuses) {
+        this.uid = uid;
+        this.username = username;
+        this.version = version;
+        this.limit = limit;
+        this.statuses = statuses;
+    }
+
+    public Id getUID() {
+        return uid;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return false if this digest only confirms that the one the requester
+     *         holds is still current
+     */
+    public boolean isModified() {
+        return statuses != null;
+    }
+
+    public List<Status> getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * @param delta a digest with the statuses added since this one
+     * @return the digest at the version of delta, holding the newest
+     *         statuses of both, up to the limit of this digest
+     */
+    public StatusDigest applyDelta(StatusDigest delta) {
+        List<Status> merged = new ArrayList<Status>(delta.getStatuses());
+        for (Status st : statuses)
+            if (!merged.contains(st))
+                merged.add(st);
+        Collections.sort(merged, NewestFirst);
+        if (merged.size() > limit)
+            merged = new ArrayList<Status>(merged.subList(0, limit));
+        return new StatusDigest(uid, delta.getUsername(), delta.getVersion(), limit, merged);
+    }
+
+    @Override
+    public String toString() {
+        return "StatusDigest [uid=" + uid + ", version=" + version +
+                ", statuses=" + ((statuses != null) ? statuses.size() : "not modified") + "]";
+    }
+}
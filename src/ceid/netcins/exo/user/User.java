@@ -4,7 +4,9 @@ import ceid.netcins.exo.catalog.CatalogEntry;
 import ceid.netcins.exo.catalog.ContentCatalogEntry;
 import ceid.netcins.exo.catalog.SocialCatalog;
 import ceid.netcins.exo.catalog.UserCatalogEntry;
+import ceid.netcins.exo.content.ContentField;
 import ceid.netcins.exo.content.ContentProfile;
+import ceid.netcins.exo.content.Status;
 import ceid.netcins.exo.content.TermField;
 import ceid.netcins.exo.messages.QueryPDU;
 import ceid.netcins.exo.social.SocialBookMark;
@@ -12,8 +14,13 @@ import ceid.netcins.exo.social.TagCloud;
 import rice.p2p.commonapi.Id;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * This class represents a User entity. User includes all the necessary
@@ -65,18 +72,59 @@ public class User implements Serializable {
     // This is the set of "terms" that describe the user.
     private ContentProfile userProfile;
 
+    // Version of the public part of userProfile. Time based, so that it keeps
+    // increasing across restarts; catalogs keep the newest version they see.
+    private long profileVersion;
+
+    // Version of the Status fields of userProfile, bumped like profileVersion
+    private long statusVersion;
+
+    // Notified whenever statusVersion is bumped; not persisted
+    private transient StatusListener statusListener;
+
+    // The catalog entries answered to queries, as seen by friends (index 1)
+    // and everyone else (index 0). Rebuilt lazily after the profile or the
+    // shared content change; null when stale. Not persisted.
+    private transient volatile EntryView[] entryViews;
+
+    // Shared content Id -> its catalog entries, indexed like entryViews, so
+    // that a change to one item only rewraps that item
+    private transient Map<Id, ContentCatalogEntry[]> contentEntries;
+
+    /**
+     * Immutable catalog entries of the user for one kind of requester.
+     */
+    private static final class EntryView {
+        private final List<CatalogEntry> profile;
+        private final List<CatalogEntry> content;
+        private final List<CatalogEntry> hybrid;
+
+        private EntryView(UserCatalogEntry profile, List<CatalogEntry> content) {
+            this.profile = Collections.<CatalogEntry>singletonList(profile);
+            this.content = Collections.unmodifiableList(content);
+            List<CatalogEntry> hybrid = new ArrayList<CatalogEntry>(content.size() + 1);
+            hybrid.add(profile);
+            hybrid.addAll(content);
+            this.hybrid = Collections.unmodifiableList(hybrid);
+        }
+    }
+
+    // All maps below are read by the frontend threads while the selector
+    // thread updates them, hence the concurrent (non-locking) collections.
+
     // The list of friends' UIDs
-    private Hashtable<Id, Friend> friends;
+    private Map<Id, Friend> friends;
 
     // Friendship requests pending to be confirmed by user
-    private Hashtable<Id, FriendRequest> pendingIncomingFReq;
+    private Map<Id, FriendRequest> pendingIncomingFReq;
 
     // Friendship requests that user waits to be approved by his candidate friends
     private Set<Id> pendingOutgoingFReq;
 
     // Map of shared files with their corresponding SHA-1 checksums and 	content profile.
     // TIP : SHA-1 checksum is returned by "libextractor", so we need to use
-    // buildId(String) to obtain the Id instance.
+    // buildId(String) to obtain the Id instance. Kept sorted by Id, so that
+    // it can be listed in pages.
     private Map<Id, SharedContentInfo> sharedContent;
 
     // The content Ids (checksums) mapped with their corresponding TagCloud.
@@ -146,7 +194,7 @@ public class User implements Serializable {
      * @param friends
      */
     public User(Id uid, String username, String resourceName, ContentProfile userProfile,
-                Hashtable<Id, Friend> friends) {
+                Map<Id, Friend> friends) {
         this.uid = uid;
         this.username = username;
         this.resourceName = resourceName;
@@ -157,17 +205,16 @@ public class User implements Serializable {
 
         setUserProfile(userProfile);
 
-        if (friends == null)
-            this.friends = new Hashtable<Id, Friend>();
-        else
-            this.friends = friends;
-        this.pendingIncomingFReq = new Hashtable<Id, FriendRequest>();
-        this.pendingOutgoingFReq = Collections.synchronizedSet(new HashSet<Id>());
-        this.sharedContent = new Hashtable<Id, SharedContentInfo>();
-        this.bookMarks = new Hashtable<Id, SocialBookMark>();
-        this.contentTagClouds = new Hashtable<Id, TagCloud>();
-        this.userTagClouds = new Hashtable<Id, TagCloud>();
-        this.invertedTagContentList = new Hashtable<String, SocialCatalog>();
+        this.friends = new ConcurrentHashMap<Id, Friend>();
+        if (friends != null)
+            this.friends.putAll(friends);
+        this.pendingIncomingFReq = new ConcurrentHashMap<Id, FriendRequest>();
+        this.pendingOutgoingFReq = ConcurrentHashMap.<Id>newKeySet();
+        this.sharedContent = new ConcurrentSkipListMap<Id, SharedContentInfo>();
+        this.bookMarks = new ConcurrentHashMap<Id, SocialBookMark>();
+        this.contentTagClouds = new ConcurrentHashMap<Id, TagCloud>();
+        this.userTagClouds = new ConcurrentHashMap<Id, TagCloud>();
+        this.invertedTagContentList = new ConcurrentHashMap<String, SocialCatalog>();
     }
 
     /**
@@ -175,26 +222,72 @@ public class User implements Serializable {
      * by the user.
      *
      * @param type One of the types defined in QueryPDU
-     * @return Return the corresponding vector of catalog entries.
+     * @return Return the corresponding (unmodifiable) list of catalog entries.
      */
-    public Vector<CatalogEntry> getCatalogEntriesForQueryType(int type, Id requester) {
-        Vector<CatalogEntry> v = new Vector<CatalogEntry>();
+    public List<CatalogEntry> getCatalogEntriesForQueryType(int type, Id requester) {
+        EntryView view = getEntryView(isFriend(requester));
         switch (type) {
             case QueryPDU.USERQUERY:
             case QueryPDU.USER_ENHANCEDQUERY:
-                v.add(this.wrapUserProfileToCatalogEntry(isFriend(requester)));
-                break;
+                return view.profile;
             case QueryPDU.HYBRIDQUERY:
             case QueryPDU.HYBRID_ENHANCEDQUERY:
-                v.add(this.wrapUserProfileToCatalogEntry(isFriend(requester)));
-                v.addAll(this.wrapContentToCatalogEntries(isFriend(requester)));
-                break;
+                return view.hybrid;
             case QueryPDU.CONTENTQUERY:
             case QueryPDU.CONTENT_ENHANCEDQUERY:
-                v.addAll(this.wrapContentToCatalogEntries(isFriend(requester)));
-                break;
+                return view.content;
         }
-        return v;
+        return Collections.emptyList();
+    }
+
+    private EntryView getEntryView(boolean friend) {
+        EntryView[] views = entryViews;
+        if (views == null)
+            views = buildEntryViews();
+        return views[friend ? 1 : 0];
+    }
+
+    private synchronized EntryView[] buildEntryViews() {
+        if (entryViews != null)
+            return entryViews;
+        if (contentEntries == null)
+            contentEntries = new HashMap<Id, ContentCatalogEntry[]>();
+        ContentProfile publicProfile = getPublicUserProfile();
+        List<CatalogEntry> publicContent = new ArrayList<CatalogEntry>(sharedContent.size());
+        List<CatalogEntry> friendContent = new ArrayList<CatalogEntry>(sharedContent.size());
+        for (Map.Entry<Id, SharedContentInfo> e : sharedContent.entrySet()) {
+            ContentCatalogEntry[] ce = contentEntries.get(e.getKey());
+            if (ce == null) {
+                ContentProfile cp = e.getValue().getProfile();
+                ce = new ContentCatalogEntry[]{
+                        new ContentCatalogEntry(uid, cp, publicProfile),
+                        new ContentCatalogEntry(uid, cp, userProfile)};
+                contentEntries.put(e.getKey(), ce);
+            }
+            publicContent.add(ce[0]);
+            friendContent.add(ce[1]);
+        }
+        // Drop the entries of removed content
+        if (contentEntries.size() > sharedContent.size())
+            contentEntries.keySet().retainAll(sharedContent.keySet());
+        entryViews = new EntryView[]{
+                new EntryView(new UserCatalogEntry(uid, publicProfile), publicContent),
+                new EntryView(new UserCatalogEntry(uid, userProfile), friendContent)};
+        return entryViews;
+    }
+
+    /**
+     * Marks the catalog entries stale, after a change to the shared content
+     * (checksum) or to the user profile (null).
+     */
+    private synchronized void invalidateEntries(Id checksum) {
+        entryViews = null;
+        if (contentEntries == null)
+            return;
+        if (checksum == null)
+            contentEntries.clear();
+        else
+            contentEntries.remove(checksum);
     }
 
     /**
@@ -258,6 +351,8 @@ public class User implements Serializable {
     }
 
     public void setUserProfile(ContentProfile userProfile) {
+        ContentProfile oldPublicPart = (this.userProfile != null) ? this.userProfile.getPublicPart() : null;
+        Set<Status> oldStatuses = getStatuses(this.userProfile);
         if (userProfile != null)
             this.userProfile = new ContentProfile(userProfile);
         else
@@ -267,6 +362,72 @@ public class User implements Serializable {
         // current User object (ignoring any relevant data provided)
         this.userProfile.add(new TermField(UsernameTag, username, true));
         this.userProfile.add(new TermField(ResourceTag, resourceName, true));
+
+        if (oldPublicPart == null || !oldPublicPart.equalsPublic(this.userProfile))
+            profileVersion = Math.max(System.currentTimeMillis(), profileVersion + 1);
+        invalidateEntries(null);
+        if (!oldStatuses.equals(getStatuses(this.userProfile))) {
+            statusVersion = Math.max(System.currentTimeMillis(), statusVersion + 1);
+            if (statusListener != null)
+                statusListener.statusChanged(this);
+        }
+    }
+
+    /**
+     * Receives the status changes of a user, e.g. to push them to friends.
+     */
+    public interface StatusListener {
+        /**
+         * Called on the thread that updated the user profile.
+         */
+        void statusChanged(User user);
+    }
+
+    public void setStatusListener(StatusListener statusListener) {
+        this.statusListener = statusListener;
+    }
+
+    private static Set<Status> getStatuses(ContentProfile cp) {
+        Set<Status> ret = new HashSet<Status>();
+        if (cp != null)
+            for (ContentField cf : cp.getAllFields())
+                if (cf instanceof Status)
+                    ret.add((Status) cf);
+        return ret;
+    }
+
+    /**
+     * @return the version of the statuses in the user profile
+     */
+    public long getStatusVersion() {
+        return statusVersion;
+    }
+
+    /**
+     * @param limit        the maximum number of statuses to return
+     * @param friend       whether the requester may see private statuses
+     * @param knownVersion the version of the digest the requester holds
+     * @return the latest statuses, newest first, or a digest without
+     *         statuses if knownVersion is current
+     */
+    public StatusDigest getStatusDigest(int limit, boolean friend, long knownVersion) {
+        if (knownVersion != 0 && knownVersion == statusVersion)
+            return new StatusDigest(uid, username, statusVersion, limit, null);
+        List<Status> statuses = new ArrayList<Status>();
+        for (Status st : getStatuses(userProfile))
+            if (friend || st.isPublic())
+                statuses.add(st);
+        Collections.sort(statuses, StatusDigest.NewestFirst);
+        if (statuses.size() > limit)
+            statuses = new ArrayList<Status>(statuses.subList(0, limit));
+        return new StatusDigest(uid, username, statusVersion, limit, statuses);
+    }
+
+    /**
+     * @return the version of the public user profile
+     */
+    public long getProfileVersion() {
+        return profileVersion;
     }
 
     public ContentProfile getCompleteUserProfile() {
@@ -277,7 +438,7 @@ public class User implements Serializable {
         return userProfile.getPublicPart();
     }
 
-    public Hashtable<Id, Friend> getFriends() {
+    public Map<Id, Friend> getFriends() {
         return friends;
     }
 
@@ -297,7 +458,7 @@ public class User implements Serializable {
         return username + ScreennameDelimiter + resourceName;
     }
 
-    public Hashtable<Id, FriendRequest> getPendingIncomingFReq() {
+    public Map<Id, FriendRequest> getPendingIncomingFReq() {
         return pendingIncomingFReq;
     }
 
@@ -318,22 +479,55 @@ public class User implements Serializable {
         return (sci == null) ? null : sci.getProfile();
     }
 
+    /**
+     * @return the version of the profile of a shared content, 0 if unversioned
+     */
+    public long getSharedContentVersion(Id id) {
+        SharedContentInfo sci = sharedContent.get(id);
+        return (sci == null) ? 0 : sci.getVersion();
+    }
+
     public Map<Id, ContentProfile> getSharedContentProfiles() {
-        Map<Id, ContentProfile> ret = new Hashtable<Id, ContentProfile>();
-        Iterator<Id> keys = sharedContent.keySet().iterator();
-        Iterator<SharedContentInfo> values = sharedContent.values().iterator();
-        while (keys.hasNext())
-            ret.put(keys.next(), values.next().getProfile());
+        Map<Id, ContentProfile> ret = new HashMap<Id, ContentProfile>();
+        for (Map.Entry<Id, SharedContentInfo> e : sharedContent.entrySet())
+            ret.put(e.getKey(), e.getValue().getProfile());
+        return ret;
+    }
+
+    /**
+     * Lists the shared content in pages, ordered by Id. Pages are addressed
+     * by a cursor (the last Id of the previous page), which stays valid while
+     * content is added or removed, or by an offset.
+     *
+     * @param cursor the last Id of the previous page, or null for the first
+     * @param offset the number of entries to skip (after cursor)
+     * @param limit  the page size; if not positive, everything is returned
+     * @return up to limit entries, sorted by Id
+     */
+    public SortedMap<Id, SharedContentInfo> getSharedContentPage(Id cursor, int offset, int limit) {
+        NavigableMap<Id, SharedContentInfo> sorted = (sharedContent instanceof NavigableMap) ?
+                (NavigableMap<Id, SharedContentInfo>) sharedContent :
+                new TreeMap<Id, SharedContentInfo>(sharedContent); // State saved by older versions
+        if (cursor != null)
+            sorted = sorted.tailMap(cursor, false);
+        SortedMap<Id, SharedContentInfo> ret = new TreeMap<Id, SharedContentInfo>();
+        for (Map.Entry<Id, SharedContentInfo> e : sorted.entrySet()) {
+            if (offset > 0) {
+                offset--;
+                continue;
+            }
+            if (limit > 0 && ret.size() >= limit)
+                break;
+            ret.put(e.getKey(), e.getValue());
+        }
         return ret;
     }
 
     public Map<Id, SharedContentItem> getSharedContentItems() {
-        Map<Id, SharedContentItem> ret = new Hashtable<Id, User.SharedContentItem>();
-        Iterator<Id> keys = sharedContent.keySet().iterator();
-        Iterator<SharedContentInfo> values = sharedContent.values().iterator();
-        while (keys.hasNext()) {
-            SharedContentInfo cInfo = values.next();
-            ret.put(keys.next(), new SharedContentItem(cInfo.getFilename(), cInfo.getProfile()));
+        Map<Id, SharedContentItem> ret = new HashMap<Id, User.SharedContentItem>();
+        for (Map.Entry<Id, SharedContentInfo> e : sharedContent.entrySet()) {
+            SharedContentInfo cInfo = e.getValue();
+            ret.put(e.getKey(), new SharedContentItem(cInfo.getFilename(), cInfo.getProfile()));
         }
         return ret;
     }
@@ -373,6 +567,7 @@ public class User implements Serializable {
 
     public void addSharedContent(Id checksum, File file, ContentProfile profile) {
         sharedContent.put(checksum, new SharedContentInfo(file, null, profile));
+        invalidateEntries(checksum);
     }
 
     public void addSharedContent(Id checksum, File file) {
@@ -389,6 +584,7 @@ public class User implements Serializable {
                 sci.setFilename(identifier);
         }
         sharedContent.put(checksum, sci);
+        invalidateEntries(checksum);
         // XXX: Should we also update the content tag clouds?
         /*
           TagCloud tc = contentTagClouds.get(checksum);
@@ -427,6 +623,7 @@ public class User implements Serializable {
 
     public void removeSharedContent(Id checksum) {
         sharedContent.remove(checksum);
+        invalidateEntries(checksum);
     }
 
     public void removeBookMark(Id bid) {
@@ -440,4 +637,37 @@ public class User implements Serializable {
     public void removeTagContentList(String tag) {
         invertedTagContentList.remove(tag);
     }
+
+    // State saved by older versions holds Hashtables and synchronized sets
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        friends = concurrentMap(friends);
+        pendingIncomingFReq = concurrentMap(pendingIncomingFReq);
+        if (!(pendingOutgoingFReq instanceof ConcurrentHashMap.KeySetView)) {
+            Set<Id> old = pendingOutgoingFReq;
+            pendingOutgoingFReq = ConcurrentHashMap.<Id>newKeySet();
+            if (old != null)
+                pendingOutgoingFReq.addAll(old);
+        }
+        if (!(sharedContent instanceof ConcurrentSkipListMap)) {
+            Map<Id, SharedContentInfo> old = sharedContent;
+            sharedContent = new ConcurrentSkipListMap<Id, SharedContentInfo>();
+            if (old != null)
+                sharedContent.putAll(old);
+        }
+        bookMarks = concurrentMap(bookMarks);
+        contentTagClouds = concurrentMap(contentTagClouds);
+        userTagClouds = concurrentMap(userTagClouds);
+        invertedTagContentList = concurrentMap(invertedTagContentList);
+    }
+
+    private static <K, V> Map<K, V> concurrentMap(Map<K, V> m) {
+        if (m instanceof ConcurrentMap)
+            return m;
+        Map<K, V> ret = new ConcurrentHashMap<K, V>();
+        if (m != null)
+            ret.putAll(m);
+        return ret;
+    }
 }
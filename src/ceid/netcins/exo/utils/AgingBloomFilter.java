@@ -0,0 +1,97 @@
+package ceid.netcins.exo.utils;
+
+import java.util.BitSet;
+
+/**
+ * A Bloom filter over long keys (e.g. query IDs) that forgets old keys. Keys
+ * are added to the current generation; once it holds capacity keys, it
+ * becomes the previous generation and a new, empty one is started, so a key
+ * is remembered for at least capacity more insertions. Like any Bloom filter,
+ * it may report a key it has never seen (with a probability of about
+ * 1% per generation at capacity), but never misses one it has. This class is
+ * thread-safe.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class AgingBloomFilter {
+
+    // ~10 bits and 7 hashes per key give a 1% false positive rate
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+
+    private final int capacity;
+    private final int numBits;
+
+    private BitSet current;
+    private BitSet previous;
+    private int count = 0;
+
+    /**
+     * @param capacity the number of keys per generation
+     */
+    public AgingBloomFilter(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.numBits = this.capacity * BITS_PER_KEY;
+        this.current = new BitSet(numBits);
+        this.previous = new BitSet(numBits);
+    }
+
+    /**
+     * @return true if the key may have been added before
+     */
+    public synchronized boolean mightContain(long key) {
+        return contains(current, key) || contains(previous, key);
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @return false if the key may have been added before (in which case
+     *         nothing changes), true if it is certainly new
+     */
+    public synchronized boolean add(long key) {
+        if (mightContain(key))
+            return false;
+        if (count >= capacity) {
+            BitSet recycled = previous;
+            recycled.clear();
+            previous = current;
+            current = recycled;
+            count = 0;
+        }
+        // Double hashing: the i-th bit is h1 + i * h2
+        long h1 = mix(key), h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++)
+            current.set(index(h1 + i * h2));
+        count++;
+        return true;
+    }
+
+    private boolean contains(BitSet bits, long key) {
+        long h1 = mix(key), h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++)
+            if (!bits.get(index(h1 + i * h2)))
+                return false;
+        return true;
+    }
+
+    private int index(long hash) {
+        return (int) ((hash >>> 1) % numBits);
+    }
+
+    // The finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,316 @@
+package ceid.netcins.exo.utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact open-addressing (linear probing) map from object keys to
+ * primitive int values. It is meant for term/tag frequency tables, where a
+ * Hashtable&lt;K, Integer&gt; costs a boxed Integer, an Entry object and a
+ * monitor acquisition per update. Keys and values live in two parallel
+ * arrays; null keys are not supported. This class is not thread-safe.
+ *
+ * @author <a href="mailto:loupasak@ceid.upatras.gr">Andreas Loupasakis</a>
+ * @author <a href="mailto:ntarmos@cs.uoi.gr">Nikos Ntarmos</a>
+ * @author <a href="mailto:peter@ceid.upatras.gr">Peter Triantafillou</a>
+ *         <p/>
+ *         "eXO: Decentralized Autonomous Scalable Social Networking"
+ *         Proc. 5th Biennial Conf. on Innovative Data Systems Research (CIDR),
+ *         January 9-12, 2011, Asilomar, California, USA.
+ */
+public class ObjectIntHashMap<K> implements Serializable {
+
+    private static final long serialVersionUID = -4187612032178145519L;
+
+    private static final int MIN_CAPACITY = 4;
+
+    // Tables are resized when they become more than 3/4 full
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // Both tables have a power of two length
+    private transient Object[] keys;
+    private transient int[] values;
+    private transient int size;
+
+    public ObjectIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected number of entries to allocate room for
+     */
+    public ObjectIntHashMap(int expected) {
+        allocate(tableSizeFor(expected));
+    }
+
+    public ObjectIntHashMap(ObjectIntHashMap<K> other) {
+        this(other.size);
+        for (int i = 0; i < other.keys.length; i++)
+            if (other.keys[i] != null)
+                put(keyAt(other.keys, i), other.values[i]);
+    }
+
+    public ObjectIntHashMap(Map<? extends K, Integer> other) {
+        this(other.size());
+        for (Map.Entry<? extends K, Integer> e : other.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return keys[indexOf(key)] != null;
+    }
+
+    /**
+     * @return the value for key, or 0 if there is no such key
+     */
+    public int get(K key) {
+        int idx = indexOf(key);
+        return keys[idx] != null ? values[idx] : 0;
+    }
+
+    /**
+     * @return the previous value for key, or 0 if there was no such key
+     */
+    public int put(K key, int value) {
+        int idx = indexOf(key);
+        if (keys[idx] != null) {
+            int old = values[idx];
+            values[idx] = value;
+            return old;
+        }
+        insertAt(idx, key, value);
+        return 0;
+    }
+
+    /**
+     * Adds delta to the value of key, inserting it with value delta if it is
+     * not already present.
+     *
+     * @return the new value for key
+     */
+    public int increment(K key, int delta) {
+        int idx = indexOf(key);
+        if (keys[idx] != null)
+            return values[idx] += delta;
+        insertAt(idx, key, delta);
+        return delta;
+    }
+
+    /**
+     * @return the removed value, or 0 if there was no such key
+     */
+    public int remove(K key) {
+        int idx = indexOf(key);
+        if (keys[idx] == null)
+            return 0;
+        int old = values[idx];
+        // Backward shift deletion, so that no tombstones are needed
+        int mask = keys.length - 1;
+        int hole = idx;
+        for (int i = (hole + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = 0;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        if (size == 0)
+            return;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return the keys in table order; values() returns the matching values
+     */
+    public List<K> keys() {
+        List<K> ret = new ArrayList<K>(size);
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                ret.add(keyAt(keys, i));
+        return ret;
+    }
+
+    /**
+     * @return the values in the same order as keys()
+     */
+    public int[] values() {
+        int[] ret = new int[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                ret[j++] = values[i];
+        return ret;
+    }
+
+    /**
+     * @return the key stored at the num-th occupied slot (0 <= num < size())
+     */
+    public K keyAtPosition(int num) {
+        if (num < 0 || num >= size)
+            throw new IndexOutOfBoundsException("Position " + num + " of " + size);
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null && num-- == 0)
+                return keyAt(keys, i);
+        return null;
+    }
+
+    /**
+     * @return a boxed copy, for consumers that need a java.util.Map
+     */
+    public Map<K, Integer> toMap() {
+        Map<K, Integer> ret = new HashMap<K, Integer>(size * 2);
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                ret.put(keyAt(keys, i), values[i]);
+        return ret;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof ObjectIntHashMap))
+            return false;
+        ObjectIntHashMap<K> other = (ObjectIntHashMap<K>) o;
+        if (other.size != size)
+            return false;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null)
+                continue;
+            int idx = other.indexOf(keyAt(keys, i));
+            if (other.keys[idx] == null || other.values[idx] != values[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // Same contract as java.util.Map: order independent sum of entries
+        int h = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                h += keys[i].hashCode() ^ values[i];
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buf = new StringBuffer("{");
+        boolean isFirst = true;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null)
+                continue;
+            if (!isFirst)
+                buf.append(", ");
+            isFirst = false;
+            buf.append(keys[i]).append('=').append(values[i]);
+        }
+        return buf.append('}').toString();
+    }
+
+    private int indexOf(Object key) {
+        if (key == null)
+            throw new NullPointerException("Null keys are not supported");
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != null && !keys[i].equals(key))
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void insertAt(int idx, K key, int value) {
+        keys[idx] = key;
+        values[idx] = value;
+        if (++size > keys.length * LOAD_FACTOR)
+            rehash(keys.length << 1);
+    }
+
+    private void rehash(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null)
+                continue;
+            int j = hash(oldKeys[i]) & mask;
+            while (keys[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+            size++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new int[capacity];
+        size = 0;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expected) {
+        int needed = (int) Math.ceil(Math.max(expected, 1) / LOAD_FACTOR) + 1;
+        int cap = MIN_CAPACITY;
+        while (cap < needed)
+            cap <<= 1;
+        return cap;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K keyAt(Object[] table, int i) {
+        return (K) table[i];
+    }
+
+    // Only the occupied slots go on the wire
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                out.writeObject(keys[i]);
+                out.writeInt(values[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        int num = in.readInt();
+        allocate(tableSizeFor(num));
+        for (int i = 0; i < num; i++) {
+            K key = (K) in.readObject();
+            put(key, in.readInt());
+        }
+    }
+}